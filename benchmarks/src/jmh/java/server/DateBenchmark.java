@@ -0,0 +1,55 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import server.exceptions.BadRequestException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluating If-Modified-Since headers with
+ * {@link RequestHandler#fileIsModified(Path, String)}, for each of the three
+ * date formats of HTTP/1.1.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DateBenchmark {
+
+	@Param({ "Fri, 31 Dec 1999 23:59:59 GMT", "Friday, 31-Dec-99 23:59:59 GMT", "Fri Dec 31 23:59:59 1999" })
+	public String since;
+
+	private RequestHandler handler;
+	private Path file;
+
+	@Setup
+	public void setUp() throws IOException {
+		handler = new RequestHandler();
+		file = Files.createTempFile("date-benchmark", ".html");
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public boolean fileIsModified() throws BadRequestException {
+		return handler.fileIsModified(file, since);
+	}
+
+	@Benchmark
+	public long parse() {
+		return HttpDate.parse(since);
+	}
+}
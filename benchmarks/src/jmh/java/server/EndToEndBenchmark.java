@@ -0,0 +1,144 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import util.HttpInputStream;
+import util.HttpParser;
+import util.IO;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of GET and PUT requests against a server started
+ * in the benchmark JVM, over keep-alive loopback connections. Every
+ * benchmark thread uses its own connection.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(4)
+public class EndToEndBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		@Param({ "blocking", "nio" })
+		public String engine;
+
+		@Param({ "1024", "65536", "1048576" })
+		public int fileSize;
+
+		/**
+		 * How file contents are served: copied into the file cache, sent
+		 * from the file with sendfile, or from a memory-mapped buffer.
+		 */
+		@Param({ "cache", "sendfile", "mmap" })
+		public String serving;
+
+		int port;
+		Path file;
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+			try (ServerSocket free = new ServerSocket(0)) {
+				port = free.getLocalPort();
+			}
+			Thread thread = new Thread(() -> {
+				try {
+					Main.main(new String[] { "--port=" + port, "--engine=" + engine,
+							"--cacheMaxFileBytes=" + (serving.equals("cache") ? fileSize : 0),
+							"--mmap=" + serving.equals("mmap") });
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}, "benchmark-server");
+			thread.setDaemon(true);
+			thread.start();
+			// wait until the server accepts connections
+			long deadline = System.currentTimeMillis() + 10000;
+			while (true) {
+				try {
+					new Socket("localhost", port).close();
+					break;
+				} catch (IOException e) {
+					if (System.currentTimeMillis() > deadline) {
+						throw e;
+					}
+					Thread.sleep(50);
+				}
+			}
+			file = Paths.get(Main.getPath(), "benchmark-" + fileSize + ".bin");
+			Files.write(file, new byte[fileSize]);
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws IOException {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		private Socket socket;
+		private OutputStream out;
+		private HttpInputStream in;
+		private final HttpParser parser = new HttpParser();
+		private byte[] get;
+		private byte[] put;
+
+		@Setup(Level.Trial)
+		public void connect(Server server) throws IOException {
+			socket = new Socket("localhost", server.port);
+			socket.setTcpNoDelay(true);
+			out = socket.getOutputStream();
+			in = new HttpInputStream(socket.getInputStream());
+			get = ("GET /" + server.file.getFileName() + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1);
+			String body = "{\"benchmark\": true}";
+			put = ("PUT /benchmark HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+					+ "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1);
+		}
+
+		@TearDown(Level.Trial)
+		public void disconnect() throws IOException {
+			socket.close();
+		}
+
+		byte[] execute(byte[] request) throws IOException {
+			out.write(request);
+			parser.reset(HttpParser.Mode.RESPONSE);
+			IO.readHead(in, parser);
+			if (parser.getStatusCode() == 100) {
+				parser.reset(HttpParser.Mode.RESPONSE);
+				IO.readHead(in, parser);
+			}
+			return IO.readMessage(in, parser.getHeaders());
+		}
+	}
+
+	@Benchmark
+	public byte[] get(Client client) throws IOException {
+		return client.execute(client.get);
+	}
+
+	@Benchmark
+	public byte[] put(Client client) throws IOException {
+		return client.execute(client.put);
+	}
+}
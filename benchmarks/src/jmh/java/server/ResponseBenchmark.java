@@ -0,0 +1,94 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing responses with {@link ServerThread#send(Response)} into a
+ * socket that discards everything written to it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseBenchmark {
+
+	@Param({ "0", "1024", "65536" })
+	public int bodySize;
+
+	private ServerThread serverThread;
+	private byte[] body;
+
+	/**
+	 * Socket without connection, whose output goes nowhere.
+	 */
+	static class NullSocket extends Socket {
+		private final OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+
+		@Override
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		serverThread = new ServerThread(new NullSocket());
+		body = new byte[bodySize];
+	}
+
+	private Response response() {
+		HashMap<String, String> headers = new HashMap<>();
+		headers.put("Content-Type", "text/html");
+		headers.put("Last-Modified", "Fri, 31 Dec 1999 23:59:59 GMT");
+		headers.put("Connection", "keep-alive");
+		return new Response(200, headers, body, "HTTP/1.1");
+	}
+
+	@Benchmark
+	public Response createResponse() {
+		return response();
+	}
+
+	@Benchmark
+	public byte[] encodeHead() {
+		return response().getHead();
+	}
+
+	@Benchmark
+	public ByteBuffer encode() {
+		return ResponseEncoder.get().encode(response());
+	}
+
+	@Benchmark
+	public void send() throws IOException {
+		serverThread.send(response());
+	}
+}
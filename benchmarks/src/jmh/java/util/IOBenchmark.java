@@ -0,0 +1,103 @@
+package util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading HTTP-messages from an in-memory stream with {@link IO}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IOBenchmark {
+
+	/**
+	 * "http" reads through an HttpInputStream, "buffered" through a plain
+	 * BufferedInputStream.
+	 */
+	@Param({ "http", "buffered" })
+	public String stream;
+
+	@Param({ "1024", "65536" })
+	public int bodySize;
+
+	private byte[] line;
+	private byte[] head;
+	private byte[] plainBody;
+	private byte[] chunkedBody;
+	private HashMap<String, String> plainHeaders;
+	private HashMap<String, String> chunkedHeaders;
+	private HashMap<String, String> untilCloseHeaders;
+
+	@Setup
+	public void setUp() throws IOException {
+		line = "GET /some/rather/long/path/to/a/resource/index.html?query=string HTTP/1.1\r\n"
+				.getBytes(StandardCharsets.ISO_8859_1);
+		head = ("Host: localhost:8080\r\n" + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/56.0\r\n"
+				+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+				+ "Accept-Language: en-US,en;q=0.5\r\n" + "Accept-Encoding: gzip, deflate\r\n"
+				+ "Connection: keep-alive\r\n" + "If-Modified-Since: Fri, 31 Dec 1999 23:59:59 GMT\r\n"
+				+ "Cache-Control: max-age=0\r\n" + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+		plainBody = new byte[bodySize];
+		ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+		for (int offset = 0; offset < bodySize; offset += 4096) {
+			int size = Math.min(4096, bodySize - offset);
+			chunked.write((Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			chunked.write(plainBody, offset, size);
+			chunked.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		}
+		chunked.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		chunkedBody = chunked.toByteArray();
+
+		plainHeaders = new HashMap<>();
+		plainHeaders.put("Content-Length", Integer.toString(bodySize));
+		chunkedHeaders = new HashMap<>();
+		chunkedHeaders.put("Transfer-Encoding", "chunked");
+		untilCloseHeaders = new HashMap<>();
+	}
+
+	private BufferedInputStream open(byte[] bytes) {
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+		return "http".equals(stream) ? new HttpInputStream(in) : new BufferedInputStream(in);
+	}
+
+	@Benchmark
+	public String readLine() throws IOException {
+		return IO.readLine(open(line));
+	}
+
+	@Benchmark
+	public HashMap<String, String> readHeaders() throws IOException {
+		return IO.readHeaders(open(head));
+	}
+
+	@Benchmark
+	public byte[] readMessageContentLength() throws IOException {
+		return IO.readMessage(open(plainBody), plainHeaders);
+	}
+
+	@Benchmark
+	public byte[] readMessageChunked() throws IOException {
+		return IO.readMessage(open(chunkedBody), chunkedHeaders);
+	}
+
+	@Benchmark
+	public byte[] readMessageUntilClose() throws IOException {
+		return IO.readMessage(open(plainBody), untilCloseHeaders);
+	}
+}
@@ -0,0 +1,103 @@
+package client;
+
+/**
+ * Set of strings that takes about 1.2 bytes per element at a 1% false
+ * positive rate, whatever the length of the strings. An element that was
+ * added is always found; an element that was not added is found with the
+ * false positive rate the filter was sized for, which grows when more
+ * elements are added than expected.
+ */
+class BloomFilter {
+
+	private final long[] words;
+	private final long bits;
+	private final int hashes;
+
+	/**
+	 * @param expected
+	 *            Number of elements the filter is sized for
+	 * @param falsePositiveRate
+	 *            Rate of elements wrongly found once the expected number of
+	 *            elements is added, between 0 and 1
+	 */
+	BloomFilter(long expected, double falsePositiveRate) {
+		expected = Math.max(1, expected);
+		long size = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (size + 63) / 64));
+		this.words = new long[wordCount];
+		this.bits = (long) wordCount * 64;
+		this.hashes = Math.max(1, (int) Math.round((double) bits / expected * Math.log(2)));
+	}
+
+	/**
+	 * Adds the element.
+	 *
+	 * @param element
+	 * @return {@code true} if the element was certainly not in the filter
+	 *         yet
+	 */
+	synchronized boolean add(String element) {
+		long hash1 = hash(element);
+		// second hash for double hashing, odd so it reaches all bits
+		long hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L) | 1;
+		boolean added = false;
+		for (int i = 0; i < hashes; i++) {
+			long bit = Math.floorMod(hash1 + i * hash2, bits);
+			long mask = 1L << bit;
+			int word = (int) (bit >>> 6);
+			if ((words[word] & mask) == 0) {
+				words[word] |= mask;
+				added = true;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * @param element
+	 * @return {@code false} if the element was certainly never added
+	 */
+	synchronized boolean mightContain(String element) {
+		long hash1 = hash(element);
+		long hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = Math.floorMod(hash1 + i * hash2, bits);
+			if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Number of bits of the filter
+	 */
+	long getBits() {
+		return bits;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the characters, mixed so all bits depend on all
+	 * characters.
+	 */
+	private static long hash(String element) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < element.length(); i++) {
+			hash ^= element.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Finalization step of MurmurHash3.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
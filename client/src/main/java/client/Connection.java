@@ -1,27 +1,63 @@
 package client;
 
+import util.BufferPool;
+import util.HttpInputStream;
+import util.HttpParser;
 import util.Method;
+import util.PooledOutputStream;
 
 import java.io.BufferedInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import static util.IO.*;
 
 class Connection {
+	/**
+	 * Size of the buffers of the socket streams, borrowed from
+	 * {@link BufferPool#heap()} until the connection is closed.
+	 */
+	private static final int STREAM_BUFFER_BYTES = 8192;
+
 	private final String host;
 	private final int port;
 	private Socket clientSocket;
 	private DataOutputStream outToServer;
 	private BufferedInputStream inFromServer;
+	private final HttpParser parser = new HttpParser();
 	private boolean closed = false;
 	private int nbRedirects = 0;
+	private final ConnectionPool pool;
+	private final HttpCache cache;
+	private long lastUsed;
 
 	Connection(String host, int port) {
+		this(host, port, null);
+	}
+
+	/**
+	 * Opens a connection that belongs to the given pool. Requests for other
+	 * hosts (e.g. after a redirect) are executed on connections of the pool,
+	 * and responses are served from the cache of the pool, if it has one.
+	 *
+	 * @param host
+	 * @param port
+	 * @param pool
+	 *            Pool the connection belongs to, or {@code null}
+	 */
+	Connection(String host, int port, ConnectionPool pool) {
 		this.host = host;
 		this.port = port;
+		this.pool = pool;
+		this.cache = pool == null ? null : pool.getCache();
 
 		initialize();
 	}
@@ -29,21 +65,278 @@ class Connection {
 	void initialize() {
 		try {
 			clientSocket = new Socket(getHost(), getPort());
-			outToServer = new DataOutputStream(clientSocket.getOutputStream());
-			inFromServer = new BufferedInputStream(clientSocket.getInputStream());
+			outToServer = new DataOutputStream(
+					new PooledOutputStream(clientSocket.getOutputStream(), BufferPool.heap(), STREAM_BUFFER_BYTES));
+			inFromServer = new HttpInputStream(clientSocket.getInputStream(), BufferPool.heap(), STREAM_BUFFER_BYTES);
+			closed = false;
+			touch();
 		} catch (IOException e) {
 			e.printStackTrace();
+			closed = true;
 		}
 	}
 
 	Response execute(Request request) throws IOException {
+		return execute(request, null);
+	}
+
+	/**
+	 * Executes the request, saving the body of the response while it is
+	 * read if a path is given. A fresh body in the cache is served without
+	 * asking the server, a stale one is only downloaded again if it changed.
+	 *
+	 * @param request
+	 * @param path
+	 *            Directory the body is saved in, or {@code null} to keep the
+	 *            body in memory
+	 * @return The response, after following redirects
+	 * @throws IOException
+	 */
+	Response execute(Request request, String path) throws IOException {
 		// Check if hosts and port of request matches these of the connection
 		if (!(this.getHost().equals(request.getHost()) && this.getPort() == request.getPort())) {
+			if (pool != null) {
+				Connection connection = pool.acquire(request.getHost(), request.getPort());
+				try {
+					return connection.execute(request, path);
+				} catch (IOException e) {
+					// the state of the connection is unknown
+					connection.close();
+					throw e;
+				} finally {
+					pool.release(connection);
+				}
+			}
 			this.close();
 			Connection connection = new Connection(request.getHost(), request.getPort());
-			return connection.execute(request);
+			return connection.execute(request, path);
 		}
 
+		HttpCache.Entry cached = cache == null ? null : cache.get(request);
+		if (cached != null && cached.isFresh()) {
+			Response response = restore(request, cached, path);
+			if (response != null) {
+				System.out.println("CACHE - " + request.getHost() + request.getFile() + " served from the cache.\n");
+				return response;
+			}
+			cached = null;
+		}
+		Request sent = cached == null ? request : cached.conditional(request);
+		if (closed) {
+			initialize();
+		}
+		writeRequest(sent);
+		outToServer.flush();
+		Response response = readResponse(sent, path);
+		if (cached != null && response.getStatusCode() == 304) {
+			cache.revalidated(cached, response.getHeaders());
+			Response restored = restore(request, cached, path);
+			if (restored != null) {
+				System.out.println("CACHE - " + request.getHost() + request.getFile() + " not modified, served from the cache.\n");
+				return restored;
+			}
+			// the copy is gone, ask for the body
+			return execute(request, path);
+		}
+		if (cache != null) {
+			cache.update(request, response);
+		}
+		return followRedirect(request, response, path);
+	}
+
+	/**
+	 * Serves the response to the request from the cache.
+	 *
+	 * @param request
+	 * @param cached
+	 *            Entry of the URL of the request
+	 * @param path
+	 *            Directory the body is saved in, or {@code null}
+	 * @return The response, or {@code null} if the body is not on disk
+	 *         anymore
+	 */
+	private Response restore(Request request, HttpCache.Entry cached, String path) {
+		Response response = new Response(200, cached.getHeaders(), request.getHost(), request.getPort(),
+				request.getFile());
+		try {
+			response.restore(cached.getFile(), path, request);
+			return response;
+		} catch (IOException e) {
+			// e.g. evicted in the meantime
+			cache.remove(request);
+			return null;
+		}
+	}
+
+	/**
+	 * Executes a GET request, downloading a body larger than
+	 * {@code partBytes} in ranged requests that run in parallel on this
+	 * connection and on other connections of the pool. The parts are written
+	 * into the file the body is saved as. Other requests, and responses of
+	 * servers that do not support ranges, are executed as usual.
+	 *
+	 * @param request
+	 * @param path
+	 *            Directory the body is saved in
+	 * @param executor
+	 *            Runs the requests on the other connections
+	 * @param helpers
+	 *            Maximum number of other connections used
+	 * @param partBytes
+	 *            Size of the ranges
+	 * @return Response with the whole body
+	 * @throws IOException
+	 *             If a range could not be downloaded after
+	 *             {@link RangedDownload#MAX_ATTEMPTS} attempts
+	 */
+	Response executeRanged(Request request, String path, Executor executor, int helpers, long partBytes)
+			throws IOException {
+		if (request.getMethod() != Method.GET || request.getHeader("Range") != null
+				|| !(this.getHost().equals(request.getHost()) && this.getPort() == request.getPort())
+				|| (cache != null && cache.get(request) != null)) {
+			// a cached body is revalidated as a whole
+			return execute(request, path);
+		}
+		Request first = new Request(Method.GET, request.getHost(), request.getPort(), request.getFile());
+		first.setHeader("Range", "bytes=0-" + (partBytes - 1));
+		// a body that fits in the first part is scanned while it arrives
+		first.copyListeners(request);
+		Response response = execute(first, path);
+		if (response.getStatusCode() != 206 || response.getSavedFile() == null) {
+			// ranges not supported, the response of a redirect, or a body
+			// that could not be saved
+			return response;
+		}
+		long[] range = RangedDownload.parseContentRange(response.getHeaders().get("Content-Range"));
+		if (range == null || range[0] != 0 || response.getSavedFile().length() != range[1] + 1) {
+			// the body cannot be assembled from this response
+			response.getSavedFile().delete();
+			return execute(request, path);
+		}
+		RangedDownload download = new RangedDownload(request, response, range, partBytes);
+		if (pool != null) {
+			int count = Math.min(helpers, download.getRemainingParts() - 1);
+			for (int i = 0; i < count; i++) {
+				executor.execute(() -> {
+					Connection connection;
+					try {
+						connection = pool.acquire(request.getHost(), request.getPort());
+					} catch (IOException e) {
+						return;
+					}
+					try {
+						download.run(connection);
+					} finally {
+						pool.release(connection);
+					}
+				});
+			}
+		}
+		Response complete = download.complete(this);
+		if (cache != null) {
+			cache.update(request, complete);
+		}
+		return complete;
+	}
+
+	/**
+	 * Executes a request for a part of a {@link RangedDownload}. The body of
+	 * a partial response is kept in memory, as it is at most one part. A 200
+	 * response, sent when If-Range did not match, carries the whole new body,
+	 * so it is saved in the given file while it is read.
+	 *
+	 * @param request
+	 *            Ranged request for the host and port of this connection
+	 * @param whole
+	 *            File the body of a 200 response is saved in
+	 * @return The response read, redirects are not followed
+	 * @throws IOException
+	 */
+	Response executePart(Request request, File whole) throws IOException {
+		if (closed) {
+			initialize();
+		}
+		writeRequest(request);
+		outToServer.flush();
+		return readResponse(request, null, whole);
+	}
+
+	/**
+	 * Executes requests for the host of this connection pipelined: all
+	 * requests are written back-to-back before the responses are read in
+	 * order. Only GET and HEAD requests are pipelined. When the server closes
+	 * the connection or fails in the middle of the pipeline, the remaining
+	 * requests are executed one by one on a new connection.
+	 *
+	 * @param requests
+	 *            Requests for the host and port of this connection
+	 * @param paths
+	 *            Directories the bodies of the responses are saved in, in
+	 *            the order of the requests
+	 * @return Responses in the order of the requests
+	 * @throws IOException
+	 */
+	List<Response> executePipelined(List<Request> requests, List<String> paths) throws IOException {
+		Response[] responses = new Response[requests.size()];
+		ArrayList<Integer> pipeline = new ArrayList<>();
+		for (int i = 0; i < requests.size(); i++) {
+			Method method = requests.get(i).getMethod();
+			if ((method == Method.GET || method == Method.HEAD)
+					&& (cache == null || cache.get(requests.get(i)) == null)) {
+				pipeline.add(i);
+			} else {
+				// non-idempotent requests cannot be repeated safely after a
+				// failure, cached ones may not need the server
+				responses[i] = execute(requests.get(i), paths.get(i));
+			}
+		}
+		if (!pipeline.isEmpty()) {
+			if (closed) {
+				initialize();
+			}
+			for (int i : pipeline) {
+				writeRequest(requests.get(i));
+			}
+			outToServer.flush();
+
+			int read = 0;
+			try {
+				while (read < pipeline.size() && !closed) {
+					int i = pipeline.get(read);
+					responses[i] = readResponse(requests.get(i), paths.get(i));
+					read++;
+				}
+			} catch (IOException e) {
+				// the server stopped answering in the middle of the pipeline
+				System.out.println("CONNECTION - Pipeline to " + getHost() + " broken, continuing without pipelining.\n");
+				if (!closed) {
+					close();
+				}
+			}
+			for (int j = 0; j < pipeline.size(); j++) {
+				int i = pipeline.get(j);
+				if (j < read) {
+					if (cache != null) {
+						cache.update(requests.get(i), responses[i]);
+					}
+					responses[i] = followRedirect(requests.get(i), responses[i], paths.get(i));
+				} else {
+					// execute the requests the server did not answer one by
+					// one
+					responses[i] = execute(requests.get(i), paths.get(i));
+				}
+			}
+		}
+		return Arrays.asList(responses);
+	}
+
+	/**
+	 * Writes the request to the server, without flushing.
+	 *
+	 * @param request
+	 * @throws IOException
+	 */
+	private void writeRequest(Request request) throws IOException {
 		// Write initial line and header
 		outToServer.writeBytes(request.getInitialLineAndHeader());
 
@@ -51,37 +344,99 @@ class Connection {
 		if (request.getMethod() == Method.PUT || request.getMethod() == Method.POST) {
 			outToServer.writeBytes(request.getBody());
 		}
+	}
+
+	/**
+	 * Reads the response to the given request from the server. Closes the
+	 * connection if the server asks to.
+	 *
+	 * @param request
+	 * @param path
+	 *            Directory the body is saved in while it is read, or
+	 *            {@code null} to keep the body in memory
+	 * @return The response read
+	 * @throws IOException
+	 */
+	private Response readResponse(Request request, String path) throws IOException {
+		return readResponse(request, path, null);
+	}
 
-		// Generate response
-		int statusCode = Integer.parseInt(readLine(inFromServer).split(" ")[1]);
+	/**
+	 * Reads the response to the given request from the server, saving the
+	 * body of a 200 response in the given file.
+	 *
+	 * @param request
+	 * @param path
+	 *            Directory the body is saved in while it is read, or
+	 *            {@code null} to keep the body in memory
+	 * @param whole
+	 *            File the body of a 200 response is saved in, or
+	 *            {@code null}
+	 * @return The response read
+	 * @throws IOException
+	 */
+	private Response readResponse(Request request, String path, File whole) throws IOException {
+		parser.reset(HttpParser.Mode.RESPONSE);
+		readHead(inFromServer, parser);
+		int statusCode = parser.getStatusCode();
 		// Process status code 100
 		if (statusCode == 100) {
-			// Read empty newline
-			readLine(inFromServer);
 			// Print status
 			System.out.println("CONNECTION - client.Response with status code 100 received. Continuing...");
 			System.out.println();
-			// Read new statuscode
-			statusCode = Integer.parseInt(readLine(inFromServer).split(" ")[1]);
+			// Read new status line and headers
+			parser.reset(HttpParser.Mode.RESPONSE);
+			readHead(inFromServer, parser);
+			statusCode = parser.getStatusCode();
 		}
 		// Continue with response
-		HashMap<String, String> headers = readHeaders(inFromServer);
+		HashMap<String, String> headers = parser.getHeaders();
 		Response response;
-		if (request.getMethod() != Method.HEAD) {
-			byte[] body = readMessage(inFromServer, headers);
+		if (request.getMethod() != Method.HEAD && statusCode != 304 && statusCode != 204) {
+			// 304 and 204 responses have no body, whatever their headers say
+			if (whole != null && statusCode == 200) {
+				response = new Response(statusCode, headers, request.getHost(), request.getPort(), request.getFile());
+				response.receive(inFromServer, whole, request);
+			} else if (path != null && !Response.isRedirect(statusCode, headers)) {
+				// the body goes to disk as it arrives, whatever its size
+				response = new Response(statusCode, headers, request.getHost(), request.getPort(), request.getFile());
+				response.receive(inFromServer, path, request);
+			} else {
+				byte[] body = readMessage(inFromServer, headers);
+				response = new Response(statusCode, headers, body, request.getHost(), request.getPort(),
+						request.getFile());
+			}
 			if (headers.containsKey("Transfer-Encoding") && "chunked".equals(headers.get("Transfer-Encoding"))) {
 				// read (optional) footers
 				HashMap<String, String> footers = readHeaders(inFromServer);
 				headers.putAll(footers);
 			}
-			response = new Response(statusCode, headers, body, request.getHost(), request.getPort(), request.getFile());
 		} else {
 			response = new Response(statusCode, headers, request.getHost(), request.getPort(), request.getFile());
 		}
 
+		if (headers.containsKey("Connection") && headers.get("Connection").equalsIgnoreCase("close")) {
+			close();
+		}
+		return response;
+	}
+
+	/**
+	 * Executes the request the response redirects to, if any.
+	 *
+	 * @param request
+	 *            Request the response belongs to
+	 * @param response
+	 * @param path
+	 *            Directory the body of the redirected response is saved in,
+	 *            or {@code null}
+	 * @return Response to the redirected request, or the given response if
+	 *         it is no redirect
+	 * @throws IOException
+	 */
+	private Response followRedirect(Request request, Response response, String path) throws IOException {
 		// Redirect if needed
-		if (String.valueOf(response.getStatusCode()).charAt(0) == '3'
-				&& response.getHeaders().containsKey("Location")) {
+		if (Response.isRedirect(response.getStatusCode(), response.getHeaders())) {
 			if (nbRedirects > 10) {
 				// break endless loops of redirects
 				return response;
@@ -90,6 +445,7 @@ class Connection {
 				System.out.println("CONNECTION - Page moved, redirecting to new location.\n");
 				// Generate new request
 				Request newRequest = new Request(request.getMethod(), response.getRedirectLocation());
+				newRequest.copyListeners(request);
 
 				// only execute new request when host and file are not the same
 				// as the current request
@@ -98,25 +454,24 @@ class Connection {
 				}
 
 				// Execute new request and make sure to return that response
-				response = this.execute(newRequest);
+				response = this.execute(newRequest, path);
 			}
 		} else {
 			// reset nbRedirects count
 			nbRedirects = 0;
 		}
-
-		if (headers.containsKey("client.Connection") && headers.get("client.Connection").equals("close")) {
-			this.closed = true;
-			close();
-		}
-
 		return response;
 	}
 
 	void close() {
+		closed = true;
 		try {
-			outToServer.close();
-			inFromServer.close();
+			try {
+				outToServer.close();
+			} finally {
+				// gives the buffers back to the pool
+				inFromServer.close();
+			}
 			clientSocket.close();
 			System.out.println("CONNECTION - client.Connection to " + getHost() + " at port " + getPort() + " closed.\n");
 		} catch (IOException e) {
@@ -135,4 +490,46 @@ class Connection {
 	boolean isClosed() {
 		return this.closed;
 	}
+
+	/**
+	 * Checks if the connection can still be used: the server has not closed
+	 * it and no unexpected bytes are waiting to be read.
+	 *
+	 * @return {@code true} if a request can be sent over the connection
+	 */
+	boolean isHealthy() {
+		if (closed || clientSocket.isClosed() || clientSocket.isInputShutdown()) {
+			return false;
+		}
+		try {
+			if (inFromServer.available() > 0) {
+				// bytes that do not belong to any request
+				return false;
+			}
+			// a closed connection is readable immediately
+			clientSocket.setSoTimeout(1);
+			try {
+				// either the end of the stream or unexpected bytes
+				inFromServer.read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} finally {
+				clientSocket.setSoTimeout(0);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Records that the connection was used just now.
+	 */
+	void touch() {
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	long getLastUsed() {
+		return this.lastUsed;
+	}
 }
\ No newline at end of file
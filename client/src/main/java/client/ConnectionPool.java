@@ -0,0 +1,208 @@
+package client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Keeps persistent connections open for reuse, keyed by host and port. The
+ * number of connections is limited per host and in total; a caller that
+ * exceeds a limit waits until a connection is released.
+ */
+class ConnectionPool {
+
+	private final int maxPerHost;
+	private final int maxTotal;
+	private final long idleTimeout;
+	private final HttpCache cache;
+
+	private final HashMap<String, ArrayDeque<Connection>> idle = new HashMap<>();
+	private final HashMap<String, Integer> openPerHost = new HashMap<>();
+	private int openTotal;
+	private boolean closed;
+
+	/**
+	 * @param maxPerHost
+	 *            Maximum number of open connections to a single host
+	 * @param maxTotal
+	 *            Maximum number of open connections
+	 * @param idleTimeout
+	 *            Milliseconds after which an unused connection is closed
+	 */
+	ConnectionPool(int maxPerHost, int maxTotal, long idleTimeout) {
+		this(maxPerHost, maxTotal, idleTimeout, null);
+	}
+
+	/**
+	 * @param maxPerHost
+	 *            Maximum number of open connections to a single host
+	 * @param maxTotal
+	 *            Maximum number of open connections
+	 * @param idleTimeout
+	 *            Milliseconds after which an unused connection is closed
+	 * @param cache
+	 *            Cache the connections serve responses from, or {@code null}
+	 */
+	ConnectionPool(int maxPerHost, int maxTotal, long idleTimeout, HttpCache cache) {
+		this.maxPerHost = maxPerHost;
+		this.maxTotal = maxTotal;
+		this.idleTimeout = idleTimeout;
+		this.cache = cache;
+	}
+
+	/**
+	 * @return Cache of the responses, or {@code null}
+	 */
+	HttpCache getCache() {
+		return cache;
+	}
+
+	private static String key(String host, int port) {
+		return host + ":" + port;
+	}
+
+	/**
+	 * Checks out a connection to the given host, reusing an idle one if it is
+	 * still healthy. The connection has to be given back with
+	 * {@link #release(Connection)}.
+	 *
+	 * @param host
+	 * @param port
+	 * @return Open connection to the host
+	 * @throws IOException
+	 *             If no connection could be opened, or the wait for a free
+	 *             connection was interrupted
+	 */
+	Connection acquire(String host, int port) throws IOException {
+		String key = key(host, port);
+		while (true) {
+			Connection reused = null;
+			synchronized (this) {
+				while (true) {
+					if (closed) {
+						throw new IOException("Connection pool is closed");
+					}
+					evictIdle();
+					ArrayDeque<Connection> connections = idle.get(key);
+					if (connections != null && !connections.isEmpty()) {
+						reused = connections.pollFirst();
+						break;
+					}
+					if (openPerHost.getOrDefault(key, 0) < maxPerHost) {
+						if (openTotal >= maxTotal) {
+							// make room by closing an idle connection to
+							// another host
+							closeEldestIdle();
+						}
+						if (openTotal < maxTotal) {
+							openPerHost.merge(key, 1, Integer::sum);
+							openTotal++;
+							break;
+						}
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for a connection to " + key);
+					}
+				}
+			}
+			if (reused == null) {
+				break;
+			}
+			// checked outside of the lock, as the check blocks for a moment
+			if (reused.isHealthy()) {
+				return reused;
+			}
+			synchronized (this) {
+				discard(reused);
+			}
+		}
+		// connect outside of the lock
+		Connection connection = new Connection(host, port, this);
+		if (connection.isClosed()) {
+			synchronized (this) {
+				forget(key);
+			}
+			throw new IOException("Could not connect to " + key);
+		}
+		return connection;
+	}
+
+	/**
+	 * Gives a connection back to the pool. Connections that were closed are
+	 * forgotten, others are kept for reuse.
+	 *
+	 * @param connection
+	 */
+	synchronized void release(Connection connection) {
+		if (closed || connection.isClosed()) {
+			discard(connection);
+			return;
+		}
+		connection.touch();
+		idle.computeIfAbsent(key(connection.getHost(), connection.getPort()), k -> new ArrayDeque<>())
+				.addFirst(connection);
+		notifyAll();
+	}
+
+	/**
+	 * Closes all idle connections and refuses further checkouts.
+	 */
+	synchronized void close() {
+		closed = true;
+		for (ArrayDeque<Connection> connections : idle.values()) {
+			for (Connection connection : connections) {
+				discard(connection);
+			}
+		}
+		idle.clear();
+		notifyAll();
+	}
+
+	private void evictIdle() {
+		long limit = System.currentTimeMillis() - idleTimeout;
+		for (ArrayDeque<Connection> connections : idle.values()) {
+			Iterator<Connection> iterator = connections.descendingIterator();
+			while (iterator.hasNext()) {
+				Connection connection = iterator.next();
+				if (connection.getLastUsed() >= limit) {
+					// the remaining connections were used more recently
+					break;
+				}
+				iterator.remove();
+				discard(connection);
+			}
+		}
+	}
+
+	private void closeEldestIdle() {
+		Connection eldest = null;
+		for (ArrayDeque<Connection> connections : idle.values()) {
+			Connection candidate = connections.peekLast();
+			if (candidate != null && (eldest == null || candidate.getLastUsed() < eldest.getLastUsed())) {
+				eldest = candidate;
+			}
+		}
+		if (eldest != null) {
+			idle.get(key(eldest.getHost(), eldest.getPort())).removeLast();
+			discard(eldest);
+		}
+	}
+
+	private void discard(Connection connection) {
+		if (!connection.isClosed()) {
+			connection.close();
+		}
+		forget(key(connection.getHost(), connection.getPort()));
+	}
+
+	private void forget(String key) {
+		openPerHost.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+		openTotal--;
+		notifyAll();
+	}
+}
@@ -0,0 +1,131 @@
+package client;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Follows the links of pages, starting from one page, and saves every page
+ * it fetches. The pages are taken from a {@link Frontier} by a number of
+ * workers that each fetch one page at a time on a connection of the pool.
+ * The links of a page are added to the frontier while its body is received.
+ */
+class Crawler {
+
+	private final ConnectionPool pool;
+	private final Frontier frontier;
+	private final int workers;
+	private final boolean resources;
+	private final String path;
+
+	private final AtomicLong fetched = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param pool
+	 *            Pool providing the connections
+	 * @param frontier
+	 *            URLs to fetch
+	 * @param workers
+	 *            Number of pages fetched at the same time
+	 * @param resources
+	 *            Whether the resources embedded in the pages are fetched too,
+	 *            at the depth of the page
+	 * @param path
+	 *            Directory the pages are saved in, in a subdirectory per host
+	 */
+	Crawler(ConnectionPool pool, Frontier frontier, int workers, boolean resources, String path) {
+		this.pool = pool;
+		this.frontier = frontier;
+		this.workers = workers;
+		this.resources = resources;
+		this.path = path;
+	}
+
+	/**
+	 * Crawls from the start page until the frontier is empty.
+	 *
+	 * @param start
+	 *            Start page
+	 * @throws InterruptedException
+	 */
+	void crawl(Request start) throws InterruptedException {
+		frontier.add(start, 0);
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(workers, task -> {
+			Thread thread = new Thread(task, "crawl-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		long began = System.nanoTime();
+		try {
+			for (int i = 0; i < workers; i++) {
+				executor.execute(this::work);
+			}
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// wait for the workers to run out of pages
+			}
+		} finally {
+			frontier.stop();
+			executor.shutdownNow();
+		}
+		long millis = (System.nanoTime() - began) / 1000000;
+		System.out.println("CRAWLER - " + fetched.get() + " pages fetched, " + failed.get() + " failed, on "
+				+ frontier.getHosts() + " hosts in " + millis + " ms; " + frontier.getSkipped()
+				+ " links beyond the limits");
+	}
+
+	private void work() {
+		try {
+			Frontier.Entry entry;
+			while ((entry = frontier.take()) != null) {
+				try {
+					fetch(entry);
+				} finally {
+					frontier.done(entry);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Fetches and saves the page, and adds the URLs it refers to to the
+	 * frontier.
+	 */
+	private void fetch(Frontier.Entry entry) {
+		Request request = entry.getRequest();
+		int depth = entry.getDepth();
+		request.setLinkListener(link -> frontier.add(link, depth + 1));
+		if (resources) {
+			request.setResourceListener(resource -> frontier.add(resource, depth));
+		}
+		String directory = path + "/" + request.getHost() + (request.getPort() == 80 ? "" : "_" + request.getPort());
+		try {
+			// one request at a time per host, so no ranged requests
+			Connection connection = pool.acquire(request.getHost(), request.getPort());
+			Response response;
+			try {
+				response = connection.execute(request, directory);
+			} catch (IOException e) {
+				// the state of the connection is unknown
+				connection.close();
+				throw e;
+			} finally {
+				pool.release(connection);
+			}
+			response.save(directory);
+			fetched.incrementAndGet();
+			System.out.println("CRAWLER - " + response.getStatusCode() + " " + request.getHost() + request.getFile()
+					+ " (depth " + depth + ")");
+		} catch (IOException | RuntimeException e) {
+			failed.incrementAndGet();
+			System.err.println("Could not fetch " + request.getHost() + request.getFile() + ": " + e);
+		}
+	}
+}
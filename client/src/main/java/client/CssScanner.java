@@ -0,0 +1,168 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Finds the URLs in a style sheet, in {@code url(...)} and
+ * {@code @import "..."}, while its bytes arrive. Comments and other strings
+ * are skipped. Only the URL being read is buffered, up to
+ * {@link #MAX_URL_BYTES}; longer URLs (e.g. data URLs) are dropped.
+ */
+class CssScanner {
+
+	static final int MAX_URL_BYTES = 8192;
+
+	private static final byte[] URL = "url(".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] IMPORT = "@import".getBytes(StandardCharsets.ISO_8859_1);
+
+	private enum State {
+		NORMAL, COMMENT, STRING, URL_START, URL, IMPORT_START
+	}
+
+	private final Consumer<String> listener;
+	private final ByteArrayOutputStream url = new ByteArrayOutputStream();
+	private State state = State.NORMAL;
+	private int previous = -1;
+	private int urlMatched;
+	private int importMatched;
+	/**
+	 * Quote that ends the current string.
+	 */
+	private int quote;
+	private boolean escaped;
+	/**
+	 * Whether the current string is a URL.
+	 */
+	private boolean capture;
+
+	/**
+	 * @param listener
+	 *            Receives every URL found, as written in the style sheet
+	 */
+	CssScanner(Consumer<String> listener) {
+		this.listener = listener;
+	}
+
+	void scan(byte[] b, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			scan(b[i] & 0xff);
+		}
+	}
+
+	void scan(int b) {
+		switch (state) {
+		case NORMAL:
+			normal(b);
+			break;
+		case COMMENT:
+			if (previous == '*' && b == '/') {
+				state = State.NORMAL;
+				// the slash does not start another comment
+				b = -1;
+			}
+			break;
+		case STRING:
+			if (escaped) {
+				escaped = false;
+				if (capture) {
+					append(b);
+				}
+			} else if (b == '\\') {
+				escaped = true;
+			} else if (b == quote) {
+				if (capture) {
+					emit();
+				}
+				state = State.NORMAL;
+			} else if (b == '\n') {
+				// unterminated string
+				url.reset();
+				state = State.NORMAL;
+			} else if (capture) {
+				append(b);
+			}
+			break;
+		case URL_START:
+			if (b == '"' || b == '\'') {
+				startString(b, true);
+			} else if (b == ')') {
+				state = State.NORMAL;
+			} else if (!isWhitespace(b)) {
+				url.reset();
+				append(b);
+				state = State.URL;
+			}
+			break;
+		case URL:
+			if (b == ')' || isWhitespace(b)) {
+				emit();
+				state = State.NORMAL;
+			} else {
+				append(b);
+			}
+			break;
+		case IMPORT_START:
+			if (b == '"' || b == '\'') {
+				startString(b, true);
+			} else if (!isWhitespace(b)) {
+				// url(...) or something else
+				state = State.NORMAL;
+				normal(b);
+			}
+			break;
+		}
+		previous = b;
+	}
+
+	private void normal(int b) {
+		if (previous == '/' && b == '*') {
+			state = State.COMMENT;
+			urlMatched = 0;
+			importMatched = 0;
+			return;
+		}
+		if (b == '"' || b == '\'') {
+			startString(b, false);
+			urlMatched = 0;
+			importMatched = 0;
+			return;
+		}
+		int lower = Character.toLowerCase(b);
+		urlMatched = lower == URL[urlMatched] ? urlMatched + 1 : (lower == URL[0] ? 1 : 0);
+		importMatched = lower == IMPORT[importMatched] ? importMatched + 1 : (lower == IMPORT[0] ? 1 : 0);
+		if (urlMatched == URL.length) {
+			urlMatched = 0;
+			state = State.URL_START;
+		} else if (importMatched == IMPORT.length) {
+			importMatched = 0;
+			state = State.IMPORT_START;
+		}
+	}
+
+	private void startString(int b, boolean capture) {
+		url.reset();
+		quote = b;
+		escaped = false;
+		this.capture = capture;
+		state = State.STRING;
+	}
+
+	private void append(int b) {
+		if (url.size() <= MAX_URL_BYTES) {
+			url.write(b);
+		}
+	}
+
+	private void emit() {
+		if (url.size() > 0 && url.size() <= MAX_URL_BYTES) {
+			listener.accept(new String(url.toByteArray(), StandardCharsets.UTF_8).trim());
+		}
+		url.reset();
+	}
+
+	static boolean isWhitespace(int b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+	}
+}
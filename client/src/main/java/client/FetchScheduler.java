@@ -0,0 +1,192 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches requests concurrently and saves each response while it is
+ * received. At most {@code maxConcurrency} requests run at the same time,
+ * and at most {@code maxPerHost} of them to the same host; the others wait
+ * in a queue per host. Queued requests for the same host are sent in
+ * pipelined batches of up to {@code pipelineDepth} requests.
+ */
+class FetchScheduler {
+
+	/**
+	 * Request waiting to be fetched, with the directory to save it to.
+	 */
+	private static class Fetch {
+		private final Request request;
+		private final String path;
+
+		Fetch(Request request, String path) {
+			this.request = request;
+			this.path = path;
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final int maxPerHost;
+	private final int pipelineDepth;
+	private final ExecutorService executor;
+
+	private final HashMap<String, ArrayDeque<Fetch>> queued = new HashMap<>();
+	private final HashMap<String, Integer> running = new HashMap<>();
+	private int unfinished;
+
+	/**
+	 * @param pool
+	 *            Pool providing the connections
+	 * @param maxConcurrency
+	 *            Maximum number of requests running at the same time
+	 * @param maxPerHost
+	 *            Maximum number of batches running at the same time per host
+	 * @param pipelineDepth
+	 *            Maximum number of requests pipelined on one connection, 1
+	 *            disables pipelining
+	 */
+	FetchScheduler(ConnectionPool pool, int maxConcurrency, int maxPerHost, int pipelineDepth) {
+		this.pool = pool;
+		this.maxPerHost = maxPerHost;
+		this.pipelineDepth = Math.max(1, pipelineDepth);
+		AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(maxConcurrency, task -> {
+			Thread thread = new Thread(task, "fetch-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Schedules the request. Its response is saved under the given path.
+	 *
+	 * @param request
+	 * @param path
+	 *            Directory to save the response in
+	 */
+	synchronized void submit(Request request, String path) {
+		String host = request.getHost() + ":" + request.getPort();
+		queued.computeIfAbsent(host, k -> new ArrayDeque<>()).add(new Fetch(request, path));
+		unfinished++;
+		dispatch(host);
+	}
+
+	/**
+	 * Starts batches of queued requests for the host, as long as it has free
+	 * slots.
+	 *
+	 * @param host
+	 */
+	private void dispatch(String host) {
+		ArrayDeque<Fetch> fetches = queued.get(host);
+		while (fetches != null && !fetches.isEmpty() && running.getOrDefault(host, 0) < maxPerHost) {
+			// spread the queued requests over the free slots of the host
+			int slots = maxPerHost - running.getOrDefault(host, 0);
+			int size = Math.min(pipelineDepth, (fetches.size() + slots - 1) / slots);
+			ArrayList<Fetch> batch = new ArrayList<>();
+			while (batch.size() < size) {
+				batch.add(fetches.poll());
+			}
+			running.merge(host, 1, Integer::sum);
+			executor.execute(() -> run(host, batch));
+		}
+		if (fetches != null && fetches.isEmpty()) {
+			queued.remove(host);
+		}
+	}
+
+	private void run(String host, ArrayList<Fetch> batch) {
+		try {
+			if (batch.size() == 1) {
+				Fetch fetch = batch.get(0);
+				fetch(fetch.request, fetch.path).save(fetch.path);
+			} else {
+				ArrayList<Request> requests = new ArrayList<>();
+				ArrayList<String> paths = new ArrayList<>();
+				for (Fetch fetch : batch) {
+					requests.add(fetch.request);
+					paths.add(fetch.path);
+				}
+				List<Response> responses = fetchPipelined(requests, paths);
+				for (int i = 0; i < batch.size(); i++) {
+					responses.get(i).save(batch.get(i).path);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			for (Fetch fetch : batch) {
+				System.err.println("Could not fetch " + fetch.request.getHost() + fetch.request.getFile());
+			}
+			e.printStackTrace();
+		} finally {
+			finished(host, batch.size());
+		}
+	}
+
+	/**
+	 * Executes the request on a connection of the pool.
+	 *
+	 * @param request
+	 * @param path
+	 *            Directory the body is saved in while it is received
+	 * @return Response to the request
+	 * @throws IOException
+	 */
+	Response fetch(Request request, String path) throws IOException {
+		return Main.execute(pool, request, path);
+	}
+
+	/**
+	 * Executes requests for the same host pipelined on one connection of the
+	 * pool.
+	 *
+	 * @param requests
+	 * @param paths
+	 *            Directories the bodies are saved in while they are received
+	 * @return Responses in the order of the requests
+	 * @throws IOException
+	 */
+	List<Response> fetchPipelined(List<Request> requests, List<String> paths) throws IOException {
+		Request first = requests.get(0);
+		Connection connection = pool.acquire(first.getHost(), first.getPort());
+		try {
+			return connection.executePipelined(requests, paths);
+		} catch (IOException e) {
+			// the state of the connection is unknown
+			connection.close();
+			throw e;
+		} finally {
+			pool.release(connection);
+		}
+	}
+
+	private synchronized void finished(String host, int count) {
+		running.computeIfPresent(host, (k, batches) -> batches > 1 ? batches - 1 : null);
+		unfinished -= count;
+		dispatch(host);
+		notifyAll();
+	}
+
+	/**
+	 * Waits until all submitted requests are fetched and saved.
+	 *
+	 * @throws InterruptedException
+	 */
+	synchronized void awaitCompletion() throws InterruptedException {
+		while (unfinished > 0) {
+			wait();
+		}
+	}
+
+	/**
+	 * Stops the worker threads. Requests that are still queued are dropped.
+	 */
+	void shutdown() {
+		executor.shutdownNow();
+	}
+}
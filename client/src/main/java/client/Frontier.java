@@ -0,0 +1,225 @@
+package client;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * URLs a crawl still has to fetch. Pages closer to the start page are
+ * fetched first, pages found at the same depth in the order they were
+ * found.
+ *
+ * Every host has its own queue, and is polite: only one request to a host
+ * runs at a time, and the next one starts no sooner than the politeness
+ * delay after the previous one finished. Hosts that may be fetched from are
+ * ordered by the page they would serve next; the others wait in order of
+ * the time they become ready.
+ *
+ * URLs are recorded in a {@link BloomFilter}, so each is fetched once and
+ * the frontier takes constant memory for the URLs seen, however many. A
+ * small fraction of new URLs is mistaken for seen ones and skipped.
+ */
+class Frontier {
+
+	/**
+	 * URL waiting to be fetched, with the depth it was found at.
+	 */
+	static class Entry {
+		private final Request request;
+		private final int depth;
+		private final long sequence;
+		private final Host host;
+
+		private Entry(Request request, int depth, long sequence, Host host) {
+			this.request = request;
+			this.depth = depth;
+			this.sequence = sequence;
+			this.host = host;
+		}
+
+		Request getRequest() {
+			return request;
+		}
+
+		int getDepth() {
+			return depth;
+		}
+	}
+
+	private static final Comparator<Entry> PRIORITY = Comparator.<Entry> comparingInt(e -> e.depth)
+			.thenComparingLong(e -> e.sequence);
+
+	/**
+	 * Queue of a host, with the time the host may be fetched from again.
+	 */
+	private static class Host {
+		private final PriorityQueue<Entry> entries = new PriorityQueue<>(PRIORITY);
+		private long readyAt = System.nanoTime();
+		private boolean busy;
+		/**
+		 * Whether the host is in {@link #ready} or {@link #delayed}.
+		 */
+		private boolean scheduled;
+	}
+
+	private final int maxDepth;
+	private final int maxHosts;
+	private final long maxPages;
+	private final long delayNanos;
+	private final BloomFilter visited;
+
+	private final HashMap<String, Host> hosts = new HashMap<>();
+	private final PriorityQueue<Host> ready = new PriorityQueue<>(
+			(a, b) -> PRIORITY.compare(a.entries.peek(), b.entries.peek()));
+	private final PriorityQueue<Host> delayed = new PriorityQueue<>(
+			Comparator.comparingLong((Host host) -> host.readyAt));
+	private long sequence;
+	private long admitted;
+	private long skipped;
+	private int inFlight;
+	private boolean stopped;
+
+	/**
+	 * @param maxDepth
+	 *            Number of links followed from the start page
+	 * @param maxHosts
+	 *            Number of hosts crawled
+	 * @param maxPages
+	 *            Number of URLs fetched
+	 * @param delayMillis
+	 *            Time between the end of a request to a host and the start
+	 *            of the next one
+	 * @param visited
+	 *            Filter of the URLs seen
+	 */
+	Frontier(int maxDepth, int maxHosts, long maxPages, long delayMillis, BloomFilter visited) {
+		this.maxDepth = maxDepth;
+		this.maxHosts = maxHosts;
+		this.maxPages = maxPages;
+		this.delayNanos = delayMillis * 1000000;
+		this.visited = visited;
+	}
+
+	/**
+	 * Queues the URL of the request, unless it was seen before or exceeds
+	 * the limits of the crawl.
+	 *
+	 * @param request
+	 * @param depth
+	 *            Number of links followed to find the URL
+	 * @return {@code true} if the URL was queued
+	 */
+	synchronized boolean add(Request request, int depth) {
+		String hostKey = request.getHost() + ":" + request.getPort();
+		Host host = hosts.get(hostKey);
+		if (stopped || depth > maxDepth || admitted >= maxPages || (host == null && hosts.size() >= maxHosts)) {
+			skipped++;
+			return false;
+		}
+		if (!visited.add(hostKey + request.getFile())) {
+			return false;
+		}
+		if (host == null) {
+			host = new Host();
+			hosts.put(hostKey, host);
+		}
+		admitted++;
+		Entry entry = new Entry(request, depth, sequence++, host);
+		Entry head = host.entries.peek();
+		if (host.scheduled && head != null && PRIORITY.compare(entry, head) < 0 && ready.remove(host)) {
+			// the order of the ready hosts depends on their first entry
+			host.entries.add(entry);
+			ready.add(host);
+		} else {
+			host.entries.add(entry);
+		}
+		if (!host.busy && !host.scheduled) {
+			host.scheduled = true;
+			delayed.add(host);
+			notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until a host may be fetched from, and takes its next URL. The
+	 * URL has to be given back to {@link #done(Entry)} once it is fetched.
+	 *
+	 * @return The next URL, or {@code null} if the crawl is finished
+	 * @throws InterruptedException
+	 */
+	synchronized Entry take() throws InterruptedException {
+		while (true) {
+			long now = System.nanoTime();
+			Host host;
+			while ((host = delayed.peek()) != null && host.readyAt - now <= 0) {
+				ready.add(delayed.poll());
+			}
+			host = ready.poll();
+			if (host != null && !stopped) {
+				host.scheduled = false;
+				host.busy = true;
+				inFlight++;
+				return host.entries.poll();
+			}
+			if (stopped || (inFlight == 0 && delayed.isEmpty() && ready.isEmpty())) {
+				notifyAll();
+				return null;
+			}
+			if (delayed.isEmpty()) {
+				wait();
+			} else {
+				long nanos = delayed.peek().readyAt - now;
+				wait(Math.max(1, nanos / 1000000), 0);
+			}
+		}
+	}
+
+	/**
+	 * Marks the URL as fetched, so its host may be fetched from again after
+	 * the politeness delay.
+	 *
+	 * @param entry
+	 *            URL returned by {@link #take()}
+	 */
+	synchronized void done(Entry entry) {
+		Host host = entry.host;
+		host.busy = false;
+		host.readyAt = System.nanoTime() + delayNanos;
+		inFlight--;
+		if (!host.entries.isEmpty()) {
+			host.scheduled = true;
+			delayed.add(host);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Ends the crawl: no URLs are added or taken anymore.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return Number of URLs queued so far
+	 */
+	synchronized long getAdmitted() {
+		return admitted;
+	}
+
+	/**
+	 * @return Number of URLs skipped because of the limits of the crawl
+	 */
+	synchronized long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return Number of hosts crawled
+	 */
+	synchronized int getHosts() {
+		return hosts.size();
+	}
+}
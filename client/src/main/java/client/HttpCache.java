@@ -0,0 +1,412 @@
+package client;
+
+import util.Method;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the bodies of GET responses on disk, so they are not downloaded
+ * again by later requests or later runs of the client. An index in memory
+ * maps every URL to its file, its validators (Last-Modified and ETag) and
+ * the time until which it is fresh, from Cache-Control: max-age or Expires.
+ * A fresh body is served without contacting the server; a stale one is
+ * revalidated with a conditional request, and served from disk if the
+ * server answers 304 Not Modified.
+ *
+ * The bodies take at most {@code maxBytes}; the least recently used ones are
+ * evicted first. The index is written to the directory by {@link #close()}
+ * and read back when the cache is created.
+ */
+class HttpCache {
+
+	private static final String INDEX_FILE = "index";
+
+	/**
+	 * Body of a URL on disk, with the headers needed to revalidate and serve
+	 * it.
+	 */
+	static class Entry {
+		private final File file;
+		private final long size;
+		private final String contentType;
+		private String lastModified;
+		private String etag;
+		private long expires;
+
+		private Entry(File file, long size, String contentType, String lastModified, String etag, long expires) {
+			this.file = file;
+			this.size = size;
+			this.contentType = contentType;
+			this.lastModified = lastModified;
+			this.etag = etag;
+			this.expires = expires;
+		}
+
+		File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return Whether the body may be served without asking the server
+		 */
+		synchronized boolean isFresh() {
+			return System.currentTimeMillis() < expires;
+		}
+
+		/**
+		 * @return Headers of a response that serves the body
+		 */
+		synchronized HashMap<String, String> getHeaders() {
+			HashMap<String, String> headers = new HashMap<>();
+			headers.put("Content-Length", Long.toString(size));
+			if (contentType != null) {
+				headers.put("Content-Type", contentType);
+			}
+			if (lastModified != null) {
+				headers.put("Last-Modified", lastModified);
+			}
+			if (etag != null) {
+				headers.put("ETag", etag);
+			}
+			return headers;
+		}
+
+		/**
+		 * @return Request for the same URL that asks for the body only if it
+		 *         changed
+		 */
+		synchronized Request conditional(Request request) {
+			Request conditional = new Request(Method.GET, request.getHost(), request.getPort(), request.getFile());
+			conditional.copyListeners(request);
+			if (etag != null) {
+				conditional.setHeader("If-None-Match", etag);
+			}
+			if (lastModified != null) {
+				conditional.setHeader("If-Modified-Since", lastModified);
+			}
+			return conditional;
+		}
+	}
+
+	private final File directory;
+	private final long maxBytes;
+	/**
+	 * Entries by host, port and file, least recently used first.
+	 */
+	private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	private long nextId = System.currentTimeMillis() * 1000;
+
+	/**
+	 * Opens the cache in the given directory, with the entries of its index.
+	 *
+	 * @param directory
+	 *            Directory of the bodies and the index, created if needed
+	 * @param maxBytes
+	 *            Maximum total size of the bodies
+	 */
+	HttpCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+		load();
+	}
+
+	private static String key(Request request) {
+		return request.getHost() + ":" + request.getPort() + request.getFile();
+	}
+
+	/**
+	 * @return Whether the response to the request can come from the cache
+	 */
+	private static boolean isCacheable(Request request) {
+		// the index has a line per entry, with tab separated fields
+		return request.getMethod() == Method.GET && request.getHeader("Range") == null
+				&& request.getFile().indexOf('\t') == -1 && request.getFile().indexOf('\n') == -1;
+	}
+
+	/**
+	 * @param request
+	 * @return Cached body of the URL of the request, or {@code null}
+	 */
+	synchronized Entry get(Request request) {
+		return isCacheable(request) ? index.get(key(request)) : null;
+	}
+
+	/**
+	 * Forgets the URL of the request, e.g. because its file is gone.
+	 *
+	 * @param request
+	 */
+	synchronized void remove(Request request) {
+		Entry entry = index.remove(key(request));
+		if (entry != null) {
+			bytes -= entry.size;
+			entry.file.delete();
+		}
+	}
+
+	/**
+	 * Records the response to the request: a complete body of a GET request
+	 * is stored, unless the server forbids it. Requests that change a URL
+	 * remove it, and so does a new body that is not stored, as the stored one
+	 * is outdated.
+	 *
+	 * @param request
+	 * @param response
+	 *            Response to the request, before redirects are followed
+	 */
+	void update(Request request, Response response) {
+		if (request.getMethod() == Method.PUT || request.getMethod() == Method.POST) {
+			remove(request);
+			return;
+		}
+		if (request.getMethod() != Method.GET || response.getStatusCode() != 200) {
+			return;
+		}
+		HashMap<String, String> headers = response.getHeaders();
+		String cacheControl = headers.get("Cache-Control");
+		if (!isCacheable(request) || (cacheControl != null && cacheControl.toLowerCase().contains("no-store"))) {
+			remove(request);
+			return;
+		}
+		long expires = expires(headers, System.currentTimeMillis());
+		String lastModified = headers.get("Last-Modified");
+		String etag = headers.get("ETag");
+		if (lastModified == null && etag == null && expires <= System.currentTimeMillis()) {
+			// would never be served
+			remove(request);
+			return;
+		}
+		long size = response.getSavedFile() != null ? response.getSavedFile().length()
+				: (response.getBody() != null ? response.getBody().length : -1);
+		if (size < 0 || size > maxBytes) {
+			remove(request);
+			return;
+		}
+		File file;
+		synchronized (this) {
+			file = new File(directory, Long.toHexString(nextId++));
+		}
+		try {
+			if (response.getSavedFile() != null) {
+				// a copy, the user may change or delete the saved file
+				Files.copy(response.getSavedFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				Files.write(file.toPath(), response.getBody());
+			}
+		} catch (IOException e) {
+			System.err.println("CACHE - Could not store " + key(request) + ": " + e);
+			file.delete();
+			return;
+		}
+		Entry entry = new Entry(file, file.length(), headers.get("Content-Type"), lastModified, etag, expires);
+		synchronized (this) {
+			Entry previous = index.put(key(request), entry);
+			if (previous != null) {
+				bytes -= previous.size;
+				previous.file.delete();
+			}
+			bytes += entry.size;
+			evict();
+		}
+	}
+
+	/**
+	 * Takes the validators and freshness of a 304 response to a conditional
+	 * request for the entry.
+	 *
+	 * @param entry
+	 * @param headers
+	 *            Headers of the 304 response
+	 */
+	void revalidated(Entry entry, HashMap<String, String> headers) {
+		synchronized (entry) {
+			entry.expires = expires(headers, System.currentTimeMillis());
+			if (headers.containsKey("Last-Modified")) {
+				entry.lastModified = headers.get("Last-Modified");
+			}
+			if (headers.containsKey("ETag")) {
+				entry.etag = headers.get("ETag");
+			}
+		}
+	}
+
+	/**
+	 * Removes the least recently used entries until the bodies fit in the
+	 * size limit.
+	 */
+	private void evict() {
+		Iterator<Entry> entries = index.values().iterator();
+		while (bytes > maxBytes && entries.hasNext()) {
+			Entry eldest = entries.next();
+			entries.remove();
+			bytes -= eldest.size;
+			eldest.file.delete();
+		}
+	}
+
+	/**
+	 * Computes until when a response is fresh. Cache-Control: no-cache makes
+	 * it stale at once, max-age takes precedence over Expires. The Expires
+	 * date is taken relative to the Date of the response, so the clocks of
+	 * client and server need not agree.
+	 *
+	 * @param headers
+	 *            Headers of the response
+	 * @param now
+	 *            Time the response was received
+	 * @return Time in milliseconds until which the response is fresh
+	 */
+	static long expires(HashMap<String, String> headers, long now) {
+		String cacheControl = headers.get("Cache-Control");
+		if (cacheControl != null) {
+			long maxAge = -1;
+			for (String directive : cacheControl.toLowerCase().split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-cache")) {
+					return now;
+				}
+				if (directive.startsWith("max-age=")) {
+					try {
+						maxAge = Long.parseLong(directive.substring("max-age=".length()).trim());
+					} catch (NumberFormatException e) {
+						// invalid, so stale
+						return now;
+					}
+				}
+			}
+			if (maxAge >= 0) {
+				return now + maxAge * 1000;
+			}
+		}
+		String expires = headers.get("Expires");
+		if (expires != null) {
+			long date = parseDate(headers.get("Date"));
+			long until = parseDate(expires);
+			if (until == -1) {
+				return now;
+			}
+			return date == -1 ? until : now + (until - date);
+		}
+		return now;
+	}
+
+	/**
+	 * @return Date of a header in milliseconds, or -1 if it is missing or
+	 *         invalid
+	 */
+	private static long parseDate(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the index written by {@link #close()}, and deletes the files it
+	 * does not refer to.
+	 */
+	private void load() {
+		File indexFile = new File(directory, INDEX_FILE);
+		if (indexFile.exists()) {
+			try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					// key, file, content type, last modified, etag, expires
+					String[] fields = line.split("\t", -1);
+					if (fields.length != 6) {
+						continue;
+					}
+					File file = new File(directory, fields[1]);
+					if (!file.isFile()) {
+						continue;
+					}
+					try {
+						Entry entry = new Entry(file, file.length(), emptyToNull(fields[2]), emptyToNull(fields[3]),
+								emptyToNull(fields[4]), Long.parseLong(fields[5]));
+						index.put(fields[0], entry);
+						bytes += entry.size;
+					} catch (NumberFormatException e) {
+						// skip the line
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("CACHE - Could not read " + indexFile + ": " + e);
+			}
+		}
+		HashSet<File> files = new HashSet<>();
+		for (Entry entry : index.values()) {
+			files.add(entry.file);
+		}
+		File[] children = directory.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (!child.getName().equals(INDEX_FILE) && !files.contains(child)) {
+					child.delete();
+				}
+			}
+		}
+		evict();
+	}
+
+	private static String emptyToNull(String value) {
+		return value.isEmpty() ? null : value;
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+	/**
+	 * Writes the index to the directory, so the bodies are found by the next
+	 * run.
+	 */
+	synchronized void close() {
+		File indexFile = new File(directory, INDEX_FILE);
+		File temporary = new File(directory, INDEX_FILE + ".tmp");
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+				// least recently used first, so the order survives
+				for (Map.Entry<String, Entry> mapping : index.entrySet()) {
+					Entry entry = mapping.getValue();
+					synchronized (entry) {
+						writer.write(mapping.getKey() + "\t" + entry.file.getName() + "\t"
+								+ nullToEmpty(entry.contentType) + "\t" + nullToEmpty(entry.lastModified) + "\t"
+								+ nullToEmpty(entry.etag) + "\t" + entry.expires);
+					}
+					writer.newLine();
+				}
+			}
+			Files.move(temporary.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("CACHE - Could not write " + indexFile + ": " + e);
+		}
+	}
+
+	/**
+	 * @return Total size of the cached bodies
+	 */
+	synchronized long getBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,351 @@
+package client;
+
+import util.BufferPool;
+import util.Histogram;
+import util.HttpInputStream;
+import util.HttpParser;
+import util.Method;
+import util.PooledOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static util.IO.readHead;
+import static util.IO.readHeaders;
+import static util.IO.transferMessage;
+
+/**
+ * Sends requests to a server from a number of connections for a fixed
+ * time, and reports the throughput and the latency percentiles.
+ *
+ * With a rate, the load is open-loop: request {@code i} is due at
+ * {@code i / rate} seconds after the start, whether or not earlier requests
+ * were answered, and its latency is measured from that time. A server that
+ * stalls is charged for the requests that queued up behind the stall, rather
+ * than seeing fewer requests while it stalls (coordinated omission). Without
+ * a rate, every connection sends its next request as soon as the previous
+ * one is answered.
+ *
+ * The requests do not go through {@link Connection}, which logs every
+ * request and keeps bodies, so the client measures the server rather than
+ * itself. Bodies are read and discarded.
+ */
+class LoadGenerator {
+
+	private static final int STREAM_BUFFER_BYTES = 8192;
+
+	private final String host;
+	private final int port;
+	private final List<String> paths;
+	/**
+	 * Methods drawn for the requests, each as often as its weight.
+	 */
+	private final Method[] methods;
+	private final int connections;
+	private final double rate;
+	private final long durationNanos;
+	private final long warmupNanos;
+	private final boolean keepAlive;
+	private final byte[] body;
+
+	/**
+	 * Latencies in microseconds from the time a request was due, and from
+	 * the time it was sent.
+	 */
+	private final Histogram latency = new Histogram();
+	private final Histogram serviceTime = new Histogram();
+	private final ConcurrentHashMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder connects = new LongAdder();
+	private final AtomicLong next = new AtomicLong();
+	private long start;
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param paths
+	 *            Paths requested, drawn at random
+	 * @param mix
+	 *            Weights of the methods of the requests
+	 * @param connections
+	 *            Number of connections sending requests at the same time
+	 * @param rate
+	 *            Requests per second, or 0 to send as fast as the server
+	 *            answers
+	 * @param durationSeconds
+	 *            Time requests are sent, including the warmup
+	 * @param warmupSeconds
+	 *            Time at the start that is not measured
+	 * @param keepAlive
+	 *            Whether connections are reused, or closed after every
+	 *            response
+	 * @param bodyBytes
+	 *            Size of the bodies of PUT and POST requests
+	 */
+	LoadGenerator(String host, int port, List<String> paths, LinkedHashMap<Method, Integer> mix, int connections,
+			double rate, long durationSeconds, long warmupSeconds, boolean keepAlive, int bodyBytes) {
+		if (paths.isEmpty()) {
+			throw new IllegalArgumentException("No paths to request");
+		}
+		this.host = host;
+		this.port = port;
+		this.paths = paths;
+		int total = 0;
+		for (int weight : mix.values()) {
+			total += weight;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("No methods to request");
+		}
+		this.methods = new Method[total];
+		int i = 0;
+		for (Map.Entry<Method, Integer> weight : mix.entrySet()) {
+			for (int j = 0; j < weight.getValue(); j++) {
+				methods[i++] = weight.getKey();
+			}
+		}
+		this.connections = connections;
+		this.rate = rate;
+		this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+		this.keepAlive = keepAlive;
+		this.body = new byte[bodyBytes];
+		Arrays.fill(body, (byte) 'x');
+	}
+
+	/**
+	 * Sends requests for the configured duration and prints the results.
+	 *
+	 * @throws InterruptedException
+	 */
+	void run() throws InterruptedException {
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(connections, task -> {
+			Thread thread = new Thread(task, "load-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		System.out.println("LOAD - " + connections + " connections to " + host + ":" + port + ", "
+				+ (rate > 0 ? rate + " requests/s" : "as fast as possible") + ", "
+				+ (keepAlive ? "keep-alive" : "close") + ", " + TimeUnit.NANOSECONDS.toSeconds(durationNanos)
+				+ " s with " + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + " s warmup");
+		start = System.nanoTime();
+		try {
+			for (int i = 0; i < connections; i++) {
+				executor.execute(this::work);
+			}
+			executor.shutdown();
+			executor.awaitTermination(durationNanos + TimeUnit.SECONDS.toNanos(60), TimeUnit.NANOSECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+		report((System.nanoTime() - start - warmupNanos) / 1e9);
+	}
+
+	private void work() {
+		Client client = new Client();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long due;
+				if (rate > 0) {
+					due = start + (long) (next.getAndIncrement() * 1e9 / rate);
+					if (due - start >= durationNanos) {
+						return;
+					}
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+						if (Thread.currentThread().isInterrupted()) {
+							return;
+						}
+					}
+				} else {
+					due = System.nanoTime();
+					if (due - start >= durationNanos) {
+						return;
+					}
+				}
+				send(client, due);
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Sends one request that was due at the given time, and records the
+	 * result if the warmup is over.
+	 */
+	private void send(Client client, long due) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Method method = methods[random.nextInt(methods.length)];
+		String path = paths.get(random.nextInt(paths.size()));
+		long sent = System.nanoTime();
+		int status;
+		try {
+			status = client.exchange(method, path);
+		} catch (IOException e) {
+			client.close();
+			if (due - start >= warmupNanos) {
+				errors.increment();
+			}
+			return;
+		}
+		long done = System.nanoTime();
+		if (due - start >= warmupNanos) {
+			latency.record((done - due) / 1000);
+			serviceTime.record((done - sent) / 1000);
+			statuses.computeIfAbsent(status, k -> new LongAdder()).increment();
+			bytes.add(client.received);
+		}
+	}
+
+	/**
+	 * Connection of a worker, opened again when the server closes it.
+	 */
+	private class Client {
+		private final HttpParser parser = new HttpParser();
+		private Socket socket;
+		private OutputStream out;
+		private BufferedInputStream in;
+		/**
+		 * Bytes of the body of the last response.
+		 */
+		private long received;
+		private final OutputStream discard = new OutputStream() {
+			@Override
+			public void write(int b) {
+				received++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				received += len;
+			}
+		};
+
+		/**
+		 * Sends a request and reads its response.
+		 *
+		 * @return Status code of the response
+		 * @throws IOException
+		 */
+		int exchange(Method method, String path) throws IOException {
+			if (socket == null) {
+				socket = new Socket(host, port);
+				socket.setTcpNoDelay(true);
+				out = new PooledOutputStream(socket.getOutputStream(), BufferPool.heap(), STREAM_BUFFER_BYTES);
+				in = new HttpInputStream(socket.getInputStream(), BufferPool.heap(), STREAM_BUFFER_BYTES);
+				connects.increment();
+			}
+			StringBuilder head = new StringBuilder();
+			head.append(method.getName()).append(' ').append(path).append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(host).append("\r\n");
+			if (!keepAlive) {
+				head.append("Connection: close\r\n");
+			}
+			boolean hasBody = method == Method.PUT || method == Method.POST;
+			if (hasBody) {
+				head.append("Content-Type: text/plain\r\n");
+				head.append("Content-Length: ").append(body.length).append("\r\n");
+			}
+			head.append("\r\n");
+			out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+			if (hasBody) {
+				out.write(body);
+			}
+			out.flush();
+
+			received = 0;
+			parser.reset(HttpParser.Mode.RESPONSE);
+			readHead(in, parser);
+			int status = parser.getStatusCode();
+			while (status == 100) {
+				parser.reset(HttpParser.Mode.RESPONSE);
+				readHead(in, parser);
+				status = parser.getStatusCode();
+			}
+			HashMap<String, String> headers = parser.getHeaders();
+			boolean close = !keepAlive || "close".equalsIgnoreCase(headers.get("Connection"));
+			if (method != Method.HEAD && status != 304 && status != 204) {
+				if (!headers.containsKey("Content-Length") && !"chunked".equals(headers.get("Transfer-Encoding"))) {
+					// the body ends with the connection
+					close = true;
+				}
+				transferMessage(in, headers, discard);
+				if ("chunked".equals(headers.get("Transfer-Encoding"))) {
+					// footers
+					readHeaders(in);
+				}
+			}
+			if (close) {
+				close();
+			}
+			return status;
+		}
+
+		void close() {
+			if (socket == null) {
+				return;
+			}
+			try {
+				try {
+					out.close();
+				} finally {
+					// gives the buffers back to the pool
+					in.close();
+				}
+			} catch (IOException e) {
+				// closed anyway
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// nothing left to release
+				}
+				socket = null;
+			}
+		}
+	}
+
+	private void report(double seconds) {
+		long completed = latency.getCount();
+		StringBuilder codes = new StringBuilder();
+		statuses.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(
+				status -> codes.append(' ').append(status.getKey()).append('=').append(status.getValue().sum()));
+		System.out.println("LOAD - " + completed + " responses in " + String.format("%.1f", seconds) + " s: "
+				+ String.format("%.1f", completed / seconds) + " requests/s, "
+				+ String.format("%.2f", bytes.sum() / seconds / (1024 * 1024)) + " MiB/s received");
+		System.out.println("LOAD - status codes:" + codes + ", " + errors.sum() + " errors, " + connects.sum()
+				+ " connections opened");
+		print(rate > 0 ? "latency from the scheduled time" : "latency", latency);
+		if (rate > 0) {
+			print("latency from the time sent", serviceTime);
+		}
+	}
+
+	private static void print(String name, Histogram histogram) {
+		System.out.println(String.format("LOAD - %s (ms): p50 %.3f, p90 %.3f, p99 %.3f, p999 %.3f, max %.3f, mean %.3f",
+				name, histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+				histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+				histogram.getMax() / 1000.0, histogram.getMean() / 1000.0));
+	}
+}
@@ -2,65 +2,258 @@ package client;
 
 import util.Method;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 public class Main {
+    static final int MAX_CONNECTIONS_PER_HOST = 6;
+    static final int MAX_CONNECTIONS = 64;
+    static final long IDLE_TIMEOUT = 30000;
+    static final int MAX_CONCURRENT_FETCHES = 32;
+    static final int PIPELINE_DEPTH = 8;
+    static final long RANGE_PART_BYTES = 1024 * 1024;
+    static final int RANGE_HELPERS = MAX_CONNECTIONS_PER_HOST - 1;
+    /**
+     * Directory of the bodies kept between runs, and their maximum size
+     */
+    static final String CACHE_DIRECTORY = "cache";
+    static final long CACHE_BYTES = 256L * 1024 * 1024;
+    /**
+     * Runs the ranged requests of large downloads on additional connections
+     */
+    private static final ExecutorService RANGES = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "range");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static final int CRAWL_DEPTH = 3;
+    static final int CRAWL_HOSTS = 10;
+    static final long CRAWL_PAGES = 10000;
+    static final long CRAWL_DELAY = 250;
+    static final int CRAWL_WORKERS = 16;
+    /**
+     * Number of URLs the visited set of a crawl is sized for, at a false
+     * positive rate of {@link #CRAWL_FALSE_POSITIVES}
+     */
+    static final long CRAWL_VISITED = 10000000;
+    static final double CRAWL_FALSE_POSITIVES = 0.01;
+    static final int LOAD_CONNECTIONS = 16;
+    static final long LOAD_DURATION = 30;
+    static final long LOAD_WARMUP = 5;
+    static final int LOAD_BODY_BYTES = 1024;
+
     public static void main(String args[]) {
+        if (args.length > 0 && args[0].equals("CRAWL")) {
+            crawl(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("LOAD")) {
+            load(args);
+            return;
+        }
         // Parse arguments [HTTPCommand, URI, Port] into request
         Request request = generateRequestFromArgs(args);
-        Connection connection = new Connection(request.getHost(), request.getPort());
+        // Connections are kept open and reused for all requests to the same host,
+        // bodies that did not change since an earlier run come from the cache
+        HttpCache cache = new HttpCache(new File(CACHE_DIRECTORY), CACHE_BYTES);
+        ConnectionPool pool = new ConnectionPool(MAX_CONNECTIONS_PER_HOST, MAX_CONNECTIONS, IDLE_TIMEOUT, cache);
+
+        // fetch embedded resources of all hosts in parallel, as soon as they
+        // are found in the page
+        FetchScheduler scheduler = new FetchScheduler(pool, MAX_CONCURRENT_FETCHES, MAX_CONNECTIONS_PER_HOST,
+                PIPELINE_DEPTH);
+        String path = "files/" + new Date().getTime();
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        seen.add(request.getHost() + ":" + request.getPort() + request.getFile());
+        Consumer<Request> resources = new Consumer<Request>() {
+            @Override
+            public void accept(Request r) {
+                if (seen.add(r.getHost() + ":" + r.getPort() + r.getFile())) {
+                    // style sheets and frames embed resources too
+                    r.setResourceListener(this);
+                    // resources of external hosts are saved separately
+                    boolean external = !(r.getHost().equals(request.getHost()) && r.getPort() == request.getPort());
+                    scheduler.submit(r, external ? path + "/external" : path);
+                }
+            }
+        };
+        request.setResourceListener(resources);
 
         try {
-            // Execute request
-            Response response = connection.execute(request);
+            // Execute request, the body is saved while it is received
+            Response response = execute(pool, request, path);
             // Display response
-            String path = "files/" + new Date().getTime();
             response.print();
             response.save(path);
 
-            HashSet<Request> requests = response.handle();
-            // order requests by host
-            HashMap<String, ArrayList<Request>> requestsByHost = new HashMap<>();
-            for (Request r : requests) {
-                if (requestsByHost.containsKey(r.getHost() + ":" + r.getPort())) {
-                    requestsByHost.get(r.getHost() + ":" + r.getPort()).add(r);
-                } else {
-                    ArrayList<Request> reqs = new ArrayList<>();
-                    reqs.add(r);
-                    requestsByHost.put(r.getHost() + ":" + r.getPort(), reqs);
-                }
+            // resources of a body that was not scanned while it was received
+            response.handle().forEach(resources);
+            try {
+                scheduler.awaitCompletion();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            scheduler.shutdown();
+            pool.close();
+            cache.close();
+        }
+    }
 
-            // execute requests for current host
-            if (requestsByHost.containsKey(connection.getHost() + ":" + connection.getPort())) {
-                ArrayList<Request> requestsForConnection = requestsByHost.get(connection.getHost() + ":" + connection.getPort());
-                for (Request r : requestsForConnection) {
-                	if (connection.isClosed()) {
-                		connection.initialize();
-                	}
-                    connection.execute(r).save(path);
-                }
-                connection.close();
-                requestsByHost.remove(connection.getHost() + ":" + connection.getPort());
+    /**
+     * Crawls the pages linked from a start page.
+     *
+     * @param args [CRAWL, URI, Port, options] with the options --depth=,
+     *             --hosts=, --pages=, --delay= (milliseconds), --workers=,
+     *             --visited= (URLs) and --resources
+     */
+    private static void crawl(String[] args) {
+        Request start = generateRequestFromArgs(new String[]{"GET", args[1], args[2]});
+        int depth = CRAWL_DEPTH;
+        int hosts = CRAWL_HOSTS;
+        long pages = CRAWL_PAGES;
+        long delay = CRAWL_DELAY;
+        int workers = CRAWL_WORKERS;
+        long visited = CRAWL_VISITED;
+        boolean resources = false;
+        for (int i = 3; i < args.length; i++) {
+            String option = args[i];
+            String value = option.substring(option.indexOf('=') + 1);
+            if (option.startsWith("--depth=")) {
+                depth = Integer.parseInt(value);
+            } else if (option.startsWith("--hosts=")) {
+                hosts = Integer.parseInt(value);
+            } else if (option.startsWith("--pages=")) {
+                pages = Long.parseLong(value);
+            } else if (option.startsWith("--delay=")) {
+                delay = Long.parseLong(value);
+            } else if (option.startsWith("--workers=")) {
+                workers = Integer.parseInt(value);
+            } else if (option.startsWith("--visited=")) {
+                visited = Long.parseLong(value);
+            } else if (option.equals("--resources")) {
+                resources = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + option);
             }
+        }
+        // one connection per host is enough, as requests to a host do not overlap
+        HttpCache cache = new HttpCache(new File(CACHE_DIRECTORY), CACHE_BYTES);
+        ConnectionPool pool = new ConnectionPool(1, Math.max(workers, 1), IDLE_TIMEOUT, cache);
+        Frontier frontier = new Frontier(depth, hosts, pages, delay,
+                new BloomFilter(visited, CRAWL_FALSE_POSITIVES));
+        try {
+            new Crawler(pool, frontier, workers, resources, "files/" + new Date().getTime()).crawl(start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.close();
+            cache.close();
+        }
+    }
 
-            // execute requests for external resources, different host
-            for (Map.Entry<String, ArrayList<Request>> entry : requestsByHost.entrySet()) {
-                ArrayList<Request> requestsForConnection = entry.getValue();
-                connection = new Connection(requestsForConnection.get(0).getHost(), requestsForConnection.get(0).getPort());
-                for (Request r : requestsForConnection) {
-                	if (connection.isClosed()) {
-                		connection.initialize();
-                	}
-                    connection.execute(r).save(path + "/external");
+    /**
+     * Sends load to a server and reports throughput and latency.
+     *
+     * @param args [LOAD, host, Port, options] with the options --paths= (file
+     *             with a path per line, default /), --mix= (weights of the
+     *             methods, e.g. GET=90,HEAD=5,PUT=5), --connections=,
+     *             --rate= (requests per second, 0 for closed-loop),
+     *             --duration= and --warmup= (seconds), --body= (bytes of PUT
+     *             and POST bodies) and --close
+     */
+    private static void load(String[] args) {
+        String host = args[1];
+        if (host.startsWith("http://")) {
+            host = host.substring("http://".length());
+        }
+        if (host.contains("/")) {
+            host = host.substring(0, host.indexOf("/"));
+        }
+        int port = Integer.parseInt(args[2]);
+        List<String> paths = Collections.singletonList("/");
+        LinkedHashMap<Method, Integer> mix = new LinkedHashMap<>();
+        mix.put(Method.GET, 1);
+        int connections = LOAD_CONNECTIONS;
+        double rate = 0;
+        long duration = LOAD_DURATION;
+        long warmup = LOAD_WARMUP;
+        int body = LOAD_BODY_BYTES;
+        boolean keepAlive = true;
+        try {
+            for (int i = 3; i < args.length; i++) {
+                String option = args[i];
+                String value = option.substring(option.indexOf('=') + 1);
+                if (option.startsWith("--paths=")) {
+                    paths = new ArrayList<>();
+                    for (String line : Files.readAllLines(Paths.get(value))) {
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.startsWith("#")) {
+                            paths.add(line);
+                        }
+                    }
+                } else if (option.startsWith("--mix=")) {
+                    mix.clear();
+                    for (String method : value.split(",")) {
+                        String[] parts = method.split("=");
+                        int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+                        mix.put(Method.valueOf(parts[0].trim()), weight);
+                    }
+                } else if (option.startsWith("--connections=")) {
+                    connections = Integer.parseInt(value);
+                } else if (option.startsWith("--rate=")) {
+                    rate = Double.parseDouble(value);
+                } else if (option.startsWith("--duration=")) {
+                    duration = Long.parseLong(value);
+                } else if (option.startsWith("--warmup=")) {
+                    warmup = Long.parseLong(value);
+                } else if (option.startsWith("--body=")) {
+                    body = Integer.parseInt(value);
+                } else if (option.equals("--close")) {
+                    keepAlive = false;
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + option);
                 }
-                connection.close();
             }
-
-
+            new LoadGenerator(host, port, paths, mix, connections, rate, duration, warmup, keepAlive, body).run();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Executes a request on a connection of the pool and saves the body of
+     * the response while it is received. Large GET downloads are split into
+     * ranged requests on several connections.
+     *
+     * @param pool    Pool to take the connection from
+     * @param request Request to execute
+     * @param path    Directory the body is saved in
+     * @return Response to the request, without the body in memory
+     * @throws IOException
+     */
+    static Response execute(ConnectionPool pool, Request request, String path) throws IOException {
+        Connection connection = pool.acquire(request.getHost(), request.getPort());
+        try {
+            return connection.executeRanged(request, path, RANGES, RANGE_HELPERS, RANGE_PART_BYTES);
+        } catch (IOException e) {
+            // the state of the connection is unknown
+            connection.close();
+            throw e;
+        } finally {
+            pool.release(connection);
         }
     }
 
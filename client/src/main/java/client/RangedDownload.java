@@ -0,0 +1,286 @@
+package client;
+
+import util.Method;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Download of a large body in ranged requests (RFC 7233) that run in
+ * parallel on several connections. The remaining parts are requested with
+ * If-Range, so a file that changes during the download is received whole
+ * instead of being assembled from two versions. A part that fails is
+ * requested again on the next free connection, up to {@link #MAX_ATTEMPTS}
+ * times, without restarting the rest of the download.
+ *
+ * The parts are written into the file the first part was saved in, each at
+ * its own position, so only the parts in flight are held in memory. A new
+ * version of the file is saved next to it while it is read, and then takes
+ * its place.
+ *
+ * The connection that started the download works through the parts itself;
+ * other connections only help once the pool hands them out, so a download
+ * never waits for a connection it cannot get.
+ */
+class RangedDownload {
+
+	/**
+	 * Number of times a part is requested before the download fails.
+	 */
+	static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * Range of the body that is still to be downloaded.
+	 */
+	private static class Part {
+		private final long start;
+		private final long end;
+		private int attempts;
+
+		Part(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private final Request request;
+	private final String validator;
+	private final HashMap<String, String> headers;
+	private final File file;
+	private final FileChannel channel;
+	private final long length;
+
+	private final ArrayDeque<Part> parts = new ArrayDeque<>();
+	private int inFlight;
+	private IOException failure;
+	/**
+	 * Whole new version of the file, if it changed during the download,
+	 * with its body saved on disk.
+	 */
+	private Response replaced;
+
+	/**
+	 * @param request
+	 *            Request for the whole body
+	 * @param first
+	 *            Response with the first part of the body, saved in a file
+	 * @param range
+	 *            Content range of the first part, as returned by
+	 *            {@link #parseContentRange(String)}
+	 * @param partBytes
+	 *            Size of the remaining parts
+	 * @throws IOException
+	 *             If the file of the first part cannot be opened
+	 */
+	RangedDownload(Request request, Response first, long[] range, long partBytes) throws IOException {
+		this.request = request;
+		this.file = first.getSavedFile();
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		this.length = range[2];
+		this.headers = new HashMap<>(first.getHeaders());
+		headers.remove("Content-Range");
+		headers.put("Content-Length", Long.toString(range[2]));
+
+		String etag = headers.get("ETag");
+		// weak entity tags cannot be used in If-Range
+		this.validator = etag != null && !etag.startsWith("W/") ? etag : headers.get("Last-Modified");
+		for (long start = range[1] + 1; start < range[2]; start += partBytes) {
+			parts.add(new Part(start, Math.min(start + partBytes, range[2]) - 1));
+		}
+	}
+
+	/**
+	 * @return Number of parts that are still to be downloaded
+	 */
+	synchronized int getRemainingParts() {
+		return parts.size();
+	}
+
+	/**
+	 * Downloads parts on the given connection until no parts are left or a
+	 * part failed on it.
+	 *
+	 * @param connection
+	 *            Connection to the host of the request
+	 */
+	void run(Connection connection) {
+		Part part;
+		while ((part = claim()) != null) {
+			try {
+				Request partRequest = new Request(Method.GET, request.getHost(), request.getPort(), request.getFile());
+				partRequest.setHeader("Range", "bytes=" + part.start + "-" + part.end);
+				if (validator != null) {
+					partRequest.setHeader("If-Range", validator);
+				}
+				received(part, connection.executePart(partRequest, replacement(part)));
+			} catch (IOException e) {
+				// the state of the connection is unknown
+				if (!connection.isClosed()) {
+					connection.close();
+				}
+				failed(part, e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Downloads the remaining parts on the given connection, together with
+	 * any helpers. The file is deleted if the download fails, or if the file
+	 * on the server changed during the download.
+	 *
+	 * @param connection
+	 *            Connection that started the download
+	 * @return Response with the whole body saved in the file, or the whole
+	 *         new version of the file
+	 * @throws IOException
+	 *             If a part failed {@link #MAX_ATTEMPTS} times
+	 */
+	Response complete(Connection connection) throws IOException {
+		boolean complete = false;
+		Response whole = null;
+		try {
+			while (whole == null) {
+				run(connection);
+				synchronized (this) {
+					while (inFlight > 0 && parts.isEmpty() && failure == null && replaced == null) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new IOException("Download interrupted");
+						}
+					}
+					if (failure != null) {
+						throw failure;
+					}
+					whole = replaced;
+					if (whole == null && parts.isEmpty() && inFlight == 0) {
+						break;
+					}
+				}
+			}
+			channel.close();
+			if (whole != null) {
+				// the new version takes the place of the parts
+				if (whole.getSavedFile() != null) {
+					whole.moveTo(file);
+				} else {
+					file.delete();
+				}
+				complete = true;
+				return whole;
+			}
+			complete = true;
+		} finally {
+			channel.close();
+			if (!complete) {
+				file.delete();
+				if (whole != null && whole.getSavedFile() != null) {
+					whole.getSavedFile().delete();
+				}
+			}
+		}
+		Response response = new Response(200, headers, request.getHost(), request.getPort(), request.getFile());
+		response.received(file, request);
+		return response;
+	}
+
+	private synchronized Part claim() {
+		if (failure != null || replaced != null) {
+			return null;
+		}
+		Part part = parts.poll();
+		if (part != null) {
+			inFlight++;
+		}
+		return part;
+	}
+
+	/**
+	 * @return File the whole body is saved in if the response to the part
+	 *         is not partial
+	 */
+	private File replacement(Part part) {
+		// one per part, as several parts may get the whole body
+		return new File(file.getPath() + "." + part.start + ".new");
+	}
+
+	private void received(Part part, Response response) throws IOException {
+		if (response.getStatusCode() == 200) {
+			// If-Range did not match: the file changed since the first part
+			synchronized (this) {
+				if (replaced == null && failure == null) {
+					replaced = response;
+				} else if (response.getSavedFile() != null) {
+					response.getSavedFile().delete();
+				}
+				inFlight--;
+				notifyAll();
+			}
+			return;
+		}
+		long[] range = parseContentRange(response.getHeaders().get("Content-Range"));
+		byte[] bytes = response.getBody();
+		if (response.getStatusCode() != 206 || range == null || range[0] != part.start || range[1] != part.end
+				|| range[2] != length || bytes == null || bytes.length != part.end - part.start + 1) {
+			throw new IOException("Unexpected response to ranged request: " + response.getStatusCode());
+		}
+		// parts do not overlap, so they are written without holding the lock
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, part.start + buffer.position());
+		}
+		synchronized (this) {
+			inFlight--;
+			notifyAll();
+		}
+	}
+
+	private synchronized void failed(Part part, IOException e) {
+		inFlight--;
+		if (++part.attempts < MAX_ATTEMPTS) {
+			System.out.println("CONNECTION - Range " + part.start + "-" + part.end + " of " + request.getFile()
+					+ " failed, retrying.\n");
+			parts.addFirst(part);
+		} else if (failure == null) {
+			failure = e;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Parses a Content-Range header such as "bytes 0-499/1234".
+	 *
+	 * @param contentRange
+	 *            Value of the header, or {@code null}
+	 * @return First byte, last byte and complete length, or {@code null} if
+	 *         the header is missing, invalid or has an unknown length
+	 */
+	static long[] parseContentRange(String contentRange) {
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return null;
+		}
+		int dash = contentRange.indexOf('-');
+		int slash = contentRange.indexOf('/');
+		if (dash == -1 || slash < dash) {
+			return null;
+		}
+		try {
+			long start = Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+			long end = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+			long length = Long.parseLong(contentRange.substring(slash + 1).trim());
+			if (start < 0 || end < start || length <= end) {
+				return null;
+			}
+			return new long[] { start, end, length };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
@@ -3,6 +3,9 @@ package client;
 import util.Method;
 
 import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Houses HTTP method to use, url + port and body to post (if any).
@@ -20,6 +23,16 @@ class Request {
     private String host;
     private int port;
     private String file;
+    /**
+     * Additional headers, e.g. Range
+     */
+    private final LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+    /**
+     * Receive the resources embedded in the response and the pages it links
+     * to while it is received
+     */
+    private Consumer<Request> resourceListener;
+    private Consumer<Request> linkListener;
 
 
     Request(Method method, String host, int port) {
@@ -105,17 +118,74 @@ class Request {
         return this.file;
     }
 
+    /**
+     * Sets a header that is sent in addition to the default headers.
+     *
+     * @param name  Name of the header
+     * @param value Value of the header
+     */
+    void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Sets the listener that receives a request for every resource embedded
+     * in the response, as soon as it is found.
+     *
+     * @param resourceListener Listener, or {@code null}
+     */
+    void setResourceListener(Consumer<Request> resourceListener) {
+        this.resourceListener = resourceListener;
+    }
+
+    Consumer<Request> getResourceListener() {
+        return resourceListener;
+    }
+
+    /**
+     * Sets the listener that receives a request for every page the response
+     * links to, as soon as it is found.
+     *
+     * @param linkListener Listener, or {@code null}
+     */
+    void setLinkListener(Consumer<Request> linkListener) {
+        this.linkListener = linkListener;
+    }
+
+    Consumer<Request> getLinkListener() {
+        return linkListener;
+    }
+
+    /**
+     * Gives this request the listeners of another one, e.g. of the request
+     * it was redirected from.
+     *
+     * @param request Request to take the listeners from
+     */
+    void copyListeners(Request request) {
+        this.resourceListener = request.resourceListener;
+        this.linkListener = request.linkListener;
+    }
+
     String getInitialLineAndHeader() {
         String initialLine = getMethod() + " " + getFile() + " HTTP/1.1" + "\r\n";
         String headerHost = "Host: " + getHost() + "\r\n";
         String headerUserAgent = "User-Agent: Mozilla/5.0" + "\r\n";
+        StringBuilder extraHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            extraHeaders.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
         if (getMethod() == Method.POST || getMethod() == Method.PUT) {
             String additionalHeaders = "Content-Type: text/plain" + "\r\n" + "Content-Length: " + getBody().length() + "\r\n";
-            System.out.println(initialLine + headerHost + headerUserAgent + additionalHeaders);
-            return initialLine + headerHost + headerUserAgent + additionalHeaders + "\r\n";
+            System.out.println(initialLine + headerHost + headerUserAgent + extraHeaders + additionalHeaders);
+            return initialLine + headerHost + headerUserAgent + extraHeaders + additionalHeaders + "\r\n";
         } else {
-            System.out.println(initialLine + headerHost + headerUserAgent);
-            return initialLine + headerHost + headerUserAgent + "\r\n";
+            System.out.println(initialLine + headerHost + headerUserAgent + extraHeaders);
+            return initialLine + headerHost + headerUserAgent + extraHeaders + "\r\n";
         }
     }
 }
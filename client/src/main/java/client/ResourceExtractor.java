@@ -0,0 +1,348 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds the URLs an HTML page or a style sheet refers to while its bytes
+ * are written, in a single pass without backtracking, so the resources can
+ * be requested before the page is complete.
+ *
+ * In HTML, {@code src}, {@code srcset} and the {@code href} of {@code link}
+ * elements are embedded resources, the {@code href} of {@code a} and
+ * {@code area} elements are links to other pages. Style sheets in
+ * {@code style} elements and attributes are scanned by a {@link CssScanner}.
+ * Comments and the content of {@code script} elements are skipped. Only the
+ * names of the current tag and attribute and values of the attributes that
+ * hold URLs are buffered.
+ */
+class ResourceExtractor extends OutputStream {
+
+	/**
+	 * Receives the URLs found, as written in the document.
+	 */
+	interface Listener {
+		/**
+		 * @param url
+		 *            URL as written in the document, entities decoded
+		 * @param embedded
+		 *            Whether the resource is part of the page, rather than a
+		 *            link to another page
+		 */
+		void reference(String url, boolean embedded);
+	}
+
+	private static final int MAX_NAME_BYTES = 16;
+
+	private enum State {
+		TEXT, TAG_OPEN, MARKUP_DECLARATION, COMMENT, BOGUS_COMMENT, END_TAG, TAG_NAME, BEFORE_ATTRIBUTE,
+		ATTRIBUTE_NAME, AFTER_ATTRIBUTE_NAME, BEFORE_VALUE, VALUE_QUOTED, VALUE_UNQUOTED, RAW_TEXT, CSS
+	}
+
+	private final Listener listener;
+	private CssScanner css;
+	private State state;
+
+	private final StringBuilder tag = new StringBuilder();
+	private final StringBuilder attribute = new StringBuilder();
+	private final ByteArrayOutputStream value = new ByteArrayOutputStream();
+	/**
+	 * Whether the value of the current attribute is kept.
+	 */
+	private boolean keepValue;
+	private int quote;
+	/**
+	 * Dashes seen in a row in a comment or markup declaration.
+	 */
+	private int dashes;
+	/**
+	 * End tag that ends the raw text of a script or style element, and how
+	 * much of it was seen.
+	 */
+	private String rawTextEnd;
+	private int rawTextMatched;
+	private boolean rawTextCss;
+
+	private ResourceExtractor(Listener listener, State state) {
+		this.listener = listener;
+		this.state = state;
+		this.css = newCssScanner();
+	}
+
+	/**
+	 * @return Extractor for an HTML page
+	 */
+	static ResourceExtractor html(Listener listener) {
+		return new ResourceExtractor(listener, State.TEXT);
+	}
+
+	/**
+	 * @return Extractor for a style sheet
+	 */
+	static ResourceExtractor css(Listener listener) {
+		return new ResourceExtractor(listener, State.CSS);
+	}
+
+	/**
+	 * @return Extractor for a document of the given Content-Type, or
+	 *         {@code null} if the type refers to no resources
+	 */
+	static ResourceExtractor forType(String contentType, Listener listener) {
+		if (contentType == null) {
+			return null;
+		}
+		if (contentType.contains("text/html")) {
+			return html(listener);
+		}
+		if (contentType.contains("text/css")) {
+			return css(listener);
+		}
+		return null;
+	}
+
+	@Override
+	public void write(int b) {
+		scan(b & 0xff);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		if (state == State.CSS) {
+			css.scan(b, off, len);
+			return;
+		}
+		for (int i = off; i < off + len; i++) {
+			scan(b[i] & 0xff);
+		}
+	}
+
+	private void scan(int b) {
+		switch (state) {
+		case TEXT:
+			if (b == '<') {
+				state = State.TAG_OPEN;
+			}
+			break;
+		case TAG_OPEN:
+			if (isLetter(b)) {
+				tag.setLength(0);
+				tag.append((char) Character.toLowerCase(b));
+				state = State.TAG_NAME;
+			} else if (b == '!') {
+				dashes = 0;
+				state = State.MARKUP_DECLARATION;
+			} else if (b == '/' || b == '?') {
+				state = b == '/' ? State.END_TAG : State.BOGUS_COMMENT;
+			} else if (b != '<') {
+				state = State.TEXT;
+			}
+			break;
+		case MARKUP_DECLARATION:
+			if (b == '-' && ++dashes == 2) {
+				dashes = 0;
+				state = State.COMMENT;
+			} else if (b == '>') {
+				state = State.TEXT;
+			} else if (b != '-') {
+				// doctype or CDATA
+				state = State.BOGUS_COMMENT;
+			}
+			break;
+		case COMMENT:
+			if (b == '>' && dashes >= 2) {
+				state = State.TEXT;
+			}
+			dashes = b == '-' ? dashes + 1 : 0;
+			break;
+		case BOGUS_COMMENT:
+		case END_TAG:
+			if (b == '>') {
+				state = State.TEXT;
+			}
+			break;
+		case TAG_NAME:
+			if (CssScanner.isWhitespace(b) || b == '/') {
+				state = State.BEFORE_ATTRIBUTE;
+			} else if (b == '>') {
+				endStartTag();
+			} else if (tag.length() < MAX_NAME_BYTES) {
+				tag.append((char) Character.toLowerCase(b));
+			}
+			break;
+		case BEFORE_ATTRIBUTE:
+			if (b == '>') {
+				endStartTag();
+			} else if (!CssScanner.isWhitespace(b) && b != '/') {
+				startAttribute(b);
+			}
+			break;
+		case ATTRIBUTE_NAME:
+			if (CssScanner.isWhitespace(b)) {
+				state = State.AFTER_ATTRIBUTE_NAME;
+			} else if (b == '=') {
+				state = State.BEFORE_VALUE;
+			} else if (b == '/') {
+				state = State.BEFORE_ATTRIBUTE;
+			} else if (b == '>') {
+				endStartTag();
+			} else if (attribute.length() < MAX_NAME_BYTES) {
+				attribute.append((char) Character.toLowerCase(b));
+			}
+			break;
+		case AFTER_ATTRIBUTE_NAME:
+			if (b == '=') {
+				state = State.BEFORE_VALUE;
+			} else if (b == '>') {
+				endStartTag();
+			} else if (!CssScanner.isWhitespace(b)) {
+				// attribute without value
+				startAttribute(b);
+			}
+			break;
+		case BEFORE_VALUE:
+			if (b == '"' || b == '\'') {
+				startValue();
+				quote = b;
+				state = State.VALUE_QUOTED;
+			} else if (b == '>') {
+				endStartTag();
+			} else if (!CssScanner.isWhitespace(b)) {
+				startValue();
+				appendValue(b);
+				state = State.VALUE_UNQUOTED;
+			}
+			break;
+		case VALUE_QUOTED:
+			if (b == quote) {
+				endValue();
+				state = State.BEFORE_ATTRIBUTE;
+			} else {
+				appendValue(b);
+			}
+			break;
+		case VALUE_UNQUOTED:
+			if (CssScanner.isWhitespace(b)) {
+				endValue();
+				state = State.BEFORE_ATTRIBUTE;
+			} else if (b == '>') {
+				endValue();
+				endStartTag();
+			} else {
+				appendValue(b);
+			}
+			break;
+		case RAW_TEXT:
+			if (rawTextCss) {
+				css.scan(b);
+			}
+			int lower = Character.toLowerCase(b);
+			if (lower == rawTextEnd.charAt(rawTextMatched)) {
+				if (++rawTextMatched == rawTextEnd.length()) {
+					state = State.END_TAG;
+				}
+			} else {
+				rawTextMatched = lower == '<' ? 1 : 0;
+			}
+			break;
+		case CSS:
+			css.scan(b);
+			break;
+		}
+	}
+
+	private void startAttribute(int b) {
+		attribute.setLength(0);
+		attribute.append((char) Character.toLowerCase(b));
+		state = State.ATTRIBUTE_NAME;
+	}
+
+	private void startValue() {
+		value.reset();
+		String name = attribute.toString();
+		keepValue = name.equals("src") || name.equals("srcset") || name.equals("href") || name.equals("style");
+	}
+
+	private void appendValue(int b) {
+		if (keepValue && value.size() <= CssScanner.MAX_URL_BYTES) {
+			value.write(b);
+		}
+	}
+
+	/**
+	 * Reports the URLs in the value of the attribute that just ended.
+	 */
+	private void endValue() {
+		if (!keepValue || value.size() == 0 || value.size() > CssScanner.MAX_URL_BYTES) {
+			return;
+		}
+		String name = attribute.toString();
+		if (name.equals("style")) {
+			// the style sheet of the element, in its own scanner
+			byte[] style = value.toByteArray();
+			newCssScanner().scan(style, 0, style.length);
+			return;
+		}
+		String url = decodeEntities(new String(value.toByteArray(), StandardCharsets.UTF_8)).trim();
+		switch (name) {
+		case "src":
+			report(url, true);
+			break;
+		case "srcset":
+			// candidates "url [descriptor]" separated by commas
+			for (String candidate : url.split(",")) {
+				candidate = candidate.trim();
+				int space = candidate.indexOf(' ');
+				report(space == -1 ? candidate : candidate.substring(0, space), true);
+			}
+			break;
+		case "href":
+			String element = tag.toString();
+			if (element.equals("link")) {
+				report(url, true);
+			} else if (element.equals("a") || element.equals("area")) {
+				report(url, false);
+			}
+			break;
+		}
+	}
+
+	private void report(String url, boolean embedded) {
+		if (!url.isEmpty()) {
+			listener.reference(url, embedded);
+		}
+	}
+
+	private void endStartTag() {
+		String element = tag.toString();
+		if (element.equals("script") || element.equals("style")) {
+			rawTextEnd = "</" + element;
+			rawTextMatched = 0;
+			rawTextCss = element.equals("style");
+			if (rawTextCss) {
+				css = newCssScanner();
+			}
+			state = State.RAW_TEXT;
+		} else {
+			state = State.TEXT;
+		}
+	}
+
+	private CssScanner newCssScanner() {
+		return new CssScanner(url -> listener.reference(url, true));
+	}
+
+	private static boolean isLetter(int b) {
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+	}
+
+	/**
+	 * Decodes the character references that commonly occur in URLs.
+	 */
+	private static String decodeEntities(String value) {
+		if (value.indexOf('&') == -1) {
+			return value;
+		}
+		return value.replace("&amp;", "&").replace("&#38;", "&").replace("&quot;", "\"").replace("&#39;", "'");
+	}
+}
@@ -3,14 +3,21 @@ package client;
 import util.Method;
 import util.StringOperations;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+
+import static util.IO.transferMessage;
 
 /**
  * Stores relevant response attributes.
@@ -23,6 +30,23 @@ class Response {
 	private String name;
 	private String host;
 	private int port;
+	/**
+	 * Whether the body was read by {@link #receive}, which saved it already.
+	 */
+	private boolean received;
+	private File savedFile;
+	/**
+	 * Resources embedded in the body and pages it links to, by host, port
+	 * and file.
+	 */
+	private final LinkedHashMap<String, Request> resources = new LinkedHashMap<>();
+	private final LinkedHashMap<String, Request> links = new LinkedHashMap<>();
+	/**
+	 * Whether the body was scanned for embedded resources and links.
+	 */
+	private boolean scanned;
+	private Consumer<Request> resourceListener;
+	private Consumer<Request> linkListener;
 
 	Response(int statusCode, HashMap<String, String> headers, byte[] body, String host, int port, String name)
 			throws IOException {
@@ -58,6 +82,21 @@ class Response {
 		return this.name;
 	}
 
+	/**
+	 * @return File the body was written to by {@link #receive}, or
+	 *         {@code null}
+	 */
+	File getSavedFile() {
+		return savedFile;
+	}
+
+	/**
+	 * @return Whether the response redirects to another location
+	 */
+	static boolean isRedirect(int statusCode, HashMap<String, String> headers) {
+		return String.valueOf(statusCode).charAt(0) == '3' && headers.containsKey("Location");
+	}
+
 	/**
 	 * Delete characters that are not allowed in the filename and adds an
 	 * extension if the file has no extension
@@ -94,69 +133,117 @@ class Response {
 	 * Retrieves other objects on the page and creates a client.Request for them
 	 */
 	HashSet<Request> handle() {
-		HashSet<Request> requests = new HashSet<>();
-		if (body != null && getHeaders().containsKey("Content-Type") && getHeaders().get("Content-Type").contains("text/html")) {
-			// Only retrieve other objects embedded in an HTML file
-			// retrieve objects of the pattern <... src="<location>" ...>
-			String pattern = "<.*? src=\"(.*?)\".*?>";
-			Pattern r = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
-			Matcher m = r.matcher(new String(getBody()));
-			requests.addAll(findMatches(m));
-
-			// retrieve CSS and other resources in link tags
-			pattern = "<link .*?href=\"(.*?)\".*?";
-			r = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
-			m = r.matcher(new String(getBody()));
-			requests.addAll(findMatches(m));
+		if (!scanned && body != null) {
+			ResourceExtractor extractor = newExtractor();
+			if (extractor != null) {
+				extractor.write(body, 0, body.length);
+			}
+			scanned = true;
 		}
-		return requests;
+		return new HashSet<>(resources.values());
 	}
 
 	/**
-	 * Find matches and return the Requests for these resources
-	 * 
-	 * @param m
-	 *            Matcher that will be used to find matches
-	 * @return HashSet with Requests for which matches were found
-	 */
-	private HashSet<Request> findMatches(Matcher m) {
-		HashSet<Request> requests = new HashSet<>();
-		while (m.find()) {
-			// create new request for each resource
-			String path = m.group(1);
-			System.out.println(path);
-			if (StringOperations.isRelativePath(path)) {
-				// request on the same host
-				if (!path.startsWith("/")) {
-					// subdirectory of the current directory
-					String newPath = getName().substring(0, getName().lastIndexOf("/"));
-					path = newPath + "/" + path;
-				}
-				requests.add(new Request(Method.GET, host, port, path));
-			} else {
-				// remove protocol (if present)
-				if (path.startsWith("http://")) {
-					path = path.substring("http://".length());
-				} else if (path.startsWith("https://")) {
-					path = path.substring("https://".length());
-				} else if (path.startsWith("//")) {
-					path = path.substring("//".length());
-				}
+	 * @return Requests for the pages the body links to, if it was scanned
+	 *         while it was received or by {@link #handle()}
+	 */
+	HashSet<Request> getLinks() {
+		return new HashSet<>(links.values());
+	}
 
-				String host;
-				String file;
-				if (path.contains("/")) {
-					host = path.substring(0, path.indexOf("/"));
-					file = path.substring(path.indexOf("/"));
-				} else {
-					host = path;
-					file = "/";
-				}
+	/**
+	 * @return Extractor that finds the resources embedded in the body, or
+	 *         {@code null} if the body cannot embed resources
+	 */
+	private ResourceExtractor newExtractor() {
+		return ResourceExtractor.forType(getHeaders().get("Content-Type"), this::reference);
+	}
+
+	/**
+	 * Records a URL found in the body, and passes a request for a new
+	 * embedded resource or link to its listener.
+	 */
+	private void reference(String url, boolean embedded) {
+		Request request = toRequest(url);
+		if (request == null) {
+			return;
+		}
+		String key = request.getHost() + ":" + request.getPort() + request.getFile();
+		if (embedded && resources.putIfAbsent(key, request) == null) {
+			System.out.println(url);
+			if (resourceListener != null) {
+				resourceListener.accept(request);
+			}
+		} else if (!embedded && links.putIfAbsent(key, request) == null && linkListener != null) {
+			linkListener.accept(request);
+		}
+	}
 
-				requests.add(new Request(Method.GET, host, 80, file));
+	/**
+	 * Creates a request for a URL found in the body, relative to this
+	 * response.
+	 *
+	 * @param path
+	 *            URL as written in the body
+	 * @return Request for the URL, or {@code null} if it uses another scheme
+	 *         than HTTP or refers to this page only
+	 */
+	private Request toRequest(String path) {
+		if (path.contains("#")) {
+			// the fragment is not sent
+			path = path.substring(0, path.indexOf("#"));
+		}
+		int colon = path.indexOf(':');
+		if (path.isEmpty() || (colon != -1 && colon < indexOf(path, '/', '?')
+				&& !(path.startsWith("http://") || path.startsWith("https://")))) {
+			// e.g. data:, javascript: or mailto:
+			return null;
+		}
+		if (StringOperations.isRelativePath(path)) {
+			// request on the same host
+			if (!path.startsWith("/")) {
+				// subdirectory of the current directory
+				String newPath = getName().substring(0, getName().lastIndexOf("/"));
+				path = newPath + "/" + path;
 			}
+			return new Request(Method.GET, host, port, path);
+		}
+		// remove protocol (if present)
+		if (path.startsWith("http://")) {
+			path = path.substring("http://".length());
+		} else if (path.startsWith("https://")) {
+			path = path.substring("https://".length());
+		} else if (path.startsWith("//")) {
+			path = path.substring("//".length());
+		}
+
+		String host;
+		String file;
+		if (path.contains("/")) {
+			host = path.substring(0, path.indexOf("/"));
+			file = path.substring(path.indexOf("/"));
+		} else {
+			host = path;
+			file = "/";
+		}
+		return new Request(Method.GET, host, 80, file);
+	}
+
+	/**
+	 * @return Index of the first of the characters in the string, or its
+	 *         length if it contains none of them
+	 */
+	private static int indexOf(String s, char first, char second) {
+		int index = s.length();
+		int i = s.indexOf(first);
+		if (i != -1) {
+			index = i;
+		}
+		i = s.indexOf(second);
+		if (i != -1 && i < index) {
+			index = i;
 		}
-		return requests;
+		return index;
 	}
 
 	/**
@@ -167,25 +254,15 @@ class Response {
 	 *            Path to the place where the file will be saved
 	 */
 	void save(String path) {
-		try {
-			path = java.net.URLDecoder.decode(path, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
+		if (received) {
+			// saved while it was read
+			return;
 		}
 		if (body != null && body.length > 0) {
-			File file = new File(path + getName());
-			// Show message if file already exists
-			if (file.exists()) {
-				System.err.println("Could not write to " + path + getName() + ". File already exists.");
+			File file = createFile(path);
+			if (file == null) {
 				return;
 			}
-			// Create new file
-			try {
-				file.getParentFile().mkdirs();
-				file.createNewFile();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
 			// Write response body to file
 			try {
 				Files.write(file.toPath(), getBody());
@@ -196,6 +273,187 @@ class Response {
 		}
 	}
 
+	/**
+	 * Reads the body from the stream straight into the file the response is
+	 * saved as, so downloading it takes the same memory whatever its size.
+	 * HTML pages and style sheets are scanned for embedded resources and
+	 * links on the way, and the listeners of the request get a request for
+	 * each as soon as it is found.
+	 * Empty bodies are not saved, like in {@link #save(String)}.
+	 *
+	 * @param in
+	 *            Stream positioned at the start of the body
+	 * @param path
+	 *            Path to the place where the file will be saved
+	 * @param request
+	 *            Request with the listeners for embedded resources and links
+	 * @throws IOException
+	 *             If the body could not be read completely, the partial file
+	 *             is deleted
+	 */
+	void receive(BufferedInputStream in, String path, Request request) throws IOException {
+		receive(in, createFile(path), request);
+	}
+
+	/**
+	 * Reads the body from the stream straight into the given file, like
+	 * {@link #receive(BufferedInputStream, String, Request)}.
+	 *
+	 * @param in
+	 *            Stream positioned at the start of the body
+	 * @param file
+	 *            File the body is written to, or {@code null} to discard it
+	 * @param request
+	 *            Request with the listeners for embedded resources and links
+	 * @throws IOException
+	 *             If the body could not be read completely, the partial file
+	 *             is deleted
+	 */
+	void receive(BufferedInputStream in, File file, Request request) throws IOException {
+		received = true;
+		this.resourceListener = request.getResourceListener();
+		this.linkListener = request.getLinkListener();
+		ResourceExtractor extractor = newExtractor();
+		scanned = extractor != null;
+		long length;
+		try (OutputStream fileOut = file == null ? null : new FileOutputStream(file)) {
+			length = transferMessage(in, headers, new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if (fileOut != null) {
+						fileOut.write(b, off, len);
+					}
+					if (extractor != null) {
+						extractor.write(b, off, len);
+					}
+				}
+			});
+		} catch (IOException e) {
+			if (file != null) {
+				file.delete();
+			}
+			throw e;
+		}
+		if (file != null) {
+			if (length == 0) {
+				file.delete();
+			} else {
+				savedFile = file;
+				System.out.println("File written to: " + file.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Marks the body as saved in the given file, after it was written there
+	 * piece by piece, and scans the file for embedded resources.
+	 *
+	 * @param file
+	 * @param request
+	 *            Request with the listeners for embedded resources and links
+	 * @throws IOException
+	 */
+	void received(File file, Request request) throws IOException {
+		received = true;
+		savedFile = file;
+		this.resourceListener = request.getResourceListener();
+		this.linkListener = request.getLinkListener();
+		ResourceExtractor extractor = newExtractor();
+		if (extractor != null) {
+			scanned = true;
+			byte[] buffer = new byte[8192];
+			try (InputStream in = Files.newInputStream(file.toPath())) {
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					extractor.write(buffer, 0, read);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the file the body was saved in to the given file, replacing it.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	void moveTo(File file) throws IOException {
+		Files.move(savedFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		savedFile = file;
+	}
+
+	/**
+	 * Takes the body from a copy kept earlier, e.g. by a {@link HttpCache},
+	 * instead of reading it from a connection. Like a received body, it is
+	 * saved under the given path and scanned for embedded resources and
+	 * links.
+	 *
+	 * @param copy
+	 *            File holding the body
+	 * @param path
+	 *            Directory the body is saved in, or {@code null} to keep the
+	 *            body in memory
+	 * @param request
+	 *            Request with the listeners for embedded resources and links
+	 * @throws IOException
+	 *             If the copy could not be read
+	 */
+	void restore(File copy, String path, Request request) throws IOException {
+		if (path == null) {
+			body = Files.readAllBytes(copy.toPath());
+			return;
+		}
+		File file = createFile(path);
+		if (file == null) {
+			// saved under the path already, refer to the copy
+			received(copy, request);
+			return;
+		}
+		try {
+			Files.copy(copy.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+		System.out.println("File written to: " + file.getPath());
+		received(file, request);
+	}
+
+	/**
+	 * Creates the file the response is saved as. Non-existent directories
+	 * will be created
+	 *
+	 * @param path
+	 *            Path to the place where the file will be saved
+	 * @return The new file, or {@code null} if it already exists
+	 */
+	private File createFile(String path) {
+		try {
+			path = java.net.URLDecoder.decode(path, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+		File file = new File(path + getName());
+		// Show message if file already exists
+		if (file.exists()) {
+			System.err.println("Could not write to " + path + getName() + ". File already exists.");
+			return null;
+		}
+		// Create new file
+		try {
+			file.getParentFile().mkdirs();
+			file.createNewFile();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return file;
+	}
+
 	/**
 	 * @return Returns the file extension for a file of a given MIME-type. The
 	 *         MIME-type is looked up in the headers.
@@ -0,0 +1,43 @@
+package client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+
+    @Test
+    public void testAddedElementsAreFound() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        int added = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (filter.add("localhost:80/page" + i)) {
+                added++;
+            }
+        }
+        // a few new elements may be taken for added ones
+        assertTrue(added > 980);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("localhost:80/page" + i));
+            assertFalse(filter.add("localhost:80/page" + i));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(100000, 0.01);
+        for (int i = 0; i < 100000; i++) {
+            filter.add("http://example.com/" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("http://example.org/" + i)) {
+                falsePositives++;
+            }
+        }
+        // 1% expected, with some margin
+        assertTrue("false positives: " + falsePositives, falsePositives < 1500);
+        // about 1.2 bytes per element
+        assertTrue(filter.getBits() / 8 < 130000);
+    }
+}
@@ -0,0 +1,100 @@
+package client;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+
+    private static void assertWaiting(Future<Connection> acquired) throws Exception {
+        try {
+            acquired.get(300, TimeUnit.MILLISECONDS);
+            fail("connection acquired beyond the limit");
+        } catch (TimeoutException e) {
+            // waits for a release
+        }
+    }
+
+    @Test
+    public void testLimitPerHost() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (LocalServer server = new LocalServer(0)) {
+            ConnectionPool pool = new ConnectionPool(2, 10, 60000);
+            Connection first = pool.acquire("localhost", server.getPort());
+            Connection second = pool.acquire("localhost", server.getPort());
+            assertNotSame(first, second);
+            Future<Connection> third = executor.submit(() -> pool.acquire("localhost", server.getPort()));
+            assertWaiting(third);
+            // the released connection is handed to the waiting caller
+            pool.release(first);
+            assertSame(first, third.get(5, TimeUnit.SECONDS));
+            assertEquals(2, server.getConnections(2));
+            pool.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTotalLimitClosesIdleConnectionOfOtherHost() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (LocalServer a = new LocalServer(0); LocalServer b = new LocalServer(0)) {
+            ConnectionPool pool = new ConnectionPool(2, 2, 60000);
+            Connection toA = pool.acquire("localhost", a.getPort());
+            Connection toB = pool.acquire("localhost", b.getPort());
+            Future<Connection> secondToB = executor.submit(() -> pool.acquire("localhost", b.getPort()));
+            assertWaiting(secondToB);
+            // an idle connection to a makes room for one to b
+            pool.release(toA);
+            assertNotSame(toB, secondToB.get(5, TimeUnit.SECONDS));
+            assertTrue(toA.isClosed());
+            assertEquals(2, b.getConnections(2));
+            pool.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsEvicted() throws IOException, InterruptedException {
+        try (LocalServer server = new LocalServer(0)) {
+            ConnectionPool pool = new ConnectionPool(2, 10, 100);
+            Connection connection = pool.acquire("localhost", server.getPort());
+            pool.release(connection);
+            assertSame(connection, pool.acquire("localhost", server.getPort()));
+            pool.release(connection);
+            Thread.sleep(300);
+            Connection fresh = pool.acquire("localhost", server.getPort());
+            assertNotSame(connection, fresh);
+            assertTrue(connection.isClosed());
+            assertEquals(2, server.getConnections(2));
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testReleasingClosedConnectionFreesItsSlot() throws Exception {
+        try (LocalServer server = new LocalServer(0)) {
+            ConnectionPool pool = new ConnectionPool(1, 1, 60000);
+            Connection connection = pool.acquire("localhost", server.getPort());
+            connection.close();
+            pool.release(connection);
+            // does not wait, and does not hand out the closed connection
+            Connection fresh = pool.acquire("localhost", server.getPort());
+            assertNotSame(connection, fresh);
+            assertFalse(fresh.isClosed());
+            assertEquals(2, server.getConnections(2));
+            // closing the pool closes the idle connections
+            pool.release(fresh);
+            pool.close();
+            assertTrue(fresh.isClosed());
+        }
+    }
+}
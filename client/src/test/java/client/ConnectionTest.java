@@ -0,0 +1,59 @@
+package client;
+
+import org.junit.Test;
+
+import util.Method;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionTest {
+
+    private static List<Request> requests(LocalServer server, int count) {
+        List<Request> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(new Request(Method.GET, "localhost", server.getPort(), "/file" + i));
+        }
+        return requests;
+    }
+
+    private static void assertAnswered(List<Request> requests, List<Response> responses) {
+        assertEquals(requests.size(), responses.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(200, responses.get(i).getStatusCode());
+            assertEquals(requests.get(i).getFile(), new String(responses.get(i).getBody(), StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Test
+    public void testPipelinedResponsesInOrder() throws IOException, InterruptedException {
+        try (LocalServer server = new LocalServer(0)) {
+            Connection connection = new Connection("localhost", server.getPort());
+            List<Request> requests = requests(server, 5);
+            List<Response> responses = connection.executePipelined(requests, Arrays.asList(new String[5]));
+            assertAnswered(requests, responses);
+            assertEquals(1, server.getConnections(1));
+            assertFalse(connection.isClosed());
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testPipelineFallsBackWhenServerCloses() throws IOException, InterruptedException {
+        try (LocalServer server = new LocalServer(3)) {
+            Connection connection = new Connection("localhost", server.getPort());
+            List<Request> requests = requests(server, 5);
+            List<Response> responses = connection.executePipelined(requests, Arrays.asList(new String[5]));
+            assertAnswered(requests, responses);
+            // the last two requests are sent again, one by one
+            assertEquals(2, server.getConnections(2));
+            assertEquals(Arrays.asList("/file0", "/file1", "/file2", "/file3", "/file4"), server.getTargets());
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package client;
+
+import org.junit.Test;
+
+import util.Method;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class FetchSchedulerTest {
+
+    /**
+     * Fetches the files /file0 to /file{count - 1} from the server.
+     *
+     * @return Targets of the requests, in the order they were submitted
+     */
+    private static List<String> fetch(LocalServer server, FetchScheduler scheduler, int count, Path directory)
+            throws InterruptedException {
+        List<String> targets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            targets.add("/file" + i);
+            scheduler.submit(new Request(Method.GET, "localhost", server.getPort(), "/file" + i), directory.toString());
+        }
+        scheduler.awaitCompletion();
+        scheduler.shutdown();
+        return targets;
+    }
+
+    private static long countFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    @Test
+    public void testLimitPerHostAndPipelining() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("fetch");
+        try (LocalServer server = new LocalServer(0)) {
+            ConnectionPool pool = new ConnectionPool(10, 10, 60000);
+            FetchScheduler scheduler = new FetchScheduler(pool, 4, 2, 3);
+            List<String> targets = fetch(server, scheduler, 9, directory);
+            assertEquals(new HashSet<>(targets), new HashSet<>(server.getTargets()));
+            assertEquals(9, server.getTargets().size());
+            assertEquals(9, countFiles(directory));
+            // at most two batches at a time, on connections of the pool
+            assertTrue(server.getMaxOpen() <= 2);
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testQueuedInOrderOfSubmission() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("fetch");
+        try (LocalServer server = new LocalServer(0)) {
+            ConnectionPool pool = new ConnectionPool(10, 10, 60000);
+            FetchScheduler scheduler = new FetchScheduler(pool, 4, 1, 1);
+            List<String> targets = fetch(server, scheduler, 5, directory);
+            assertEquals(targets, server.getTargets());
+            assertEquals(5, countFiles(directory));
+            // one request at a time, all on the same connection
+            assertEquals(1, server.getMaxOpen());
+            assertEquals(1, server.getConnections(1));
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package client;
+
+import org.junit.Test;
+
+import util.Method;
+
+import static org.junit.Assert.*;
+
+public class FrontierTest {
+
+    private static Request get(String host, String file) {
+        return new Request(Method.GET, host, 80, file);
+    }
+
+    @Test
+    public void testShallowPagesFirst() throws InterruptedException {
+        Frontier frontier = new Frontier(5, 10, 100, 0, new BloomFilter(100, 0.01));
+        assertTrue(frontier.add(get("a", "/deep"), 2));
+        assertTrue(frontier.add(get("a", "/first"), 1));
+        assertTrue(frontier.add(get("a", "/second"), 1));
+        assertFalse(frontier.add(get("a", "/first"), 0));
+        for (String file : new String[]{"/first", "/second", "/deep"}) {
+            Frontier.Entry entry = frontier.take();
+            assertEquals(file, entry.getRequest().getFile());
+            frontier.done(entry);
+        }
+        // nothing queued and nothing being fetched
+        assertNull(frontier.take());
+    }
+
+    @Test
+    public void testLimits() {
+        Frontier frontier = new Frontier(1, 2, 3, 0, new BloomFilter(100, 0.01));
+        assertFalse(frontier.add(get("a", "/too-deep"), 2));
+        assertTrue(frontier.add(get("a", "/"), 0));
+        assertTrue(frontier.add(get("b", "/"), 1));
+        assertFalse(frontier.add(get("c", "/"), 1));
+        assertTrue(frontier.add(get("b", "/other"), 1));
+        assertFalse(frontier.add(get("a", "/last"), 1));
+        assertEquals(3, frontier.getAdmitted());
+        assertEquals(3, frontier.getSkipped());
+        assertEquals(2, frontier.getHosts());
+    }
+
+    @Test
+    public void testPolitenessDelay() throws InterruptedException {
+        Frontier frontier = new Frontier(5, 10, 100, 200, new BloomFilter(100, 0.01));
+        frontier.add(get("a", "/1"), 0);
+        frontier.add(get("a", "/2"), 0);
+        frontier.add(get("b", "/1"), 0);
+        Frontier.Entry first = frontier.take();
+        // another host while the first one is busy
+        Frontier.Entry second = frontier.take();
+        assertNotEquals(first.getRequest().getHost(), second.getRequest().getHost());
+        frontier.done(second);
+        long done = System.nanoTime();
+        frontier.done(first);
+        Frontier.Entry third = frontier.take();
+        assertEquals("/2", third.getRequest().getFile());
+        assertTrue(System.nanoTime() - done >= 200 * 1000000L);
+        frontier.done(third);
+        assertNull(frontier.take());
+    }
+}
@@ -0,0 +1,109 @@
+package client;
+
+import org.junit.Test;
+
+import util.Method;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class HttpCacheTest {
+
+    private static HashMap<String, String> headers(String... namesAndValues) {
+        HashMap<String, String> headers = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return headers;
+    }
+
+    @Test
+    public void testExpires() {
+        long now = 1000000;
+        assertEquals(now + 60000, HttpCache.expires(headers("Cache-Control", "public, max-age=60"), now));
+        assertEquals(now, HttpCache.expires(headers("Cache-Control", "no-cache, max-age=60"), now));
+        // max-age takes precedence over Expires
+        assertEquals(now + 60000, HttpCache.expires(headers("Cache-Control", "max-age=60",
+                "Expires", "Thu, 01 Jan 1970 00:00:00 GMT"), now));
+        // Expires relative to the Date of the response
+        assertEquals(now + 3600000, HttpCache.expires(headers("Date", "Sun, 06 Nov 1994 08:49:37 GMT",
+                "Expires", "Sun, 06 Nov 1994 09:49:37 GMT"), now));
+        assertEquals(now, HttpCache.expires(headers("Expires", "0"), now));
+        assertEquals(now, HttpCache.expires(headers(), now));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws IOException {
+        File directory = Files.createTempDirectory("cache").toFile();
+        HttpCache cache = new HttpCache(directory, 25);
+        Request a = new Request(Method.GET, "localhost", 80, "/a");
+        Request b = new Request(Method.GET, "localhost", 80, "/b");
+        Request c = new Request(Method.GET, "localhost", 80, "/c");
+        cache.update(a, response(a));
+        cache.update(b, response(b));
+        assertNotNull(cache.get(a));
+        // b is the least recently used now
+        cache.update(c, response(c));
+        assertNotNull(cache.get(a));
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(c));
+        assertEquals(20, cache.getBytes());
+
+        // the index survives a restart
+        cache.close();
+        HttpCache reopened = new HttpCache(directory, 25);
+        assertEquals("\"c\"", reopened.get(c).getHeaders().get("ETag"));
+        assertEquals(20, reopened.getBytes());
+
+        // a PUT makes the body outdated
+        reopened.update(new Request(Method.PUT, "localhost", 80, "/a", "new"), response(a));
+        assertNull(reopened.get(a));
+    }
+
+    @Test
+    public void testBodyNotStoredRemovesEntry() throws IOException {
+        HttpCache cache = new HttpCache(Files.createTempDirectory("cache").toFile(), 1000);
+        Request a = new Request(Method.GET, "localhost", 80, "/a");
+        cache.update(a, response(a));
+        File stored = cache.get(a).getFile();
+        Response response = response(a);
+        response.getHeaders().put("Cache-Control", "no-store");
+        cache.update(a, response);
+        assertNull(cache.get(a));
+        assertFalse(stored.exists());
+        assertEquals(0, cache.getBytes());
+
+        // the full body sent for a range request
+        cache.update(a, response(a));
+        Request range = new Request(Method.GET, "localhost", 80, "/a");
+        range.setHeader("Range", "bytes=0-4");
+        cache.update(range, response(a));
+        assertNull(cache.get(a));
+    }
+
+    @Test
+    public void testSavedFileIsCopied() throws IOException {
+        HttpCache cache = new HttpCache(Files.createTempDirectory("cache").toFile(), 1000);
+        Request a = new Request(Method.GET, "localhost", 80, "/a.txt");
+        File body = File.createTempFile("body", ".txt");
+        Files.write(body.toPath(), "0123456789".getBytes());
+        Response response = new Response(200, headers("ETag", "\"a\""), "localhost", 80, "/a.txt");
+        response.restore(body, Files.createTempDirectory("saved").toString(), a);
+        cache.update(a, response);
+
+        // the user changes the saved file
+        Files.write(response.getSavedFile().toPath(), "changed".getBytes());
+        assertEquals("0123456789", new String(Files.readAllBytes(cache.get(a).getFile().toPath())));
+    }
+
+    private static Response response(Request request) throws IOException {
+        HashMap<String, String> headers = headers("ETag", "\"" + request.getFile().substring(1) + "\"",
+                "Content-Type", "text/plain");
+        return new Response(200, headers, "0123456789".getBytes(), request.getHost(), request.getPort(),
+                request.getFile());
+    }
+}
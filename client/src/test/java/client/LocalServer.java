@@ -0,0 +1,139 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP server on a local port for the tests of the client. Every request is
+ * answered with a text body holding its target. A connection can be closed
+ * by the server after a number of responses, as servers with a limit on
+ * keep-alive requests do.
+ */
+class LocalServer implements Closeable {
+
+    private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    private final int responsesPerConnection;
+    private final List<String> targets = new ArrayList<>();
+    private int connections;
+    private int open;
+    private int maxOpen;
+
+    /**
+     * @param responsesPerConnection
+     *            Number of responses after which the server closes a
+     *            connection, 0 for no limit
+     */
+    LocalServer(int responsesPerConnection) throws IOException {
+        this.responsesPerConnection = responsesPerConnection;
+        Thread thread = new Thread(this::accept, "local-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Targets of the requests received so far, in order of arrival
+     */
+    synchronized List<String> getTargets() {
+        return new ArrayList<>(targets);
+    }
+
+    /**
+     * Counts the connections accepted so far. A connection the client has
+     * opened may not be accepted yet, so this waits up to a second for the
+     * expected number.
+     *
+     * @param expected
+     *            Number of connections the client opened
+     * @return Number of connections accepted
+     */
+    synchronized int getConnections(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (connections < expected && System.currentTimeMillis() < deadline) {
+            wait(deadline - System.currentTimeMillis());
+        }
+        return connections;
+    }
+
+    /**
+     * @return Largest number of connections that were open at the same time
+     */
+    synchronized int getMaxOpen() {
+        return maxOpen;
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                synchronized (this) {
+                    connections++;
+                    maxOpen = Math.max(maxOpen, ++open);
+                    notifyAll();
+                }
+                Thread thread = new Thread(() -> serve(socket), "local-server-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+            OutputStream out = s.getOutputStream();
+            int served = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String target = line.split(" ")[1];
+                while (!(line = in.readLine()).isEmpty()) {
+                    // skip the headers
+                }
+                synchronized (this) {
+                    targets.add(target);
+                }
+                byte[] body = target.getBytes(StandardCharsets.ISO_8859_1);
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length
+                        + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.write(body);
+                out.flush();
+                if (++served == responsesPerConnection) {
+                    // the client notices the end of the stream and closes
+                    s.shutdownOutput();
+                    while (in.read() != -1) {
+                        // discard the requests that will not be answered
+                    }
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            synchronized (this) {
+                open--;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,63 @@
+package client;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResourceExtractorTest {
+
+    private static final String PAGE = "<!DOCTYPE html>\n"
+            + "<html><head>\n"
+            + "<LINK rel=stylesheet HREF=\"/style.css\">\n"
+            + "<!-- <img src=\"commented.png\"> -->\n"
+            + "<script src='app.js'>if (a<b) document.write('<img src=\"script.png\">');</script>\n"
+            + "<style>@import \"print.css\"; body { background: url( 'bg.png' ) } /* url(no.png) */</style>\n"
+            + "</head><body>\n"
+            + "<img src=logo.png alt=\"<img src=x.png>\">\n"
+            + "<img srcset=\"small.jpg 480w, large.jpg 1080w\">\n"
+            + "<div style=\"background-image:url(div.png)\"></div>\n"
+            + "<a href=\"/next?a=1&amp;b=2\">next</a>\n"
+            + "</body></html>\n";
+
+    private static final List<String> EXPECTED = Arrays.asList("+/style.css", "+app.js", "+print.css", "+bg.png",
+            "+logo.png", "+small.jpg", "+large.jpg", "+div.png", "-/next?a=1&b=2");
+
+    @Test
+    public void testWholePage() {
+        assertEquals(EXPECTED, extract(PAGE, PAGE.length()));
+    }
+
+    @Test
+    public void testPageInSingleBytes() {
+        // the result does not depend on how the bytes arrive
+        assertEquals(EXPECTED, extract(PAGE, 1));
+    }
+
+    @Test
+    public void testStyleSheet() {
+        List<String> found = new ArrayList<>();
+        ResourceExtractor extractor = ResourceExtractor.forType("text/css; charset=utf-8",
+                (url, embedded) -> found.add(url));
+        byte[] css = "@IMPORT url(base.css);\na::after { content: \"url(no.png)\"; background: URL(a.png) }"
+                .getBytes(StandardCharsets.UTF_8);
+        extractor.write(css, 0, css.length);
+        assertEquals(Arrays.asList("base.css", "a.png"), found);
+        assertNull(ResourceExtractor.forType("image/png", (url, embedded) -> found.add(url)));
+    }
+
+    private static List<String> extract(String page, int chunk) {
+        List<String> found = new ArrayList<>();
+        ResourceExtractor extractor = ResourceExtractor.html(
+                (url, embedded) -> found.add((embedded ? "+" : "-") + url));
+        byte[] bytes = page.getBytes(StandardCharsets.UTF_8);
+        for (int off = 0; off < bytes.length; off += chunk) {
+            extractor.write(bytes, off, Math.min(chunk, bytes.length - off));
+        }
+        return found;
+    }
+}
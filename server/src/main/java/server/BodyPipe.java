@@ -0,0 +1,165 @@
+package server;
+
+import util.BufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded buffer between the thread generating a {@link StreamingBody} and
+ * the event loop writing it to the socket. The producer blocks while the
+ * buffer is full, so a slow client slows the producer down instead of the
+ * body piling up in memory.
+ *
+ * The chunks are copied into direct buffers from {@link BufferPool#direct()},
+ * which the socket writes without another copy, and are given back once
+ * they are written.
+ */
+class BodyPipe extends OutputStream {
+
+	private final int capacity;
+	private final Runnable onAvailable;
+	private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+	private int buffered;
+	private boolean finished;
+	private boolean aborted;
+	private IOException failure;
+
+	/**
+	 * @param capacity
+	 *            Number of bytes buffered before the producer blocks
+	 * @param onAvailable
+	 *            Called by the producer when bytes become available while
+	 *            the buffer was empty, or when the body is complete
+	 */
+	BodyPipe(int capacity, Runnable onAvailable) {
+		this.capacity = capacity;
+		this.onAvailable = onAvailable;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		boolean wasEmpty;
+		synchronized (this) {
+			// a write larger than the capacity is accepted into an empty pipe
+			while (!aborted && buffered > 0 && buffered + len > capacity) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while writing the body");
+				}
+			}
+			if (aborted) {
+				throw new IOException("Connection closed");
+			}
+			if (finished) {
+				throw new IOException("Stream closed");
+			}
+			ByteBuffer copy = BufferPool.direct().acquire(len);
+			copy.put(b, off, len).flip();
+			wasEmpty = buffers.isEmpty();
+			buffers.add(copy);
+			buffered += len;
+		}
+		if (wasEmpty) {
+			onAvailable.run();
+		}
+	}
+
+	/**
+	 * Marks the end of the body.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			finished = true;
+		}
+		onAvailable.run();
+	}
+
+	/**
+	 * Marks the body as failed, the connection has to be closed.
+	 *
+	 * @param e
+	 *            Reason of the failure
+	 */
+	void fail(IOException e) {
+		synchronized (this) {
+			failure = e;
+			finished = true;
+		}
+		onAvailable.run();
+	}
+
+	/**
+	 * Releases a producer waiting for room, called when the connection is
+	 * closed.
+	 */
+	synchronized void abort() {
+		aborted = true;
+		ByteBuffer buffer;
+		while ((buffer = buffers.poll()) != null) {
+			BufferPool.direct().release(buffer);
+		}
+		buffered = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Writes as many buffered bytes as the channel accepts. Called by the
+	 * event loop only.
+	 *
+	 * @param channel
+	 * @return {@code true} if the whole body was written
+	 * @throws IOException
+	 *             If the producer failed
+	 */
+	boolean transferTo(WritableByteChannel channel) throws IOException {
+		while (true) {
+			ByteBuffer next;
+			synchronized (this) {
+				next = buffers.peek();
+				if (next == null) {
+					if (failure != null) {
+						throw failure;
+					}
+					return finished;
+				}
+			}
+			int length = next.remaining();
+			channel.write(next);
+			if (next.hasRemaining()) {
+				return false;
+			}
+			synchronized (this) {
+				buffers.poll();
+				buffered -= length;
+				notifyAll();
+			}
+			BufferPool.direct().release(next);
+		}
+	}
+
+	/**
+	 * @return {@code true} if no bytes are buffered and the producer has not
+	 *         finished yet
+	 */
+	synchronized boolean isStarved() {
+		return buffers.isEmpty() && !finished;
+	}
+}
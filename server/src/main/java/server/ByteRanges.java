@@ -0,0 +1,240 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Byte ranges of a Range header (RFC 7233), resolved against the size of the
+ * selected representation. Ranges are sorted and overlapping or adjacent
+ * ranges are coalesced, so a client cannot make the server send the same
+ * bytes many times.
+ */
+final class ByteRanges {
+
+	/**
+	 * Most ranges accepted in one header, longer headers are ignored.
+	 */
+	static final int MAX_RANGES = 32;
+
+	private final long[] starts;
+	private final long[] ends;
+	private final long size;
+
+	private ByteRanges(long[] starts, long[] ends, long size) {
+		this.starts = starts;
+		this.ends = ends;
+		this.size = size;
+	}
+
+	/**
+	 * Parses a Range header such as "bytes=0-499, 1000-, -500".
+	 *
+	 * @param header
+	 *            Value of the header
+	 * @param size
+	 *            Size of the representation in bytes
+	 * @return The satisfiable ranges, none if no range is satisfiable, or
+	 *         {@code null} if the header has to be ignored because it is
+	 *         invalid, not in bytes, has no ranges or has too many ranges
+	 */
+	static ByteRanges parse(String header, long size) {
+		if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+			return null;
+		}
+		long[][] ranges = new long[MAX_RANGES][];
+		int count = 0;
+		int specs = 0;
+		int length = header.length();
+		int start = 6;
+		while (start <= length) {
+			int end = header.indexOf(',', start);
+			if (end == -1) {
+				end = length;
+			}
+			String spec = header.substring(start, end).trim();
+			start = end + 1;
+			if (spec.isEmpty()) {
+				continue;
+			}
+			specs++;
+			int dash = spec.indexOf('-');
+			if (dash == -1) {
+				return null;
+			}
+			String firstText = spec.substring(0, dash).trim();
+			String lastText = spec.substring(dash + 1).trim();
+			long first = firstText.isEmpty() ? -1 : parseNumber(firstText);
+			long last = lastText.isEmpty() ? -1 : parseNumber(lastText);
+			if (first == -1 && !firstText.isEmpty() || last == -1 && !lastText.isEmpty()) {
+				return null;
+			}
+			long[] range;
+			if (first == -1) {
+				// suffix range: the last bytes of the representation
+				if (last == -1) {
+					return null;
+				}
+				range = last == 0 || size == 0 ? null : new long[] { Math.max(0, size - last), size - 1 };
+			} else {
+				if (last != -1 && last < first) {
+					return null;
+				}
+				range = first >= size ? null : new long[] { first, last == -1 ? size - 1 : Math.min(last, size - 1) };
+			}
+			if (count == MAX_RANGES) {
+				return null;
+			}
+			if (range != null) {
+				ranges[count++] = range;
+			}
+		}
+		if (specs == 0) {
+			// a byte-range-set has at least one range
+			return null;
+		}
+		// coalesce ranges that overlap or touch
+		Arrays.sort(ranges, 0, count, (a, b) -> Long.compare(a[0], b[0]));
+		long[] starts = new long[count];
+		long[] ends = new long[count];
+		int merged = 0;
+		for (int i = 0; i < count; i++) {
+			if (merged > 0 && ranges[i][0] <= ends[merged - 1] + 1) {
+				ends[merged - 1] = Math.max(ends[merged - 1], ranges[i][1]);
+			} else {
+				starts[merged] = ranges[i][0];
+				ends[merged] = ranges[i][1];
+				merged++;
+			}
+		}
+		return new ByteRanges(Arrays.copyOf(starts, merged), Arrays.copyOf(ends, merged), size);
+	}
+
+	/**
+	 * @return The non-negative number, or -1 if the string is no number
+	 */
+	private static long parseNumber(String digits) {
+		if (digits.length() > 18) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = 0; i < digits.length(); i++) {
+			char c = digits.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @return Number of satisfiable ranges
+	 */
+	int count() {
+		return starts.length;
+	}
+
+	long getStart(int i) {
+		return starts[i];
+	}
+
+	long getLength(int i) {
+		return ends[i] - starts[i] + 1;
+	}
+
+	/**
+	 * @return Value of the Content-Range header for the range
+	 */
+	String getContentRange(int i) {
+		return "bytes " + starts[i] + "-" + ends[i] + "/" + size;
+	}
+
+	/**
+	 * @return Header of the body part of the range in a multipart/byteranges
+	 *         body, starting with the delimiter line
+	 */
+	private byte[] partHead(int i, String boundary, String contentType) {
+		StringBuilder head = new StringBuilder(96).append("\r\n--").append(boundary).append("\r\n");
+		if (contentType != null) {
+			head.append("Content-Type: ").append(contentType).append("\r\n");
+		}
+		head.append("Content-Range: ").append(getContentRange(i)).append("\r\n\r\n");
+		return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] closeDelimiter(String boundary) {
+		return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return Size of the multipart/byteranges body holding all ranges
+	 */
+	long getMultipartLength(String boundary, String contentType) {
+		long length = closeDelimiter(boundary).length;
+		for (int i = 0; i < count(); i++) {
+			length += partHead(i, boundary, contentType).length + getLength(i);
+		}
+		return length;
+	}
+
+	/**
+	 * Builds a multipart/byteranges body holding all ranges. The ranges are
+	 * copied from the content if it is in memory, or otherwise read from the
+	 * file with positional reads, which do not move a shared file position.
+	 *
+	 * @param boundary
+	 *            Boundary between the body parts
+	 * @param contentType
+	 *            Type of the representation, or {@code null}
+	 * @param content
+	 *            Content of the representation, or {@code null} to read it
+	 *            from the file
+	 * @param file
+	 *            File holding the representation
+	 * @return Buffer ready to be sent
+	 * @throws IOException
+	 */
+	ByteBuffer toMultipart(String boundary, String contentType, ByteBuffer content, Path file) throws IOException {
+		ByteBuffer body = ByteBuffer.allocate((int) getMultipartLength(boundary, contentType));
+		FileChannel channel = null;
+		try {
+			for (int i = 0; i < count(); i++) {
+				body.put(partHead(i, boundary, contentType));
+				int end = body.position() + (int) getLength(i);
+				if (content != null) {
+					ByteBuffer part = content.duplicate();
+					int base = content.position();
+					part.limit(base + (int) (starts[i] + getLength(i)));
+					part.position(base + (int) starts[i]);
+					body.put(part);
+				} else {
+					if (channel == null) {
+						channel = FileChannel.open(file, StandardOpenOption.READ);
+					}
+					body.limit(end);
+					long position = starts[i];
+					while (body.hasRemaining()) {
+						int read = channel.read(body, position);
+						if (read < 0) {
+							throw new IOException("File was truncated while sending: " + file);
+						}
+						position += read;
+					}
+					body.limit(body.capacity());
+				}
+			}
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+		body.put(closeDelimiter(boundary));
+		body.flip();
+		return body;
+	}
+}
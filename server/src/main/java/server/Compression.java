@@ -0,0 +1,280 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-coding negotiation and on-the-fly compression of static files.
+ * Compressed variants are kept in a cache bounded by their total size, and
+ * are recognized as stale when the size or modification time of the file
+ * changes.
+ */
+class Compression {
+
+	static final String BROTLI = "br";
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+
+	/**
+	 * Codings in order of preference when the client gives them the same
+	 * quality. Brotli is only served from precompressed files.
+	 */
+	static final String[] CODINGS = { BROTLI, GZIP, DEFLATE };
+
+	/**
+	 * Compressed content of a file.
+	 */
+	private static class Variant {
+		final long size;
+		final long lastModified;
+		final ByteBuffer content;
+
+		Variant(long size, long lastModified, ByteBuffer content) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.content = content;
+		}
+	}
+
+	private static final int STREAM_BUFFER_BYTES = 8192;
+
+	private final long cacheBytes;
+	private final long minBytes;
+	private final long maxBytes;
+	private final int level;
+	private final boolean stream;
+
+	private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(16, 0.75f, true);
+	private long cachedBytes;
+
+	/**
+	 * @param cacheBytes
+	 *            Total size of the compressed variants kept
+	 * @param minBytes
+	 *            Smallest file compressed on the fly
+	 * @param maxBytes
+	 *            Largest file compressed in memory
+	 * @param level
+	 *            Compression level, 1 (fast) to 9 (small)
+	 * @param stream
+	 *            Whether larger files are compressed while they are sent,
+	 *            instead of being sent as they are
+	 */
+	Compression(long cacheBytes, long minBytes, long maxBytes, int level, boolean stream) {
+		this.cacheBytes = cacheBytes;
+		this.minBytes = minBytes;
+		this.maxBytes = maxBytes;
+		this.level = level;
+		this.stream = stream;
+	}
+
+	/**
+	 * Returns the quality the client assigns to a content-coding in its
+	 * Accept-Encoding header.
+	 *
+	 * @param acceptEncoding
+	 *            Value of the header, e.g. "gzip;q=1.0, br, *;q=0"
+	 * @param coding
+	 * @return Quality between 0 (not acceptable) and 1
+	 */
+	static float quality(String acceptEncoding, String coding) {
+		float wildcard = 0;
+		int length = acceptEncoding.length();
+		int start = 0;
+		while (start < length) {
+			int end = acceptEncoding.indexOf(',', start);
+			if (end == -1) {
+				end = length;
+			}
+			int nameEnd = acceptEncoding.indexOf(';', start);
+			if (nameEnd == -1 || nameEnd > end) {
+				nameEnd = end;
+			}
+			String name = acceptEncoding.substring(start, nameEnd).trim();
+			float q = 1;
+			int qStart = acceptEncoding.indexOf("q=", nameEnd);
+			if (qStart != -1 && qStart < end) {
+				try {
+					q = Float.parseFloat(acceptEncoding.substring(qStart + 2, end).trim());
+				} catch (NumberFormatException e) {
+					q = 0;
+				}
+			}
+			if (name.equalsIgnoreCase(coding)) {
+				return q;
+			}
+			if (name.equals("*")) {
+				wildcard = q;
+			}
+			start = end + 1;
+		}
+		return wildcard;
+	}
+
+	/**
+	 * @param contentType
+	 * @return Whether files of the type become noticeably smaller when
+	 *         compressed
+	 */
+	static boolean isCompressible(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		return contentType.startsWith("text/") || contentType.endsWith("+xml") || contentType.endsWith("/xml")
+				|| contentType.endsWith("/json") || contentType.endsWith("/javascript")
+				|| contentType.endsWith("/x-javascript") || contentType.equals("image/svg+xml");
+	}
+
+	/**
+	 * @return Whether a file of the given size is compressed on the fly
+	 */
+	boolean accepts(long size) {
+		return size >= minBytes && size <= maxBytes;
+	}
+
+	/**
+	 * @return Whether a file of the given size is compressed while it is
+	 *         sent, because it is too large to be compressed in memory. Such
+	 *         a body has no length, so it cannot be sent with sendfile or in
+	 *         ranges; unless streaming is enabled, the file is sent as it is.
+	 */
+	boolean streams(long size) {
+		return stream && size > maxBytes;
+	}
+
+	/**
+	 * Returns a body that compresses the file while it is sent, without
+	 * holding the file or its compressed variant in memory.
+	 *
+	 * @param path
+	 * @param content
+	 *            Content of the file if it is in memory, or {@code null} to
+	 *            read it from disk
+	 * @param coding
+	 *            {@link #GZIP} or {@link #DEFLATE}
+	 * @return The compressed body
+	 */
+	StreamingBody stream(Path path, ByteBuffer content, String coding) {
+		return out -> {
+			if (coding.equals(GZIP)) {
+				try (OutputStream compressed = new GZIPOutputStream(out, STREAM_BUFFER_BYTES) {
+					{
+						def.setLevel(level);
+					}
+				}) {
+					copy(path, content, compressed);
+				}
+			} else {
+				Deflater deflater = new Deflater(level);
+				try (OutputStream compressed = new DeflaterOutputStream(out, deflater, STREAM_BUFFER_BYTES)) {
+					copy(path, content, compressed);
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	private static void copy(Path path, ByteBuffer content, OutputStream out) throws IOException {
+		if (content != null) {
+			Channels.newChannel(out).write(content.duplicate());
+		} else {
+			Files.copy(path, out);
+		}
+	}
+
+	/**
+	 * Returns the file compressed with gzip or deflate, compressing it if
+	 * the cache holds no current variant.
+	 *
+	 * @param path
+	 * @param size
+	 *            Size of the file
+	 * @param lastModified
+	 *            Modification time of the file
+	 * @param content
+	 *            Content of the file if it is in memory, or {@code null} to
+	 *            read it from disk
+	 * @param coding
+	 *            {@link #GZIP} or {@link #DEFLATE}
+	 * @return Read-only buffer with the compressed content, or {@code null}
+	 *         if compressing does not make the file smaller
+	 * @throws IOException
+	 */
+	ByteBuffer get(Path path, long size, long lastModified, ByteBuffer content, String coding) throws IOException {
+		String key = coding + ":" + path;
+		Variant variant;
+		synchronized (this) {
+			variant = variants.get(key);
+		}
+		if (variant == null || variant.size != size || variant.lastModified != lastModified) {
+			byte[] bytes;
+			if (content != null) {
+				bytes = new byte[content.remaining()];
+				content.duplicate().get(bytes);
+			} else {
+				bytes = Files.readAllBytes(path);
+			}
+			ByteBuffer compressed = compress(bytes, coding);
+			variant = new Variant(size, lastModified, compressed);
+			put(key, variant);
+		}
+		return variant.content == null ? null : variant.content.duplicate();
+	}
+
+	private ByteBuffer compress(byte[] bytes, String coding) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 3 + 64);
+		if (coding.equals(GZIP)) {
+			try (OutputStream out = new GZIPOutputStream(compressed) {
+				{
+					def.setLevel(level);
+				}
+			}) {
+				out.write(bytes);
+			}
+		} else {
+			Deflater deflater = new Deflater(level);
+			try (OutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+				out.write(bytes);
+			} finally {
+				deflater.end();
+			}
+		}
+		if (compressed.size() >= bytes.length) {
+			// remember that compressing does not pay off
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(compressed.size());
+		buffer.put(compressed.toByteArray());
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	private synchronized void put(String key, Variant variant) {
+		Variant previous = variants.put(key, variant);
+		if (previous != null) {
+			cachedBytes -= weight(previous);
+		}
+		cachedBytes += weight(variant);
+		Iterator<Map.Entry<String, Variant>> eldest = variants.entrySet().iterator();
+		while (cachedBytes > cacheBytes && eldest.hasNext()) {
+			cachedBytes -= weight(eldest.next().getValue());
+			eldest.remove();
+		}
+	}
+
+	private static long weight(Variant variant) {
+		return 64 + (variant.content == null ? 0 : variant.content.capacity());
+	}
+}
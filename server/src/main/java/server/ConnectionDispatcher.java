@@ -0,0 +1,39 @@
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Decides on which thread an accepted connection of the blocking engine is
+ * served.
+ */
+interface ConnectionDispatcher {
+
+	/**
+	 * Serves the given connection, or rejects it when no capacity is left.
+	 *
+	 * @param socket
+	 *            Newly accepted connection
+	 * @throws IOException
+	 */
+	void dispatch(Socket socket) throws IOException;
+
+	/**
+	 * Creates the dispatcher selected by the "dispatcher" option.
+	 *
+	 * @param config
+	 * @return ConnectionDispatcher for the given configuration
+	 */
+	static ConnectionDispatcher create(ServerConfig config) {
+		switch (config.getDispatcher()) {
+		case "thread":
+			return ExecutorDispatcher.threadPerConnection();
+		case "pool":
+			return ExecutorDispatcher.boundedPool(config.getWorkers(), config.getQueueSize());
+		case "virtual":
+			return ExecutorDispatcher.virtualThreads();
+		default:
+			throw new IllegalArgumentException("Unknown dispatcher: " + config.getDispatcher());
+		}
+	}
+}
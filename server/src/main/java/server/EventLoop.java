@@ -0,0 +1,147 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Single-threaded loop that serves all connections registered with its
+ * selector. Connections are handed over by the accepting thread through
+ * {@link #register(SocketChannel)}.
+ */
+class EventLoop implements Runnable {
+
+	private final Selector selector;
+	private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final RequestHandler handler = new RequestHandler();
+	private final int idleTimeout;
+	private final ExecutorService handlers;
+	private final ExecutorService producers;
+	private long lastIdleCheck;
+
+	/**
+	 * @param idleTimeout
+	 *            Milliseconds after which an idle connection is closed
+	 * @param handlers
+	 *            Threads handling requests
+	 * @param producers
+	 *            Threads generating streaming bodies
+	 * @throws IOException
+	 */
+	EventLoop(int idleTimeout, ExecutorService handlers, ExecutorService producers) throws IOException {
+		this.selector = Selector.open();
+		this.idleTimeout = idleTimeout;
+		this.handlers = handlers;
+		this.producers = producers;
+	}
+
+	/**
+	 * Hands a newly accepted connection over to this loop. Safe to call from
+	 * any thread.
+	 *
+	 * @param channel
+	 */
+	void register(SocketChannel channel) {
+		pending.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs the task on the thread of this loop. Safe to call from any
+	 * thread.
+	 *
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select(1000);
+				registerPending();
+				runTasks();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							connection.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.onWritable();
+						}
+					} catch (IOException e) {
+						connection.close();
+					} catch (RuntimeException e) {
+						// a bug or unexpected input of one connection must not
+						// stop the loop for all others
+						Log.error("Unexpected error on a connection, closing it", e);
+						connection.close();
+					}
+				}
+				closeIdleConnections();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void registerPending() {
+		SocketChannel channel;
+		while ((channel = pending.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				key.attach(new NioConnection(channel, key, handler, this, handlers, producers));
+			} catch (IOException e) {
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Log.error("Unexpected error in a task of the event loop", e);
+			}
+		}
+	}
+
+	/**
+	 * Closes keep-alive connections that have been idle, and connections
+	 * whose client stopped reading their response, for longer than the idle
+	 * timeout. Runs at most once per second.
+	 */
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		if (now - lastIdleCheck < 1000) {
+			return;
+		}
+		lastIdleCheck = now;
+		for (SelectionKey key : selector.keys()) {
+			NioConnection connection = (NioConnection) key.attachment();
+			if (connection != null && connection.isIdle(now - idleTimeout)) {
+				connection.close();
+			}
+		}
+	}
+}
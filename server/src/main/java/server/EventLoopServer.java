@@ -0,0 +1,82 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server engine. Accepted connections are spread round-robin
+ * over a fixed number of event loops, each multiplexing its connections on
+ * a single thread with a {@link java.nio.channels.Selector}. Requests are
+ * handled, and streaming bodies generated, by bounded pools of threads shared
+ * by the loops.
+ */
+class EventLoopServer {
+
+	private final ServerConfig config;
+	private final EventLoop[] loops;
+
+	EventLoopServer(ServerConfig config) throws IOException {
+		this.config = config;
+		this.loops = new EventLoop[Math.max(1, config.getEventLoops())];
+		ExecutorService handlers = boundedPool("request-handler-", config.getHandlers(), config.getHandlerQueue());
+		ExecutorService producers = boundedPool("body-producer-", config.getProducers(), config.getProducerQueue());
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(config.getIdleTimeout(), handlers, producers);
+		}
+	}
+
+	/**
+	 * @param name
+	 *            Prefix of the thread names
+	 * @param threads
+	 *            Number of threads
+	 * @param queueSize
+	 *            Number of tasks that may wait for a free thread before
+	 *            further ones are rejected
+	 * @return Pool of daemon threads
+	 */
+	static ExecutorService boundedPool(String name, int threads, int queueSize) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)), task -> {
+					Thread thread = new Thread(task, name + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Starts the event loops and accepts connections until the process is
+	 * stopped.
+	 *
+	 * @throws IOException
+	 */
+	void run() throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			Thread thread = new Thread(loops[i], "event-loop-" + i);
+			thread.start();
+		}
+		ServerSocketChannel serverChannel = Main.bind(config);
+		Log.info("EVENTLOOPSERVER - Listening with " + loops.length + " event loops");
+		int next = 0;
+		while (true) {
+			SocketChannel channel = serverChannel.accept();
+			try {
+				Main.configureSocket(channel.socket(), config);
+			} catch (IOException e) {
+				channel.close();
+				continue;
+			}
+			loops[next].register(channel);
+			next = (next + 1) % loops.length;
+		}
+	}
+}
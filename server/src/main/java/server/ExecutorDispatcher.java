@@ -0,0 +1,81 @@
+package server;
+
+import server.exceptions.ServiceUnavailableException;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a {@link ServerThread} per connection on an {@link Executor}.
+ * Connections the executor rejects are answered with
+ * "503 Service Unavailable" and closed.
+ */
+class ExecutorDispatcher implements ConnectionDispatcher {
+
+	private final Executor executor;
+
+	private ExecutorDispatcher(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return Dispatcher that starts a new platform thread for every
+	 *         connection, without any limit
+	 */
+	static ExecutorDispatcher threadPerConnection() {
+		return new ExecutorDispatcher(task -> new Thread(task).start());
+	}
+
+	/**
+	 * @param workers
+	 *            Number of threads serving connections
+	 * @param queueSize
+	 *            Number of accepted connections that may wait for a free
+	 *            thread
+	 * @return Dispatcher with a fixed number of platform threads
+	 */
+	static ExecutorDispatcher boundedPool(int workers, int queueSize) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory threadFactory = task -> new Thread(task, "server-worker-" + count.incrementAndGet());
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, queueSize)), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+		return new ExecutorDispatcher(executor);
+	}
+
+	/**
+	 * @return Dispatcher that serves every connection on a virtual thread
+	 * @throws IllegalStateException
+	 *             If the JVM does not support virtual threads (JDK 21+)
+	 */
+	static ExecutorDispatcher virtualThreads() {
+		try {
+			// looked up reflectively, the sources target Java 8
+			Executor executor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			return new ExecutorDispatcher(executor);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("Virtual threads require JDK 21 or newer");
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Could not create virtual thread executor", e);
+		}
+	}
+
+	@Override
+	public void dispatch(Socket socket) throws IOException {
+		ServerThread serverThread = new ServerThread(socket);
+		try {
+			executor.execute(serverThread);
+		} catch (RejectedExecutionException e) {
+			serverThread.reject(new ServiceUnavailableException());
+		}
+	}
+}
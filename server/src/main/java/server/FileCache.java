@@ -0,0 +1,403 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * In-memory cache of the files served from the root directory. An entry
+ * holds the precomputed header values of a file and, for small files, its
+ * content in an off-heap buffer, so a cache hit is served without touching
+ * the file system. Entries are invalidated by a {@link WatchService} on the
+ * root directory when files change.
+ */
+class FileCache {
+
+	/**
+	 * Estimated memory used by an entry, apart from its content.
+	 */
+	private static final long ENTRY_OVERHEAD = 256;
+
+	/**
+	 * Cached state of one regular file.
+	 */
+	static class Entry {
+		private final ByteBuffer content;
+		private final long size;
+		private final long lastModified;
+		private final String contentType;
+		private final String lastModifiedHeader;
+		private final String etag;
+		/**
+		 * Whether a current gzip or brotli copy of the file exists next to
+		 * it, or {@code null} if that has not been looked up yet. A sibling
+		 * that is created or changed invalidates this entry.
+		 */
+		private volatile Boolean gzipSibling;
+		private volatile Boolean brotliSibling;
+
+		Entry(ByteBuffer content, long size, long lastModified, String contentType) {
+			this.content = content;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+			this.lastModifiedHeader = HttpDate.format(lastModified);
+			this.etag = etag(size, lastModified);
+		}
+
+		/**
+		 * @return Read-only view on the content of the file, or {@code null}
+		 *         if the file is too large to be kept in memory
+		 */
+		ByteBuffer getContent() {
+			return content == null ? null : content.duplicate();
+		}
+
+		long getSize() {
+			return size;
+		}
+
+		long getLastModified() {
+			return lastModified;
+		}
+
+		String getContentType() {
+			return contentType;
+		}
+
+		String getLastModifiedHeader() {
+			return lastModifiedHeader;
+		}
+
+		String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @param coding
+		 *            Content coding of the sibling
+		 * @return Whether a precompressed sibling of the file was found, or
+		 *         {@code null} if it was not looked up yet
+		 */
+		Boolean hasSibling(String coding) {
+			return coding.equals(Compression.GZIP) ? gzipSibling : brotliSibling;
+		}
+
+		void setSibling(String coding, boolean present) {
+			if (coding.equals(Compression.GZIP)) {
+				gzipSibling = present;
+			} else {
+				brotliSibling = present;
+			}
+		}
+
+		/**
+		 * @return Strong entity tag of a file with the given size and
+		 *         modification time
+		 */
+		static String etag(long size, long lastModified) {
+			return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+		}
+
+		private long weight() {
+			return ENTRY_OVERHEAD + (content == null ? 0 : size);
+		}
+	}
+
+	private final long maxBytes;
+	private final long maxFileBytes;
+	private final boolean admissionFilter;
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final FrequencySketch sketch;
+	private long usedBytes;
+	/**
+	 * Number of invalidations so far. Files are loaded outside the lock, so
+	 * a load that overlaps an invalidation may have read the old content;
+	 * such a load is not put into the cache.
+	 */
+	private long generation;
+
+	/**
+	 * @param maxBytes
+	 *            Memory budget of the cache
+	 * @param maxFileBytes
+	 *            Size up to which the content of a file is cached
+	 * @param policy
+	 *            "lru" evicts the least recently used entries, "tinylfu" in
+	 *            addition only admits a new entry if it is requested more
+	 *            frequently than the entry it would evict
+	 */
+	FileCache(long maxBytes, long maxFileBytes, String policy) {
+		switch (policy) {
+		case "lru":
+			admissionFilter = false;
+			break;
+		case "tinylfu":
+			admissionFilter = true;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown cache policy: " + policy);
+		}
+		this.maxBytes = maxBytes;
+		this.maxFileBytes = Math.min(maxFileBytes, Integer.MAX_VALUE);
+		this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / 4096)));
+	}
+
+	/**
+	 * Looks up the given file, loading it into the cache on a miss.
+	 *
+	 * @param path
+	 *            File to look up
+	 * @return Entry of the file, or {@code null} if it is not a regular file
+	 * @throws IOException
+	 */
+	Entry get(Path path) throws IOException {
+		long loadedAt;
+		synchronized (this) {
+			sketch.increment(path);
+			Entry entry = entries.get(path);
+			if (entry != null) {
+				return entry;
+			}
+			loadedAt = generation;
+		}
+		Entry entry = load(path);
+		if (entry != null) {
+			put(path, entry, loadedAt);
+		}
+		return entry;
+	}
+
+	private Entry load(Path path) throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (java.nio.file.NoSuchFileException e) {
+			return null;
+		}
+		if (!attributes.isRegularFile()) {
+			return null;
+		}
+		String contentType = Files.probeContentType(path);
+		long size = attributes.size();
+		ByteBuffer content = null;
+		if (size <= maxFileBytes) {
+			content = ByteBuffer.allocateDirect((int) size);
+			try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+				while (content.hasRemaining() && file.read(content) != -1) {
+					// read until the buffer is full
+				}
+			}
+			if (content.hasRemaining()) {
+				// file was truncated while reading, do not cache it
+				return null;
+			}
+			content.flip();
+			content = content.asReadOnlyBuffer();
+		}
+		return new Entry(content, size, attributes.lastModifiedTime().toMillis(), contentType);
+	}
+
+	/**
+	 * Adds a loaded file to the cache, evicting the least recently used
+	 * entries to stay within the budget. With the admission filter, the
+	 * entries that would be evicted are all compared with the new file
+	 * before any of them is removed, so a rejected file evicts nothing.
+	 *
+	 * @param loadedAt
+	 *            Generation of the cache when the file was loaded
+	 */
+	synchronized void put(Path path, Entry entry, long loadedAt) {
+		if (generation != loadedAt || entry.weight() > maxBytes) {
+			// the file may have changed while it was loaded
+			return;
+		}
+		if (entries.containsKey(path)) {
+			// loaded concurrently by another thread
+			return;
+		}
+		long excess = usedBytes + entry.weight() - maxBytes;
+		int victims = 0;
+		if (excess > 0) {
+			int frequency = sketch.frequency(path);
+			long freed = 0;
+			Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+			while (freed < excess) {
+				Map.Entry<Path, Entry> victim = eldest.next();
+				if (admissionFilter && frequency <= sketch.frequency(victim.getKey())) {
+					// a victim is more popular than the new file
+					return;
+				}
+				freed += victim.getValue().weight();
+				victims++;
+			}
+		}
+		Iterator<Entry> eldest = entries.values().iterator();
+		for (; victims > 0; victims--) {
+			usedBytes -= eldest.next().weight();
+			eldest.remove();
+		}
+		entries.put(path, entry);
+		usedBytes += entry.weight();
+	}
+
+	synchronized boolean contains(Path path) {
+		return entries.containsKey(path);
+	}
+
+	synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Removes the given file, and all files below it if it is a directory,
+	 * from the cache.
+	 *
+	 * @param path
+	 */
+	synchronized void invalidate(Path path) {
+		generation++;
+		Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Path, Entry> entry = iterator.next();
+			if (entry.getKey().startsWith(path)) {
+				usedBytes -= entry.getValue().weight();
+				iterator.remove();
+			}
+		}
+	}
+
+	synchronized void clear() {
+		generation++;
+		entries.clear();
+		usedBytes = 0;
+	}
+
+	/**
+	 * Starts a daemon thread that invalidates entries when files below the
+	 * given directory are created, modified or deleted.
+	 *
+	 * @param root
+	 *            Directory to watch
+	 * @throws IOException
+	 */
+	void watch(Path root) throws IOException {
+		WatchService watchService = FileSystems.getDefault().newWatchService();
+		register(watchService, root);
+		Thread thread = new Thread(() -> {
+			try {
+				while (true) {
+					WatchKey key = watchService.take();
+					Path directory = (Path) key.watchable();
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							clear();
+							continue;
+						}
+						Path changed = directory.resolve((Path) event.context());
+						invalidate(changed);
+						String name = changed.getFileName().toString();
+						if (name.endsWith(".gz") || name.endsWith(".br")) {
+							// the original remembers whether it has this sibling
+							invalidate(changed.resolveSibling(name.substring(0, name.length() - 3)));
+						}
+						if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+							register(watchService, changed);
+						}
+					}
+					key.reset();
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				// stop watching
+			} catch (IOException e) {
+				// entries can no longer be kept up to date
+				clear();
+				e.printStackTrace();
+			}
+		}, "file-cache-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void register(WatchService watchService, Path root) throws IOException {
+		try (Stream<Path> directories = Files.walk(root)) {
+			Iterator<Path> iterator = directories.filter(Files::isDirectory).iterator();
+			while (iterator.hasNext()) {
+				iterator.next().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+		}
+	}
+
+	/**
+	 * Approximate access counts of recently requested files (count-min
+	 * sketch). All counts are halved periodically, so the frequencies reflect
+	 * recent popularity.
+	 */
+	private static class FrequencySketch {
+		private final int[][] counts;
+		private final int mask;
+		private final int resetAfter;
+		private int increments;
+
+		FrequencySketch(int width) {
+			int size = Integer.highestOneBit(width);
+			counts = new int[4][size];
+			mask = size - 1;
+			resetAfter = 10 * size;
+		}
+
+		void increment(Object key) {
+			int hash = spread(key.hashCode());
+			for (int i = 0; i < counts.length; i++) {
+				counts[i][index(hash, i)]++;
+			}
+			if (++increments == resetAfter) {
+				for (int[] row : counts) {
+					for (int j = 0; j < row.length; j++) {
+						row[j] >>>= 1;
+					}
+				}
+				increments /= 2;
+			}
+		}
+
+		int frequency(Object key) {
+			int hash = spread(key.hashCode());
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < counts.length; i++) {
+				frequency = Math.min(frequency, counts[i][index(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private int index(int hash, int row) {
+			int h = hash * (0x9E3779B9 + 2 * row + 1);
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		private static int spread(int hash) {
+			hash ^= hash >>> 17;
+			hash *= 0xed5ad4bb;
+			return hash ^ (hash >>> 11);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Part of a file that is sent as response body. The bytes are copied from
+ * the file to the socket with {@link FileChannel#transferTo}, which lets the
+ * kernel send them (sendfile) without passing through the heap.
+ */
+class FileRegion {
+
+	private final Path path;
+	private long position;
+	private final long count;
+	private long transferred;
+	private FileChannel file;
+
+	FileRegion(Path path, long position, long count) {
+		this.path = path;
+		this.position = position;
+		this.count = count;
+	}
+
+	/**
+	 * @return Number of bytes of the region
+	 */
+	long getCount() {
+		return count;
+	}
+
+	/**
+	 * Transfers as many bytes of the region as the target accepts. For a
+	 * blocking target this is the whole remainder of the region.
+	 *
+	 * @param target
+	 *            Channel to write the bytes to
+	 * @return Number of bytes transferred
+	 * @throws IOException
+	 */
+	long transferTo(WritableByteChannel target) throws IOException {
+		if (file == null) {
+			file = FileChannel.open(path, StandardOpenOption.READ);
+		}
+		long total = 0;
+		while (!isComplete()) {
+			long bytes = file.transferTo(position, count - transferred, target);
+			if (bytes <= 0) {
+				if (position >= file.size()) {
+					throw new IOException("File was truncated while sending: " + path);
+				}
+				// target cannot accept more bytes right now
+				break;
+			}
+			position += bytes;
+			transferred += bytes;
+			total += bytes;
+		}
+		if (isComplete()) {
+			close();
+		}
+		return total;
+	}
+
+	boolean isComplete() {
+		return transferred >= count;
+	}
+
+	/**
+	 * Releases the file handle, if the region was not sent completely.
+	 */
+	void close() {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			file = null;
+		}
+	}
+}
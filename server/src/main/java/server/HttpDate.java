@@ -0,0 +1,280 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Formats and parses dates of HTTP headers. The current date only changes
+ * once per second, so it is formatted once per second and shared by all
+ * responses sent within that second. Parsing is done without allocating, and
+ * recently parsed values are remembered, since clients mostly send back the
+ * Last-Modified dates they received.
+ */
+final class HttpDate {
+
+	/**
+	 * Result of {@link #parse(String)} for a value that is not a valid date.
+	 */
+	static final long INVALID = Long.MIN_VALUE;
+
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct",
+			"Nov", "Dec" };
+
+	private static final int PARSED_CACHE_SIZE = 64;
+
+	/**
+	 * IMF-fixdate of RFC 7231, e.g. "Sun, 06 Nov 1994 08:49:37 GMT".
+	 */
+	private static final DateTimeFormatter FORMAT = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	private static final class Cached {
+		final long second;
+		final String text;
+		final byte[] bytes;
+
+		Cached(long second) {
+			this.second = second;
+			this.text = format(second * 1000);
+			this.bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	/**
+	 * Recently parsed value, immutable so it can be shared without locking.
+	 */
+	private static final class Parsed {
+		final String value;
+		final long millis;
+
+		Parsed(String value, long millis) {
+			this.value = value;
+			this.millis = millis;
+		}
+	}
+
+	private static final Parsed[] parsed = new Parsed[PARSED_CACHE_SIZE];
+
+	private static volatile Cached current = new Cached(System.currentTimeMillis() / 1000);
+
+	private HttpDate() {
+	}
+
+	private static Cached current() {
+		long second = System.currentTimeMillis() / 1000;
+		Cached cached = current;
+		if (cached.second != second) {
+			// threads racing here format the same value, either one wins
+			cached = new Cached(second);
+			current = cached;
+		}
+		return cached;
+	}
+
+	/**
+	 * @return The current date
+	 */
+	static String now() {
+		return current().text;
+	}
+
+	/**
+	 * Encodes a value of the Date header, reusing the bytes of the current
+	 * date when the value is the current date.
+	 *
+	 * @param value
+	 * @return ISO-8859-1 bytes of the value, or {@code null} if it is not the
+	 *         current date
+	 */
+	static byte[] currentBytes(String value) {
+		Cached cached = current;
+		return cached.text.equals(value) ? cached.bytes : null;
+	}
+
+	/**
+	 * @param millis
+	 *            Milliseconds since the epoch
+	 * @return The date as used in HTTP headers
+	 */
+	static String format(long millis) {
+		return FORMAT.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Parses a date in one of the three formats allowed by HTTP/1.1:
+	 * RFC 1123 ("Sun, 06 Nov 1994 08:49:37 GMT"), RFC 850
+	 * ("Sunday, 06-Nov-94 08:49:37 GMT") or asctime
+	 * ("Sun Nov  6 08:49:37 1994").
+	 *
+	 * @param value
+	 *            Value of a date header
+	 * @return Milliseconds since the epoch, or {@link #INVALID}
+	 */
+	static long parse(String value) {
+		int slot = (value.hashCode() & 0x7fffffff) % PARSED_CACHE_SIZE;
+		Parsed cached = parsed[slot];
+		if (cached != null && cached.value.equals(value)) {
+			return cached.millis;
+		}
+		long millis = parseUncached(value);
+		if (millis != INVALID) {
+			parsed[slot] = new Parsed(value, millis);
+		}
+		return millis;
+	}
+
+	private static long parseUncached(String value) {
+		int comma = value.indexOf(',');
+		int i;
+		int day;
+		int month;
+		int year;
+		if (comma == 3) {
+			// RFC 1123: "Sun, 06 Nov 1994 08:49:37 GMT"
+			i = skipSpaces(value, comma + 1);
+			int digits = isDigit(value, i + 1) ? 2 : 1;
+			day = number(value, i, digits);
+			i += digits;
+			if (!isChar(value, i, ' ')) {
+				return INVALID;
+			}
+			month = month(value, i + 1);
+			if (!isChar(value, i + 4, ' ')) {
+				return INVALID;
+			}
+			year = number(value, i + 5, 4);
+			i += 9;
+		} else if (comma > 3) {
+			// RFC 850: "Sunday, 06-Nov-94 08:49:37 GMT"
+			i = skipSpaces(value, comma + 1);
+			day = number(value, i, 2);
+			if (!isChar(value, i + 2, '-') || !isChar(value, i + 6, '-')) {
+				return INVALID;
+			}
+			month = month(value, i + 3);
+			year = number(value, i + 7, 2);
+			if (year >= 0) {
+				// a year more than 50 years in the future is in the past
+				// century (RFC 7231)
+				year += 2000;
+				if (year > currentYear() + 50) {
+					year -= 100;
+				}
+			}
+			i += 9;
+		} else if (comma == -1) {
+			// asctime: "Sun Nov  6 08:49:37 1994"
+			if (!isChar(value, 3, ' ')) {
+				return INVALID;
+			}
+			month = month(value, 4);
+			i = skipSpaces(value, 7);
+			int digits = isDigit(value, i + 1) ? 2 : 1;
+			day = number(value, i, digits);
+			i += digits;
+			long time = time(value, i + 1);
+			if (time < 0 || !isChar(value, i, ' ') || !isChar(value, i + 9, ' ')) {
+				return INVALID;
+			}
+			year = number(value, i + 10, 4);
+			if (day < 1 || month < 0 || year < 0 || i + 14 != value.length()) {
+				return INVALID;
+			}
+			return epochMillis(year, month, day, time);
+		} else {
+			return INVALID;
+		}
+		// "08:49:37 GMT"
+		if (!isChar(value, i, ' ')) {
+			return INVALID;
+		}
+		long time = time(value, i + 1);
+		if (day < 1 || month < 0 || year < 0 || time < 0 || !isChar(value, i + 9, ' ')
+				|| !(value.startsWith("GMT", i + 10) || value.startsWith("UTC", i + 10))
+				|| i + 13 != value.length()) {
+			return INVALID;
+		}
+		return epochMillis(year, month, day, time);
+	}
+
+	private static int skipSpaces(String value, int i) {
+		while (i < value.length() && value.charAt(i) == ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isChar(String value, int i, char c) {
+		return i < value.length() && value.charAt(i) == c;
+	}
+
+	private static boolean isDigit(String value, int i) {
+		return i < value.length() && value.charAt(i) >= '0' && value.charAt(i) <= '9';
+	}
+
+	/**
+	 * @return Value of the given number of decimal digits, or -1
+	 */
+	private static int number(String value, int i, int digits) {
+		if (i + digits > value.length()) {
+			return -1;
+		}
+		int result = 0;
+		for (int j = i; j < i + digits; j++) {
+			char c = value.charAt(j);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			result = result * 10 + c - '0';
+		}
+		return result;
+	}
+
+	/**
+	 * @return Month of the three letter name (0 for January), or -1
+	 */
+	private static int month(String value, int i) {
+		for (int month = 0; month < MONTHS.length; month++) {
+			if (value.regionMatches(true, i, MONTHS[month], 0, 3)) {
+				return month;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Milliseconds since midnight of "hh:mm:ss", or -1
+	 */
+	private static long time(String value, int i) {
+		int hours = number(value, i, 2);
+		int minutes = number(value, i + 3, 2);
+		int seconds = number(value, i + 6, 2);
+		if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 60
+				|| !isChar(value, i + 2, ':') || !isChar(value, i + 5, ':')) {
+			return -1;
+		}
+		return ((hours * 60L + minutes) * 60 + seconds) * 1000;
+	}
+
+	private static long epochMillis(int year, int month, int day, long time) {
+		if (day > 31) {
+			return INVALID;
+		}
+		// days since 1970-01-01 of the proleptic Gregorian calendar, counting
+		// years from March so the leap day is the last day of a year
+		int y = month < 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month < 2 ? month + 10 : month - 2) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		long days = era * 146097L + dayOfEra - 719468;
+		return days * 86400000L + time;
+	}
+
+	private static int currentYear() {
+		return Integer.parseInt(current().text.substring(12, 16));
+	}
+}
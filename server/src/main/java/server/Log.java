@@ -0,0 +1,326 @@
+package server;
+
+import util.Method;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static util.StringOperations.jsonEscape;
+
+/**
+ * Asynchronous server log. Request threads only put a record in a lock-free
+ * {@link RingBuffer}; a background thread formats the records in batches and
+ * appends them to {@code access.log} (one line per request) and
+ * {@code server.log} (diagnostic messages) in the log directory. When the
+ * buffer is full, records are dropped rather than blocking the request.
+ *
+ * Until {@link #start(ServerConfig)} is called, messages of level INFO and
+ * above are printed to the standard output, and requests are not logged.
+ */
+final class Log {
+
+	enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	/**
+	 * Time the writer sleeps when there are no records.
+	 */
+	private static final long IDLE_PARK_NANOS = 1000000;
+	private static final int MAX_BATCH = 1024;
+
+	private static final DateTimeFormatter COMMON_TIME = DateTimeFormatter
+			.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneOffset.UTC);
+
+	private static volatile Log instance;
+
+	private final RingBuffer<Object> records;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Level level;
+	private final String format;
+	private final double sampling;
+	private final RotatingFile accessFile;
+	private final RotatingFile messageFile;
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	// only used by the writer thread
+	private final StringBuilder accessLines = new StringBuilder();
+	private final StringBuilder messageLines = new StringBuilder();
+	private long lastSecond = -1;
+	private String lastCommonTime;
+
+	private Log(ServerConfig config) throws IOException {
+		records = new RingBuffer<>(config.getLogBuffer());
+		level = Level.valueOf(config.getLogLevel().toUpperCase(Locale.ROOT));
+		format = config.getLogFormat();
+		if (!format.equals("common") && !format.equals("combined") && !format.equals("json")) {
+			throw new IllegalArgumentException("Unknown log format: " + format);
+		}
+		sampling = config.getLogSampling();
+		accessFile = new RotatingFile(Paths.get(config.getLogDirectory(), "access.log"), config.getLogMaxBytes(),
+				config.getLogFiles());
+		messageFile = new RotatingFile(Paths.get(config.getLogDirectory(), "server.log"), config.getLogMaxBytes(),
+				config.getLogFiles());
+		writer = new Thread(this::write, "log-writer");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Starts logging to files as configured. Records still buffered when the
+	 * JVM exits are written by a shutdown hook.
+	 *
+	 * @param config
+	 * @throws IOException
+	 *             If the log files cannot be opened
+	 */
+	static synchronized void start(ServerConfig config) throws IOException {
+		if (instance != null) {
+			return;
+		}
+		Log log = new Log(config);
+		log.writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(log::stop, "log-shutdown"));
+		instance = log;
+	}
+
+	/**
+	 * @return Whether messages of the given level are logged, to avoid
+	 *         building messages that are discarded
+	 */
+	static boolean isEnabled(Level level) {
+		Log log = instance;
+		return log == null ? level.compareTo(Level.INFO) >= 0 : level.compareTo(log.level) >= 0;
+	}
+
+	static void debug(String message) {
+		log(Level.DEBUG, message, null);
+	}
+
+	static void info(String message) {
+		log(Level.INFO, message, null);
+	}
+
+	static void warn(String message) {
+		log(Level.WARN, message, null);
+	}
+
+	static void error(String message, Throwable error) {
+		log(Level.ERROR, message, error);
+	}
+
+	private static void log(Level level, String message, Throwable error) {
+		Log log = instance;
+		if (log == null) {
+			if (level.compareTo(Level.INFO) >= 0) {
+				System.out.println(message);
+				if (error != null) {
+					error.printStackTrace();
+				}
+			}
+		} else if (level.compareTo(log.level) >= 0) {
+			log.offer(new MessageRecord(level, message, error));
+		}
+	}
+
+	/**
+	 * Logs a handled request. Successful requests are sampled at the
+	 * configured rate, errors are always logged.
+	 *
+	 * @param client
+	 *            Address of the client
+	 * @param request
+	 * @param response
+	 *            Response sent for the request
+	 * @param startNanos
+	 *            {@link System#nanoTime()} when handling started
+	 */
+	static void access(InetAddress client, Request request, Response response, long startNanos) {
+		Log log = instance;
+		if (log == null) {
+			return;
+		}
+		int status = response.getStatusCode();
+		if (status < 400 && log.sampling < 1 && ThreadLocalRandom.current().nextDouble() >= log.sampling) {
+			return;
+		}
+		log.offer(new AccessRecord(client, request, status, response.getBodyLength(),
+				(System.nanoTime() - startNanos) / 1000));
+	}
+
+	private void offer(Object record) {
+		if (!records.offer(record)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void write() {
+		while (running) {
+			if (!writeBatch()) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+		// write what is left
+		while (writeBatch()) {
+		}
+	}
+
+	/**
+	 * Formats up to {@link #MAX_BATCH} records and writes them with one
+	 * write per file.
+	 *
+	 * @return Whether any record was written
+	 */
+	private boolean writeBatch() {
+		int count = 0;
+		Object record;
+		while (count < MAX_BATCH && (record = records.poll()) != null) {
+			if (record instanceof AccessRecord) {
+				appendAccess((AccessRecord) record);
+			} else {
+				appendMessage((MessageRecord) record);
+			}
+			count++;
+		}
+		long lost = dropped.getAndSet(0);
+		if (lost > 0) {
+			appendMessage(new MessageRecord(Level.WARN, lost + " log records dropped, the log buffer was full", null));
+		}
+		try {
+			if (accessLines.length() > 0) {
+				accessFile.write(accessLines.toString().getBytes(StandardCharsets.UTF_8));
+			}
+			if (messageLines.length() > 0) {
+				messageFile.write(messageLines.toString().getBytes(StandardCharsets.UTF_8));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			accessLines.setLength(0);
+			messageLines.setLength(0);
+		}
+		return count > 0;
+	}
+
+	private void appendAccess(AccessRecord record) {
+		StringBuilder line = accessLines;
+		if (format.equals("json")) {
+			line.append("{\"time\": \"").append(Instant.ofEpochMilli(record.time))
+					.append("\", \"client\": \"").append(address(record.client))
+					.append("\", \"method\": \"").append(record.method.getName())
+					.append("\", \"target\": \"").append(jsonEscape(record.target))
+					.append("\", \"version\": \"").append(jsonEscape(record.httpVersion))
+					.append("\", \"status\": ").append(record.status)
+					.append(", \"bytes\": ").append(record.bytes)
+					.append(", \"micros\": ").append(record.micros)
+					.append(", \"referer\": ").append(jsonString(record.referer))
+					.append(", \"userAgent\": ").append(jsonString(record.userAgent))
+					.append("}\n");
+			return;
+		}
+		// Common Log Format, optionally followed by referer and user agent
+		line.append(address(record.client)).append(" - - [").append(commonTime(record.time)).append("] \"")
+				.append(record.method.getName()).append(' ').append(record.target).append(' ')
+				.append(record.httpVersion).append("\" ").append(record.status).append(' ');
+		if (record.bytes > 0) {
+			line.append(record.bytes);
+		} else {
+			line.append('-');
+		}
+		if (format.equals("combined")) {
+			line.append(" \"").append(record.referer == null ? "-" : record.referer).append("\" \"")
+					.append(record.userAgent == null ? "-" : record.userAgent).append('"');
+		}
+		line.append(' ').append(record.micros).append('\n');
+	}
+
+	private void appendMessage(MessageRecord record) {
+		messageLines.append(Instant.ofEpochMilli(record.time)).append(' ').append(record.level).append(" [")
+				.append(record.thread).append("] ").append(record.message).append('\n');
+		if (record.error != null) {
+			StringWriter trace = new StringWriter();
+			record.error.printStackTrace(new PrintWriter(trace));
+			messageLines.append(trace);
+		}
+	}
+
+	private String commonTime(long time) {
+		// requests logged in the same second share the formatted time
+		long second = time / 1000;
+		if (second != lastSecond) {
+			lastSecond = second;
+			lastCommonTime = COMMON_TIME.format(Instant.ofEpochMilli(time));
+		}
+		return lastCommonTime;
+	}
+
+	private static String address(InetAddress client) {
+		return client == null ? "-" : client.getHostAddress();
+	}
+
+	private static String jsonString(String value) {
+		return value == null ? "null" : "\"" + jsonEscape(value) + "\"";
+	}
+
+	private void stop() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(1000);
+			accessFile.close();
+			messageFile.close();
+		} catch (InterruptedException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static final class AccessRecord {
+		final long time = System.currentTimeMillis();
+		final InetAddress client;
+		final Method method;
+		final String target;
+		final String httpVersion;
+		final String referer;
+		final String userAgent;
+		final int status;
+		final long bytes;
+		final long micros;
+
+		AccessRecord(InetAddress client, Request request, int status, long bytes, long micros) {
+			this.client = client;
+			this.method = request.getMethod();
+			this.target = request.getFile();
+			this.httpVersion = request.getHttpVersion();
+			this.referer = request.getHeaders().get("Referer");
+			this.userAgent = request.getHeaders().get("User-Agent");
+			this.status = status;
+			this.bytes = bytes;
+			this.micros = micros;
+		}
+	}
+
+	private static final class MessageRecord {
+		final long time = System.currentTimeMillis();
+		final String thread = Thread.currentThread().getName();
+		final Level level;
+		final String message;
+		final Throwable error;
+
+		MessageRecord(Level level, String message, Throwable error) {
+			this.level = level;
+			this.message = message;
+			this.error = error;
+		}
+	}
+}
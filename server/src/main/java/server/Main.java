@@ -1,8 +1,10 @@
 package server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -17,13 +19,117 @@ public class Main {
 
 	static String path;
 
+	static ServerConfig getConfig() {
+		return config;
+	}
+
+	static ServerConfig config;
+
+	/**
+	 * @return Cache of the served files, or {@code null} if caching is
+	 *         disabled
+	 */
+	static FileCache getFileCache() {
+		return fileCache;
+	}
+
+	static FileCache fileCache;
+
+	/**
+	 * @return Compression of responses, or {@code null} if it is disabled
+	 */
+	static Compression getCompression() {
+		return compression;
+	}
+
+	static Compression compression;
+
+	/**
+	 * @return Table of memory-mapped files, or {@code null} if files are not
+	 *         mapped
+	 */
+	static MappedFiles getMappedFiles() {
+		return mappedFiles;
+	}
+
+	static MappedFiles mappedFiles;
+
 	public static void main(String[] args) throws IOException {
+		config = ServerConfig.fromArgs(args);
+		Log.start(config);
+		Metrics.get().startDump(config);
 		initializePath();
-		ServerSocket serverSocket = new ServerSocket(8080);
+		if (config.getCacheBytes() > 0) {
+			fileCache = new FileCache(config.getCacheBytes(), config.getCacheMaxFileBytes(), config.getCachePolicy());
+			fileCache.watch(Paths.get(path));
+		}
+		if (config.getMmap()) {
+			mappedFiles = new MappedFiles(config.getMmapBytes(), config.getMmapMaxFileBytes());
+		}
+		if (config.getCompression()) {
+			compression = new Compression(config.getCompressionCacheBytes(), config.getCompressionMinBytes(),
+					config.getCompressionMaxBytes(), config.getCompressionLevel(), config.getCompressionStream());
+		}
+		switch (config.getEngine()) {
+		case "blocking":
+			runBlocking();
+			break;
+		case "nio":
+			new EventLoopServer(config).run();
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown engine: " + config.getEngine());
+		}
+	}
+
+	/**
+	 * Accepts connections and hands them to the configured dispatcher, which
+	 * serves each of them on its own thread.
+	 *
+	 * @throws IOException
+	 */
+	private static void runBlocking() throws IOException {
+		ConnectionDispatcher dispatcher = ConnectionDispatcher.create(config);
+		// Accept through a channel, so the sockets can transfer files with
+		// sendfile
+		ServerSocketChannel serverChannel = bind(config);
 		while (true) {
-			Socket clientSocket = serverSocket.accept();
-			Thread thread = new Thread(new ServerThread(clientSocket));
-			thread.start();
+			Socket clientSocket = serverChannel.accept().socket();
+			configureSocket(clientSocket, config);
+			dispatcher.dispatch(clientSocket);
+		}
+	}
+
+	/**
+	 * Opens the channel accepting connections on the configured port, with the
+	 * configured backlog.
+	 *
+	 * @param config
+	 * @return Bound server channel
+	 * @throws IOException
+	 */
+	static ServerSocketChannel bind(ServerConfig config) throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		if (config.getReceiveBuffer() > 0) {
+			// accepted sockets inherit the receive buffer, which has to be set
+			// before binding to allow a TCP window larger than 64K
+			serverChannel.socket().setReceiveBufferSize(config.getReceiveBuffer());
+		}
+		serverChannel.bind(new InetSocketAddress(config.getPort()), config.getBacklog());
+		return serverChannel;
+	}
+
+	/**
+	 * Applies the configured socket options to an accepted connection.
+	 *
+	 * @param socket
+	 * @param config
+	 * @throws SocketException
+	 */
+	static void configureSocket(Socket socket, ServerConfig config) throws SocketException {
+		socket.setTcpNoDelay(config.getTcpNoDelay());
+		if (config.getSendBuffer() > 0) {
+			socket.setSendBufferSize(config.getSendBuffer());
 		}
 	}
 
@@ -49,6 +155,6 @@ public class Main {
 			// serve files from that directory now
 			path += "/" + String.valueOf(folder.getAsLong());
 		}
-		System.out.println("Root directory: " + path);
+		Log.info("Root directory: " + path);
 	}
 }
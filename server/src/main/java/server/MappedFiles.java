@@ -0,0 +1,121 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Table of memory-mapped files, shared by all connections. A file that is
+ * requested repeatedly is mapped once with {@link FileChannel#map}; every
+ * response then writes from the page cache directly, without opening the
+ * file or copying it into the heap.
+ *
+ * The table is bounded by the total size of the mappings and evicts the
+ * least recently used ones. An evicted mapping is released when the garbage
+ * collector finds it unreachable, so it stays valid for responses that are
+ * still being written. Only suitable for files that are replaced rather
+ * than modified in place: a mapped file that is truncated makes reads from
+ * the mapping fail.
+ */
+class MappedFiles {
+
+	/**
+	 * Files smaller than this are not mapped, mapping them costs more than
+	 * reading them.
+	 */
+	static final long MIN_FILE_BYTES = 64 * 1024;
+
+	/**
+	 * Mapping of a file with the size and modification time it had when it
+	 * was mapped.
+	 */
+	private static class Mapping {
+		final long size;
+		final long lastModified;
+		final MappedByteBuffer buffer;
+
+		Mapping(long size, long lastModified, MappedByteBuffer buffer) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.buffer = buffer;
+		}
+	}
+
+	private final long maxBytes;
+	private final long maxFileBytes;
+	private final LinkedHashMap<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+	private long mappedBytes;
+
+	/**
+	 * @param maxBytes
+	 *            Total size of the files mapped at the same time
+	 * @param maxFileBytes
+	 *            Size up to which a file is mapped
+	 */
+	MappedFiles(long maxBytes, long maxFileBytes) {
+		this.maxBytes = maxBytes;
+		this.maxFileBytes = Math.min(Math.min(maxFileBytes, maxBytes), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return Whether a file of the given size is served from a mapping
+	 */
+	boolean accepts(long size) {
+		return size >= MIN_FILE_BYTES && size <= maxFileBytes;
+	}
+
+	/**
+	 * Returns the content of the file from its mapping, mapping it if the
+	 * table holds no current mapping.
+	 *
+	 * @param path
+	 * @param size
+	 *            Size of the file
+	 * @param lastModified
+	 *            Modification time of the file
+	 * @return Read-only view on the mapped file, or {@code null} if the file
+	 *         is not mapped because of its size
+	 * @throws IOException
+	 */
+	ByteBuffer get(Path path, long size, long lastModified) throws IOException {
+		if (!accepts(size)) {
+			return null;
+		}
+		Mapping mapping;
+		synchronized (this) {
+			mapping = mappings.get(path);
+		}
+		if (mapping == null || mapping.size != size || mapping.lastModified != lastModified) {
+			MappedByteBuffer buffer;
+			try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+				if (file.size() != size) {
+					// changed since its attributes were read
+					return null;
+				}
+				buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			mapping = new Mapping(size, lastModified, buffer);
+			put(path, mapping);
+		}
+		return mapping.buffer.duplicate();
+	}
+
+	private synchronized void put(Path path, Mapping mapping) {
+		Mapping previous = mappings.put(path, mapping);
+		if (previous != null) {
+			mappedBytes -= previous.size;
+		}
+		mappedBytes += mapping.size;
+		Iterator<Map.Entry<Path, Mapping>> eldest = mappings.entrySet().iterator();
+		while (mappedBytes > maxBytes && eldest.hasNext()) {
+			mappedBytes -= eldest.next().getValue().size;
+			eldest.remove();
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package server;
+
+import util.Histogram;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the server, shared by all connection
+ * engines. Counters are {@link LongAdder}s, so threads updating them do not
+ * contend; latencies are recorded in microseconds. The metrics are served at
+ * {@link #PATH} in the Prometheus text format, and can be appended to a file
+ * as JSON periodically.
+ */
+final class Metrics {
+
+	/**
+	 * Reserved request target answered with the metrics.
+	 */
+	static final String PATH = "/__metrics";
+
+	private static final Metrics INSTANCE = new Metrics();
+
+	private final long started = System.currentTimeMillis();
+
+	private final LongAdder connectionsAccepted = new LongAdder();
+	private final LongAdder connectionsActive = new LongAdder();
+	private final LongAdder connectionsRejected = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder keepAliveReuses = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final ConcurrentHashMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+	private final Histogram acceptToFirstByte = new Histogram();
+	private final Histogram parseTime = new Histogram();
+	private final Histogram handleTime = new Histogram();
+	private final Histogram sendTime = new Histogram();
+
+	private Metrics() {
+	}
+
+	static Metrics get() {
+		return INSTANCE;
+	}
+
+	void connectionOpened() {
+		connectionsAccepted.increment();
+		connectionsActive.increment();
+	}
+
+	void connectionClosed() {
+		connectionsActive.decrement();
+	}
+
+	void connectionRejected() {
+		connectionsRejected.increment();
+	}
+
+	void bytesIn(long count) {
+		bytesIn.add(count);
+	}
+
+	/**
+	 * @param nanos
+	 *            Time from accepting the connection until the first byte of
+	 *            its first request arrived
+	 */
+	void firstByte(long nanos) {
+		acceptToFirstByte.record(nanos / 1000);
+	}
+
+	/**
+	 * @param nanos
+	 *            Time from the first byte of a request until it was read
+	 *            completely
+	 */
+	void parsed(long nanos) {
+		parseTime.record(nanos / 1000);
+	}
+
+	/**
+	 * @param nanos
+	 *            Time to turn the request into a response
+	 */
+	void handled(long nanos) {
+		handleTime.record(nanos / 1000);
+	}
+
+	/**
+	 * Counts a response that was sent.
+	 *
+	 * @param response
+	 * @param bytes
+	 *            Number of bytes written, including the status line and
+	 *            headers
+	 * @param nanos
+	 *            Time to write the response
+	 * @param reused
+	 *            Whether the connection already served a request before
+	 */
+	void sent(Response response, long bytes, long nanos, boolean reused) {
+		sendTime.record(nanos / 1000);
+		requests.increment();
+		if (reused) {
+			keepAliveReuses.increment();
+		}
+		bytesOut.add(bytes);
+		LongAdder counter = statuses.get(response.getStatusCode());
+		if (counter == null) {
+			counter = statuses.computeIfAbsent(response.getStatusCode(), k -> new LongAdder());
+		}
+		counter.increment();
+	}
+
+	/**
+	 * @return The metrics in the Prometheus text exposition format
+	 */
+	String toPrometheus() {
+		StringBuilder out = new StringBuilder(4096);
+		gauge(out, "http_server_uptime_seconds", "Time since the server started",
+				(System.currentTimeMillis() - started) / 1000);
+		counter(out, "http_server_connections_accepted_total", "Connections accepted",
+				connectionsAccepted.sum());
+		gauge(out, "http_server_connections_active", "Connections currently open", connectionsActive.sum());
+		counter(out, "http_server_connections_rejected_total", "Connections rejected because the server was busy",
+				connectionsRejected.sum());
+		counter(out, "http_server_keepalive_reuses_total", "Requests served on an already used connection",
+				keepAliveReuses.sum());
+		counter(out, "http_server_received_bytes_total", "Bytes received from clients", bytesIn.sum());
+		counter(out, "http_server_sent_bytes_total", "Bytes of responses sent to clients", bytesOut.sum());
+		out.append("# HELP http_server_requests_total Responses sent, by status code\n")
+				.append("# TYPE http_server_requests_total counter\n");
+		for (Map.Entry<Integer, Long> entry : statusCounts().entrySet()) {
+			out.append("http_server_requests_total{status=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue()).append('\n');
+		}
+		summary(out, "http_server_first_byte_seconds", "Time from accept to the first byte of a connection",
+				acceptToFirstByte);
+		summary(out, "http_server_parse_seconds", "Time to receive and parse a request", parseTime);
+		summary(out, "http_server_handle_seconds", "Time to handle a request", handleTime);
+		summary(out, "http_server_send_seconds", "Time to write a response", sendTime);
+		return out.toString();
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder out, String name, String help, Histogram histogram) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" summary\n");
+		for (String quantile : new String[] { "0.5", "0.9", "0.99", "0.999" }) {
+			long micros = histogram.getValueAtPercentile(Double.parseDouble(quantile) * 100);
+			out.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(micros / 1e6)
+					.append('\n');
+		}
+		out.append(name).append("_sum ").append(histogram.getSum() / 1e6).append('\n');
+		out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+	}
+
+	/**
+	 * @return The metrics as one line of JSON
+	 */
+	String toJson() {
+		StringBuilder out = new StringBuilder(1024);
+		out.append("{\"time\": ").append(System.currentTimeMillis())
+				.append(", \"connectionsAccepted\": ").append(connectionsAccepted.sum())
+				.append(", \"connectionsActive\": ").append(connectionsActive.sum())
+				.append(", \"connectionsRejected\": ").append(connectionsRejected.sum())
+				.append(", \"requests\": ").append(requests.sum())
+				.append(", \"keepAliveReuses\": ").append(keepAliveReuses.sum())
+				.append(", \"bytesIn\": ").append(bytesIn.sum())
+				.append(", \"bytesOut\": ").append(bytesOut.sum())
+				.append(", \"statuses\": {");
+		String separator = "";
+		for (Map.Entry<Integer, Long> entry : statusCounts().entrySet()) {
+			out.append(separator).append('"').append(entry.getKey()).append("\": ").append(entry.getValue());
+			separator = ", ";
+		}
+		out.append('}');
+		json(out, "firstByteMicros", acceptToFirstByte);
+		json(out, "parseMicros", parseTime);
+		json(out, "handleMicros", handleTime);
+		json(out, "sendMicros", sendTime);
+		return out.append("}\n").toString();
+	}
+
+	private static void json(StringBuilder out, String name, Histogram histogram) {
+		out.append(", \"").append(name).append("\": {\"count\": ").append(histogram.getCount())
+				.append(", \"mean\": ").append(Math.round(histogram.getMean()))
+				.append(", \"p50\": ").append(histogram.getValueAtPercentile(50))
+				.append(", \"p99\": ").append(histogram.getValueAtPercentile(99))
+				.append(", \"p999\": ").append(histogram.getValueAtPercentile(99.9))
+				.append(", \"max\": ").append(histogram.getMax()).append('}');
+	}
+
+	private TreeMap<Integer, Long> statusCounts() {
+		TreeMap<Integer, Long> counts = new TreeMap<>();
+		for (Map.Entry<Integer, LongAdder> entry : statuses.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	/**
+	 * Appends the metrics as JSON to {@code metrics.log} in the log directory
+	 * at the configured interval.
+	 *
+	 * @param config
+	 * @throws IOException
+	 *             If the file cannot be opened
+	 */
+	void startDump(ServerConfig config) throws IOException {
+		int interval = config.getMetricsInterval();
+		if (interval <= 0) {
+			return;
+		}
+		RotatingFile file = new RotatingFile(Paths.get(config.getLogDirectory(), "metrics.log"),
+				config.getLogMaxBytes(), config.getLogFiles());
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "metrics-dump");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleAtFixedRate(() -> {
+			try {
+				file.write(toJson().getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				Log.error("Could not write metrics", e);
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+}
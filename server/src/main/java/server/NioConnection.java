@@ -0,0 +1,513 @@
+package server;
+
+import server.exceptions.InternalServerException;
+import server.exceptions.ServerException;
+import server.exceptions.ServiceUnavailableException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * State of one client connection served by an {@link EventLoop}. Requests
+ * are decoded as bytes arrive; while a response is still being written, no
+ * further requests are decoded, so pipelined requests are answered in order.
+ *
+ * Only parsing and socket I/O happen on the loop. Requests are handled, and
+ * request bodies written to disk, on a handler thread, so a request that
+ * reads or compresses files does not stall the other connections of the
+ * loop. Meanwhile the connection reads nothing; the handler gives the result
+ * back to the loop with {@link EventLoop#execute(Runnable)}.
+ */
+class NioConnection {
+
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final RequestHandler handler;
+	private final EventLoop loop;
+	/**
+	 * Threads handling requests and receiving request bodies.
+	 */
+	private final ExecutorService handlers;
+	/**
+	 * Threads generating streaming bodies, which may block on the file
+	 * system or on a full {@link BodyPipe}.
+	 */
+	private final ExecutorService producers;
+	private final ByteBuffer in = ByteBuffer.allocate(8192);
+	private final RequestDecoder decoder = new RequestDecoder();
+	/**
+	 * Pending output, each element is a {@link ByteBuffer}, a
+	 * {@link FileRegion} or a {@link BodyPipe}.
+	 */
+	private final ArrayDeque<Object> out = new ArrayDeque<>();
+	private final ByteBuffer[] gather = new ByteBuffer[16];
+	private boolean closeAfterWrite;
+	/**
+	 * Whether a handler thread works on the input of the connection.
+	 */
+	private boolean busy;
+	private long lastActive = System.currentTimeMillis();
+	/**
+	 * Last time the client took some of the pending output, or output was
+	 * queued while there was none.
+	 */
+	private long lastWritten;
+
+	/**
+	 * Number of chunks a {@link BodyPipe} buffers.
+	 */
+	private static final int PIPE_CHUNKS = 4;
+
+	private final Metrics metrics = Metrics.get();
+	private final long accepted = System.nanoTime();
+	/**
+	 * {@link System#nanoTime()} when the first byte of the request being
+	 * decoded arrived, 0 if no bytes of it were received yet.
+	 */
+	private long requestStarted;
+	private int served;
+
+	NioConnection(SocketChannel channel, SelectionKey key, RequestHandler handler, EventLoop loop,
+			ExecutorService handlers, ExecutorService producers) {
+		this.channel = channel;
+		this.key = key;
+		this.handler = handler;
+		this.loop = loop;
+		this.handlers = handlers;
+		this.producers = producers;
+		metrics.connectionOpened();
+	}
+
+	void onReadable() throws IOException {
+		int read = channel.read(in);
+		if (read == -1) {
+			close();
+			return;
+		}
+		lastActive = System.currentTimeMillis();
+		if (read > 0) {
+			metrics.bytesIn(read);
+			if (requestStarted == 0) {
+				requestStarted = System.nanoTime();
+				if (served == 0) {
+					metrics.firstByte(requestStarted - accepted);
+				}
+			}
+		}
+		process();
+	}
+
+	void onWritable() throws IOException {
+		// the client read some of what was written before
+		lastWritten = System.currentTimeMillis();
+		flush();
+		if (out.isEmpty() && channel.isOpen()) {
+			// continue with requests that arrived while writing
+			process();
+		}
+	}
+
+	/**
+	 * Continues writing when a streaming body has new bytes, called on the
+	 * thread of the loop.
+	 */
+	private void resume() {
+		if (!channel.isOpen()) {
+			return;
+		}
+		try {
+			onWritable();
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Result of the work of a handler thread, taken back to the loop.
+	 */
+	private static class Outcome {
+		Request request;
+		Response response;
+		ServerException failure;
+		RuntimeException crash;
+		/**
+		 * {@link System#nanoTime()} when the request was complete and when
+		 * its response was ready.
+		 */
+		long decoded;
+		long handled;
+	}
+
+	/**
+	 * Decodes the buffered requests and hands them to a handler thread, one
+	 * at a time.
+	 *
+	 * @throws IOException
+	 */
+	private void process() throws IOException {
+		in.flip();
+		serve();
+	}
+
+	/**
+	 * Continues decoding the input buffer, in read mode, until a request is
+	 * dispatched to a handler thread or a response cannot be written
+	 * completely. Unless a request was dispatched, the buffer is compacted
+	 * again.
+	 *
+	 * @throws IOException
+	 */
+	private void serve() throws IOException {
+		boolean dispatched = false;
+		try {
+			while (channel.isOpen() && out.isEmpty() && !closeAfterWrite) {
+				if (decoder.writesBody(in)) {
+					dispatched = dispatch(null);
+					break;
+				}
+				Request request;
+				try {
+					request = decoder.decode(in);
+				} catch (ServerException e) {
+					// the rest of the input cannot be interpreted anymore
+					closeAfterWrite = true;
+					enqueue(handler.errorResponse(e, "HTTP/1.1"), null);
+					break;
+				}
+				if (decoder.takeContinue()) {
+					enqueue(new Response(), null);
+				}
+				if (request == null) {
+					if (decoder.writesBody(in)) {
+						// receive the body once the 100 Continue is written
+						continue;
+					}
+					break;
+				}
+				dispatched = dispatch(request);
+				break;
+			}
+		} finally {
+			if (!dispatched) {
+				in.compact();
+			}
+		}
+		if (!dispatched) {
+			flush();
+		}
+	}
+
+	/**
+	 * Continues on a handler thread: receives the body of the current
+	 * request, if it is not complete yet, and handles the request. The input
+	 * buffer belongs to the handler thread until the result is back on the
+	 * loop.
+	 *
+	 * @param decoded
+	 *            Complete request, or {@code null} to receive the body of the
+	 *            current request first
+	 * @return {@code false} if the handler threads are busy and their queue
+	 *         is full, the client is told so
+	 * @throws IOException
+	 */
+	private boolean dispatch(Request decoded) throws IOException {
+		busy = true;
+		key.interestOps(0);
+		try {
+			handlers.execute(() -> {
+				Outcome outcome = new Outcome();
+				try {
+					outcome.request = decoded != null ? decoded : decoder.decode(in);
+					if (outcome.request != null) {
+						outcome.decoded = System.nanoTime();
+						try {
+							outcome.response = handler.handle(outcome.request);
+						} catch (ServerException e) {
+							outcome.response = handler.errorResponse(e, outcome.request.getHttpVersion());
+						}
+						outcome.handled = System.nanoTime();
+					}
+				} catch (ServerException e) {
+					// the body could not be received
+					outcome.failure = e;
+				} catch (RuntimeException e) {
+					outcome.crash = e;
+				}
+				loop.execute(() -> completed(outcome));
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			busy = false;
+			if (decoded == null) {
+				// the rest of the body cannot be skipped
+				decoder.abort();
+				closeAfterWrite = true;
+			}
+			enqueue(handler.errorResponse(new ServiceUnavailableException(),
+					decoded != null ? decoded.getHttpVersion() : "HTTP/1.1"), null);
+			return false;
+		}
+	}
+
+	/**
+	 * Takes the result of a handler thread back on the loop, queues the
+	 * response and continues with the rest of the input.
+	 *
+	 * @param outcome
+	 */
+	private void completed(Outcome outcome) {
+		busy = false;
+		if (!channel.isOpen()) {
+			// closed while the handler was busy
+			decoder.abort();
+			if (outcome.response != null && outcome.response.getFileBody() != null) {
+				outcome.response.getFileBody().close();
+			}
+			return;
+		}
+		try {
+			if (outcome.crash != null) {
+				Log.error("Unexpected error while handling a request", outcome.crash);
+				closeAfterWrite = true;
+				decoder.abort();
+				enqueue(handler.errorResponse(new InternalServerException(), "HTTP/1.1"), null);
+			} else if (outcome.failure != null) {
+				closeAfterWrite = true;
+				enqueue(handler.errorResponse(outcome.failure, "HTTP/1.1"), null);
+			} else if (outcome.request != null) {
+				respond(outcome);
+			}
+			serve();
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Queues the response to a handled request, and records it.
+	 *
+	 * @param outcome
+	 * @throws IOException
+	 */
+	private void respond(Outcome outcome) throws IOException {
+		Request request = outcome.request;
+		Response response = outcome.response;
+		metrics.parsed(outcome.decoded - requestStarted);
+		// the rest of the input belongs to the next request
+		requestStarted = in.hasRemaining() ? outcome.decoded : 0;
+		metrics.handled(outcome.handled - outcome.decoded);
+		BodyPipe pipe = null;
+		if (response.getStreamingBody() != null) {
+			pipe = produce(response);
+			if (pipe == null) {
+				// all producers are busy
+				response = handler.errorResponse(new ServiceUnavailableException(), request.getHttpVersion());
+			}
+		}
+		if (handler.isLastRequest(request) || handler.isLastResponse(response)) {
+			closeAfterWrite = true;
+		}
+		long queued = System.nanoTime();
+		long bytes = enqueue(response, pipe);
+		// only the writes that did not have to wait for the socket
+		metrics.sent(response, bytes, System.nanoTime() - queued, served++ > 0);
+		Log.access(channel.socket().getInetAddress(), request, response, outcome.decoded);
+	}
+
+	/**
+	 * Queues the response for writing and writes as much of it as possible.
+	 *
+	 * @param response
+	 * @param pipe
+	 *            Pipe the streaming body of the response is written to, or
+	 *            {@code null}
+	 * @return Number of bytes of the response
+	 * @throws IOException
+	 */
+	private long enqueue(Response response, BodyPipe pipe) throws IOException {
+		// Status line, headers, newline and an in-memory body in one write
+		ByteBuffer head = ResponseEncoder.get().encode(response);
+		ByteBuffer body = response.getBufferBody();
+		long bytes = head.remaining() + (body == null ? 0 : body.remaining());
+		if (out.isEmpty()) {
+			lastWritten = System.currentTimeMillis();
+			if (body != null) {
+				// head and body in one gathering write
+				gather[0] = head;
+				gather[1] = body;
+				channel.write(gather, 0, 2);
+				gather[0] = null;
+				gather[1] = null;
+			} else {
+				channel.write(head);
+			}
+		}
+		if (head.hasRemaining()) {
+			// the encoder reuses its buffer, keep a copy of what is left
+			ByteBuffer rest = ByteBuffer.allocate(head.remaining());
+			rest.put(head);
+			rest.flip();
+			out.add(rest);
+		}
+		// Queue a body that is not held in a byte array
+		if (response.getFileBody() != null) {
+			bytes += response.getFileBody().getCount();
+			out.add(response.getFileBody());
+		} else if (body != null && body.hasRemaining()) {
+			out.add(body);
+		} else if (pipe != null) {
+			out.add(pipe);
+		}
+		flush();
+		return bytes;
+	}
+
+	/**
+	 * Starts generating a streaming body on a producer thread. The loop
+	 * writes the bytes as they become available.
+	 *
+	 * @param response
+	 *            Response with a streaming body
+	 * @return Pipe the body is written to, or {@code null} if the producers
+	 *         are busy and their queue is full
+	 */
+	private BodyPipe produce(Response response) {
+		int chunkSize = Main.getConfig().getChunkSize();
+		BodyPipe pipe = new BodyPipe(PIPE_CHUNKS * chunkSize, () -> loop.execute(this::resume));
+		try {
+			producers.execute(() -> {
+				try {
+					RequestHandler.writeStreamingBody(response, pipe, chunkSize);
+					pipe.close();
+				} catch (IOException e) {
+					pipe.fail(e);
+				} catch (RuntimeException e) {
+					pipe.fail(new IOException(e));
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+		return pipe;
+	}
+
+	/**
+	 * Writes as much of the pending output as the socket accepts, and
+	 * switches the interest of the selector between reading and writing.
+	 *
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		while (!out.isEmpty()) {
+			Object next = out.peek();
+			if (next instanceof FileRegion) {
+				FileRegion region = (FileRegion) next;
+				region.transferTo(channel);
+				if (!region.isComplete()) {
+					break;
+				}
+				out.poll();
+			} else if (next instanceof BodyPipe) {
+				if (!((BodyPipe) next).transferTo(channel)) {
+					break;
+				}
+				out.poll();
+			} else if (!writeBuffers()) {
+				break;
+			}
+		}
+		if (!channel.isOpen()) {
+			return;
+		}
+		if (out.isEmpty()) {
+			if (closeAfterWrite) {
+				close();
+			} else {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		} else if (out.peek() instanceof BodyPipe && ((BodyPipe) out.peek()).isStarved()) {
+			// the producer wakes the loop up when there are new bytes
+			key.interestOps(0);
+		} else {
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Writes the buffers at the front of the pending output with one
+	 * gathering write.
+	 *
+	 * @return {@code true} if all of them were written
+	 * @throws IOException
+	 */
+	private boolean writeBuffers() throws IOException {
+		int count = 0;
+		for (Object pending : out) {
+			if (!(pending instanceof ByteBuffer) || count == gather.length) {
+				break;
+			}
+			gather[count++] = (ByteBuffer) pending;
+		}
+		channel.write(gather, 0, count);
+		boolean complete = true;
+		for (int i = 0; i < count; i++) {
+			if (complete && !gather[i].hasRemaining()) {
+				out.poll();
+			} else {
+				complete = false;
+			}
+			gather[i] = null;
+		}
+		return complete;
+	}
+
+	/**
+	 * Checks whether the connection did nothing since the given time: no
+	 * request arrived, or the client did not read any of the pending output.
+	 * A connection waiting for a handler thread or for the producer of a
+	 * streaming body is not idle.
+	 *
+	 * @param since
+	 * @return {@code true} if the connection can be closed
+	 */
+	boolean isIdle(long since) {
+		if (busy) {
+			return false;
+		}
+		if (out.isEmpty()) {
+			return lastActive < since;
+		}
+		return key.isValid() && key.interestOps() == SelectionKey.OP_WRITE && lastWritten < since;
+	}
+
+	void close() {
+		if (!channel.isOpen()) {
+			return;
+		}
+		metrics.connectionClosed();
+		for (Object pending : out) {
+			if (pending instanceof FileRegion) {
+				((FileRegion) pending).close();
+			} else if (pending instanceof BodyPipe) {
+				((BodyPipe) pending).abort();
+			}
+		}
+		out.clear();
+		if (!busy) {
+			// drop the body of a request that was cut off, a busy handler
+			// thread is left to finish first
+			decoder.abort();
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
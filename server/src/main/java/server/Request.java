@@ -7,7 +7,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.file.Files;
-import java.util.Date;
 import java.util.HashMap;
 
 import static util.StringOperations.jsonEscape;
@@ -19,14 +18,14 @@ public class Request {
 
     private final HashMap<String, String> headers;
 
-    private final byte[] message;
+    private final Upload upload;
 
     Request(Method method, String file, String httpVersion, HashMap<String, String> headers) throws BadRequestException {
         this(method, file, httpVersion, headers, null);
     }
 
-    Request(Method method, String file, String httpVersion, HashMap<String, String> headers, byte[] message) throws BadRequestException {
-        if ((method == Method.POST || method == Method.PUT) && message == null) {
+    Request(Method method, String file, String httpVersion, HashMap<String, String> headers, Upload upload) throws BadRequestException {
+        if ((method == Method.POST || method == Method.PUT) && upload == null) {
             throw new BadRequestException();
         }
 
@@ -45,7 +44,7 @@ public class Request {
 		}
         this.httpVersion = httpVersion;
         this.headers = headers;
-        this.message = message;
+        this.upload = upload;
     }
 
     Method getMethod() {
@@ -64,28 +63,32 @@ public class Request {
         return headers;
     }
 
+    Upload getUpload() {
+        return upload;
+    }
+
+    /**
+     * Writes a description of the uploaded body next to it. The body itself
+     * was stored while it was received.
+     *
+     * @return The description as JSON
+     */
     String saveMessage() {
-        assert message != null : "SERVERTHREAD - Message attempted to store was null";
+        assert upload != null : "SERVERTHREAD - Message attempted to store was null";
 
-        String path = "uploads/" + new Date().getTime() + "/";
-        File file = new File(path + this.getMethod().getName() + ".json");
-        // Create new file
-        try {
-            file.getParentFile().mkdirs();
-            file.createNewFile();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        // Write request message to file
+        File file = upload.getDirectory().resolve(this.getMethod().getName() + ".json").toFile();
+        // Write request metadata to file
         String json = "{\r\n"
         		+ "  " + "\"method\": \"" + jsonEscape(this.getMethod().getName()) + "\"," + "\r\n"
         		+ "  " + "\"version\": \"" + jsonEscape(this.getHttpVersion()) + "\"," + "\r\n"
         		+ "  " + "\"file\": \"" + jsonEscape(this.getFile()) + "\"," + "\r\n"
-        		+ "  " + "\"message\": \"" + jsonEscape(new String(message)) + "\"" + "\r\n"
+        		+ "  " + "\"size\": " + upload.getSize() + "," + "\r\n"
+        		+ "  " + "\"sha256\": \"" + upload.getDigest() + "\"," + "\r\n"
+        		+ "  " + "\"path\": \"" + jsonEscape(upload.getPath().toString()) + "\"" + "\r\n"
         		+ "}";
         try {
             Files.write(file.toPath(), json.getBytes());
-            System.out.println("server.Request message written to: " + file.getPath());
+            Log.info("server.Request message written to: " + upload.getPath());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -98,7 +101,7 @@ public class Request {
             return this.getMethod() + " " + this.getFile() + " " + this.getHttpVersion() + "\n" + this.getHeaders();
         } else {
             return this.getMethod() + " " + this.getFile() + " " + this.getHttpVersion() + "\n" + this.getHeaders()
-                    + "\n\n" + new String(this.message);
+                    + "\n\n" + "(" + upload.getSize() + " bytes in " + upload.getPath() + ")";
         }
     }
 }
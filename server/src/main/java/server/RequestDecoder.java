@@ -0,0 +1,279 @@
+package server;
+
+import server.exceptions.BadRequestException;
+import server.exceptions.InternalServerException;
+import server.exceptions.ServerException;
+import util.HttpParser;
+import util.MalformedMessageException;
+import util.Method;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Incremental request parser for non-blocking connections. Bytes are fed
+ * as they arrive, possibly splitting a request at any position, and a
+ * request is returned once it has been received completely.
+ *
+ * The body of a PUT or POST request is written to an {@link Upload} while it
+ * arrives. Decoding stops after the head of such a request, so an event loop
+ * can leave the calls that write to the file system, see
+ * {@link #writesBody(ByteBuffer)}, to another thread.
+ */
+class RequestDecoder {
+
+	private static final int MAX_CHUNK_LINE_LENGTH = 1024;
+
+	private enum State {
+		HEAD, BODY_START, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, FOOTERS
+	}
+
+	private State state = State.HEAD;
+	private final HttpParser parser = new HttpParser();
+	private final byte[] line = new byte[MAX_CHUNK_LINE_LENGTH];
+	private int lineLength;
+
+	private Method method;
+	private String file;
+	private String httpVersion;
+	private HashMap<String, String> headers;
+	private Upload body;
+	private boolean chunked;
+	private long remaining;
+	private boolean continueRequested;
+
+	/**
+	 * Consumes bytes of the given buffer until a request is complete or the
+	 * buffer is exhausted.
+	 *
+	 * @param in
+	 *            Buffer in read mode
+	 * @return The decoded request, or {@code null} if more bytes are needed
+	 *         or the head of a request with a body was decoded
+	 * @throws ServerException
+	 *             If the bytes received do not form a valid request
+	 */
+	Request decode(ByteBuffer in) throws ServerException {
+		while (true) {
+			switch (state) {
+			case HEAD: {
+				parse(in);
+				if (!parser.isComplete()) {
+					return null;
+				}
+				if (parser.getMethod() == null) {
+					// HTTP method not supported
+					throw new BadRequestException();
+				}
+				method = parser.getMethod();
+				file = parser.getTarget();
+				httpVersion = parser.getHttpVersion();
+				headers = parser.getHeaders();
+				if (method == Method.POST || method == Method.PUT) {
+					startBody();
+					return null;
+				}
+				return complete();
+			}
+			case BODY_START: {
+				try {
+					body = Upload.create(method);
+				} catch (IOException e) {
+					throw new InternalServerException();
+				}
+				state = chunked ? State.CHUNK_SIZE : State.BODY;
+				break;
+			}
+			case BODY:
+			case CHUNK_DATA: {
+				int count = (int) Math.min(remaining, in.remaining());
+				try {
+					body.write(in.array(), in.arrayOffset() + in.position(), count);
+				} catch (IOException e) {
+					abort();
+					throw new InternalServerException();
+				}
+				in.position(in.position() + count);
+				remaining -= count;
+				if (remaining > 0) {
+					return null;
+				}
+				if (state == State.BODY) {
+					return complete();
+				}
+				state = State.CHUNK_END;
+				break;
+			}
+			case CHUNK_END: {
+				String chunkEnd = readLine(in);
+				if (chunkEnd == null) {
+					return null;
+				}
+				state = State.CHUNK_SIZE;
+				break;
+			}
+			case CHUNK_SIZE: {
+				String sizeLine = readLine(in);
+				if (sizeLine == null) {
+					return null;
+				}
+				if (sizeLine.contains(";")) {
+					sizeLine = sizeLine.substring(0, sizeLine.indexOf(";"));
+				}
+				sizeLine = sizeLine.trim();
+				if (sizeLine.startsWith("+") || sizeLine.startsWith("-")) {
+					// chunk-size is hex digits only
+					throw new BadRequestException();
+				}
+				try {
+					// too many digits overflow and are rejected too
+					remaining = Long.parseLong(sizeLine, 16);
+				} catch (NumberFormatException e) {
+					throw new BadRequestException();
+				}
+				if (remaining < 0) {
+					throw new BadRequestException();
+				}
+				if (remaining == 0) {
+					parser.reset(HttpParser.Mode.HEADERS);
+					state = State.FOOTERS;
+				} else {
+					state = State.CHUNK_DATA;
+				}
+				break;
+			}
+			case FOOTERS: {
+				parse(in);
+				if (!parser.isComplete()) {
+					return null;
+				}
+				headers.putAll(parser.getHeaders());
+				return complete();
+			}
+			}
+		}
+	}
+
+	private void parse(ByteBuffer in) throws BadRequestException {
+		try {
+			parser.parse(in);
+		} catch (MalformedMessageException e) {
+			throw new BadRequestException();
+		}
+	}
+
+	/**
+	 * Checks whether the next call of {@link #decode(ByteBuffer)} may write to
+	 * the file system, because it creates or writes the body of a request.
+	 *
+	 * @param in
+	 *            Buffer in read mode
+	 * @return {@code true} if the call may block on the file system
+	 */
+	boolean writesBody(ByteBuffer in) {
+		return state == State.BODY_START || (state != State.HEAD && in.hasRemaining());
+	}
+
+	/**
+	 * Checks whether the client asked for a "100 Continue" response before
+	 * sending the body of the current request. The flag is reset by calling
+	 * this method.
+	 *
+	 * @return {@code true} if a "100 Continue" response has to be sent
+	 */
+	boolean takeContinue() {
+		boolean result = continueRequested;
+		continueRequested = false;
+		return result;
+	}
+
+	/**
+	 * Reads the next chunk size line from the buffer, without line-end
+	 * characters.
+	 *
+	 * @param in
+	 * @return The line read, or {@code null} if the line is not complete yet
+	 * @throws BadRequestException
+	 *             If the line is longer than allowed
+	 */
+	private String readLine(ByteBuffer in) throws BadRequestException {
+		while (in.hasRemaining()) {
+			byte b = in.get();
+			if (b == '\n') {
+				int length = lineLength;
+				if (length > 0 && line[length - 1] == '\r') {
+					length--;
+				}
+				lineLength = 0;
+				return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+			}
+			if (lineLength == line.length) {
+				throw new BadRequestException();
+			}
+			line[lineLength++] = b;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks how the length of the body is given. The file of the body is
+	 * created by the next call of {@link #decode(ByteBuffer)}.
+	 *
+	 * @throws ServerException
+	 *             If the length of the body cannot be determined
+	 */
+	private void startBody() throws ServerException {
+		continueRequested = httpVersion.equals("HTTP/1.1") && "100-continue".equalsIgnoreCase(headers.get("Expect"));
+		chunked = "chunked".equals(headers.get("Transfer-Encoding"));
+		if (!chunked && headers.containsKey("Content-Length")) {
+			try {
+				remaining = Long.parseLong(headers.get("Content-Length"));
+			} catch (NumberFormatException e) {
+				throw new BadRequestException();
+			}
+			if (remaining < 0) {
+				throw new BadRequestException();
+			}
+		} else if (!chunked) {
+			// the end of the body cannot be determined without closing the
+			// connection
+			throw new BadRequestException();
+		}
+		state = State.BODY_START;
+	}
+
+	/**
+	 * Discards the partially received body of the current request, if any.
+	 */
+	void abort() {
+		if (body != null) {
+			body.abort();
+			body = null;
+		}
+	}
+
+	private Request complete() throws ServerException {
+		state = State.HEAD;
+		parser.reset(HttpParser.Mode.REQUEST);
+		Upload upload = body;
+		if (upload != null) {
+			try {
+				upload.close();
+			} catch (IOException e) {
+				abort();
+				throw new InternalServerException();
+			}
+		}
+		body = null;
+		try {
+			return new Request(method, file, httpVersion, headers, upload);
+		} catch (BadRequestException e) {
+			if (upload != null) {
+				upload.abort();
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,603 @@
+package server;
+
+import server.exceptions.BadRequestException;
+import server.exceptions.FileNotFoundException;
+import server.exceptions.InternalServerException;
+import server.exceptions.RangeNotSatisfiableException;
+import server.exceptions.ServerException;
+import util.ChunkedOutputStream;
+import util.Method;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Turns requests into responses. Shared by every connection engine of the
+ * server, independent of how the request was read from the network.
+ */
+class RequestHandler {
+
+	/**
+	 * Largest multipart/byteranges body that is built in memory.
+	 */
+	private static final long MAX_MULTIPART_BYTES = 8 * 1024 * 1024;
+
+	Response handle(Request request) throws ServerException {
+		String httpVersion = request.getHttpVersion();
+		Response response;
+		HashMap<String, String> headers = new HashMap<>();
+
+		if (request.getHeaders().containsKey("Connection") && request.getHeaders().get("Connection").equals("close")) {
+			headers.put("Connection", "close");
+		}
+
+		if (request.getMethod() == Method.GET && request.getFile().equals(Metrics.PATH)) {
+			headers.put("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			headers.put("Cache-Control", "no-store");
+			return new Response(200, headers, Metrics.get().toPrometheus().getBytes(StandardCharsets.UTF_8),
+					httpVersion);
+		}
+
+		if (request.getMethod() == Method.GET || request.getMethod() == Method.HEAD) {
+			// read file
+			Path path;
+			try {
+				if (request.getFile().endsWith("/")) {
+					path = Paths.get(Main.getPath() + request.getFile() + "index.html");
+				} else {
+					path = Paths.get(Main.getPath() + request.getFile());
+				}
+			} catch (InvalidPathException e) {
+				// e.g. a NUL character in the target
+				throw new BadRequestException();
+			}
+
+			FileCache cache = Main.getFileCache();
+			if (cache != null) {
+				response = handleCached(request, path.normalize(), cache, headers);
+			} else {
+				response = handleUncached(request, path, headers);
+			}
+		} else {
+			// Save message on PUT or POST
+			String json = request.saveMessage();
+			// Construct response
+			headers.put("Content-Type", "application/json");
+			response = new Response(200, headers, json.getBytes(), httpVersion);
+		}
+		// success
+		return response;
+	}
+
+	/**
+	 * Answers a GET or HEAD request from the file cache.
+	 *
+	 * @param request
+	 * @param path
+	 *            Requested file
+	 * @param cache
+	 * @param headers
+	 *            Headers of the response so far
+	 * @return Response for the request
+	 * @throws ServerException
+	 */
+	private Response handleCached(Request request, Path path, FileCache cache, HashMap<String, String> headers)
+			throws ServerException {
+		FileCache.Entry entry;
+		try {
+			entry = cache.get(path);
+		} catch (IOException e) {
+			throw new InternalServerException();
+		}
+		if (entry == null) {
+			throw new FileNotFoundException();
+		}
+		return respond(request, path, entry, cache, headers);
+	}
+
+	/**
+	 * Answers a GET or HEAD request from the file system, reading the
+	 * attributes of the file once.
+	 *
+	 * @param request
+	 * @param path
+	 *            Requested file
+	 * @param headers
+	 *            Headers of the response so far
+	 * @return Response for the request
+	 * @throws ServerException
+	 */
+	private Response handleUncached(Request request, Path path, HashMap<String, String> headers)
+			throws ServerException {
+		FileCache.Entry entry;
+		try {
+			entry = readEntry(path);
+		} catch (IOException e) {
+			throw new InternalServerException();
+		}
+		if (entry == null) {
+			throw new FileNotFoundException();
+		}
+		return respond(request, path, entry, null, headers);
+	}
+
+	/**
+	 * Reads the attributes of a file without caching them.
+	 *
+	 * @param path
+	 * @return Entry without content, or {@code null} if there is no regular
+	 *         file at the path
+	 * @throws IOException
+	 */
+	private static FileCache.Entry readEntry(Path path) throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (!attributes.isRegularFile()) {
+			return null;
+		}
+		return new FileCache.Entry(null, attributes.size(), attributes.lastModifiedTime().toMillis(),
+				Files.probeContentType(path));
+	}
+
+	/**
+	 * Builds the response for a file, in the content-coding preferred by the
+	 * client.
+	 *
+	 * @param request
+	 * @param path
+	 *            Requested file
+	 * @param entry
+	 *            Attributes and, if cached, content of the file
+	 * @param cache
+	 *            Cache the entry was taken from, or {@code null}
+	 * @param headers
+	 *            Headers of the response so far
+	 * @return Response for the request
+	 * @throws ServerException
+	 */
+	private Response respond(Request request, Path path, FileCache.Entry entry, FileCache cache,
+			HashMap<String, String> headers) throws ServerException {
+		String httpVersion = request.getHttpVersion();
+		headers.put("Content-Type", entry.getContentType());
+		headers.put("Last-Modified", entry.getLastModifiedHeader());
+
+		// The body is either the file itself or a compressed variant of it
+		String etag = entry.getEtag();
+		long size = entry.getSize();
+		ByteBuffer content = entry.getContent();
+		Path file = path;
+		long fileModified = entry.getLastModified();
+		// compressed while it is sent, of unknown size
+		StreamingBody stream = null;
+		Compression compression = Main.getCompression();
+		if (compression != null) {
+			if (Compression.isCompressible(entry.getContentType())) {
+				headers.put("Vary", "Accept-Encoding");
+			}
+			String acceptEncoding = request.getHeaders().get("Accept-Encoding");
+			if (acceptEncoding != null) {
+				try {
+					for (String coding : preferredCodings(acceptEncoding)) {
+						// a precompressed sibling of the file is preferred
+						FileCache.Entry sibling = compressedSibling(path, entry, coding, cache);
+						if (sibling != null) {
+							etag = sibling.getEtag();
+							size = sibling.getSize();
+							content = sibling.getContent();
+							file = siblingPath(path, coding);
+							fileModified = sibling.getLastModified();
+						} else if (!coding.equals(Compression.BROTLI)
+								&& Compression.isCompressible(entry.getContentType())
+								&& compression.accepts(entry.getSize())) {
+							ByteBuffer compressed = compression.get(path, entry.getSize(), entry.getLastModified(),
+									entry.getContent(), coding);
+							if (compressed == null) {
+								continue;
+							}
+							etag = etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+							size = compressed.remaining();
+							content = compressed;
+						} else if (!coding.equals(Compression.BROTLI)
+								&& Compression.isCompressible(entry.getContentType())
+								&& compression.streams(entry.getSize())) {
+							etag = etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+							size = -1;
+							content = null;
+							stream = compression.stream(path, entry.getContent(), coding);
+						} else {
+							continue;
+						}
+						headers.put("Content-Encoding", coding);
+						headers.put("Vary", "Accept-Encoding");
+						break;
+					}
+				} catch (IOException e) {
+					throw new InternalServerException();
+				}
+			}
+		}
+		headers.put("ETag", etag);
+		if (stream == null) {
+			headers.put("Accept-Ranges", "bytes");
+		}
+
+		// Check if page is modified since time given in header (if given)
+		String ifNoneMatch = request.getHeaders().get("If-None-Match");
+		String since = request.getHeaders().get("If-Modified-Since");
+		boolean notModified;
+		if (ifNoneMatch != null) {
+			// If-None-Match takes precedence over If-Modified-Since (RFC 7232)
+			notModified = etagMatches(ifNoneMatch, etag);
+		} else if (since == null) {
+			notModified = false;
+		} else if (cache != null) {
+			notModified = !isModified(entry.getLastModified(), parseDate(since));
+		} else {
+			notModified = !fileIsModified(path, since);
+		}
+		if (notModified) {
+			// File wasn't modified
+			if (stream == null) {
+				headers.put("Content-Length", Long.toString(size));
+			}
+			return new Response(304, headers, httpVersion);
+		}
+		// Page was modified since time given in header, or no condition in
+		// header
+		if (request.getMethod() == Method.HEAD) {
+			if (stream == null) {
+				headers.put("Content-Length", Long.toString(size));
+			} else if ("HTTP/1.1".equals(httpVersion)) {
+				headers.put("Transfer-Encoding", "chunked");
+			}
+			return new Response(200, headers, httpVersion);
+		}
+		if (stream != null) {
+			return new Response(200, headers, stream, httpVersion);
+		}
+		MappedFiles mappedFiles = Main.getMappedFiles();
+		if (content == null && mappedFiles != null) {
+			try {
+				content = mappedFiles.get(file, size, fileModified);
+			} catch (IOException e) {
+				throw new InternalServerException();
+			}
+		}
+		String range = request.getHeaders().get("Range");
+		if (range != null && ifRangeMatches(request.getHeaders().get("If-Range"), etag, entry.getLastModified())) {
+			ByteRanges ranges = ByteRanges.parse(range, size);
+			if (ranges != null) {
+				Response partial = partialResponse(request, ranges, size, content, file, headers);
+				if (partial != null) {
+					return partial;
+				}
+			}
+		}
+		if (content != null) {
+			return new Response(200, headers, content, httpVersion);
+		}
+		// too large to be kept in memory
+		return new Response(200, headers, new FileRegion(file, 0, size), httpVersion);
+	}
+
+	/**
+	 * Builds a 206 response with the requested ranges of the body: a single
+	 * range is sent as is, several ranges as a multipart/byteranges body.
+	 *
+	 * @param request
+	 * @param ranges
+	 *            Ranges requested by the client
+	 * @param size
+	 *            Size of the body
+	 * @param content
+	 *            The body if it is in memory, or {@code null}
+	 * @param file
+	 *            File holding the body
+	 * @param headers
+	 *            Headers of the response so far
+	 * @return The partial response, or {@code null} to send the whole body
+	 *         instead
+	 * @throws ServerException
+	 *             If no range is satisfiable
+	 */
+	private Response partialResponse(Request request, ByteRanges ranges, long size, ByteBuffer content, Path file,
+			HashMap<String, String> headers) throws ServerException {
+		String httpVersion = request.getHttpVersion();
+		if (ranges.count() == 0) {
+			throw new RangeNotSatisfiableException(size);
+		}
+		if (ranges.count() == 1) {
+			long start = ranges.getStart(0);
+			long length = ranges.getLength(0);
+			headers.put("Content-Range", ranges.getContentRange(0));
+			if (content != null) {
+				ByteBuffer part = content.duplicate();
+				part.limit(content.position() + (int) (start + length));
+				part.position(content.position() + (int) start);
+				return new Response(206, headers, part.slice(), httpVersion);
+			}
+			return new Response(206, headers, new FileRegion(file, start, length), httpVersion);
+		}
+		String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+		String contentType = headers.get("Content-Type");
+		if (ranges.getMultipartLength(boundary, contentType) > MAX_MULTIPART_BYTES) {
+			// not worth buffering, the whole body is sent instead
+			return null;
+		}
+		try {
+			ByteBuffer body = ranges.toMultipart(boundary, contentType, content, file);
+			headers.put("Content-Type", "multipart/byteranges; boundary=" + boundary);
+			return new Response(206, headers, body, httpVersion);
+		} catch (IOException e) {
+			throw new InternalServerException();
+		}
+	}
+
+	/**
+	 * Evaluates an If-Range header: the ranges are only sent if the client
+	 * still has the same version of the file.
+	 *
+	 * @param ifRange
+	 *            Value of the header, or {@code null}
+	 * @param etag
+	 *            Current entity tag of the body
+	 * @param lastModified
+	 *            Modification time of the file in milliseconds
+	 * @return {@code true} if the ranges are sent
+	 */
+	static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// weak entity tags never match
+			return ifRange.equals(etag);
+		}
+		long date = HttpDate.parse(ifRange);
+		return date != HttpDate.INVALID && Math.floorDiv(date, 1000) == Math.floorDiv(lastModified, 1000);
+	}
+
+	/**
+	 * @return The codings of {@link Compression#CODINGS} the client accepts,
+	 *         most preferred first
+	 */
+	private static List<String> preferredCodings(String acceptEncoding) {
+		ArrayList<String> codings = new ArrayList<>(Compression.CODINGS.length);
+		ArrayList<Float> qualities = new ArrayList<>(Compression.CODINGS.length);
+		for (String coding : Compression.CODINGS) {
+			float quality = Compression.quality(acceptEncoding, coding);
+			if (quality <= 0) {
+				continue;
+			}
+			// insertion sort, stable for codings of equal quality
+			int i = codings.size();
+			while (i > 0 && qualities.get(i - 1) < quality) {
+				i--;
+			}
+			codings.add(i, coding);
+			qualities.add(i, quality);
+		}
+		return codings;
+	}
+
+	private static Path siblingPath(Path path, String coding) {
+		return path.resolveSibling(path.getFileName() + (coding.equals(Compression.BROTLI) ? ".br"
+				: coding.equals(Compression.GZIP) ? ".gz" : ".zz"));
+	}
+
+	/**
+	 * Looks for a precompressed copy of the file next to it, such as
+	 * "style.css.gz" for "style.css". Copies older than the file are ignored.
+	 * Whether there is a copy is remembered in the cache entry of the file,
+	 * so most files, which have none, do not cost a lookup per request.
+	 *
+	 * @return The copy, or {@code null} if there is no current one
+	 * @throws IOException
+	 */
+	private static FileCache.Entry compressedSibling(Path path, FileCache.Entry entry, String coding,
+			FileCache cache) throws IOException {
+		if (coding.equals(Compression.DEFLATE)) {
+			return null;
+		}
+		if (cache != null && Boolean.FALSE.equals(entry.hasSibling(coding))) {
+			return null;
+		}
+		Path sibling = siblingPath(path, coding);
+		FileCache.Entry siblingEntry = cache != null ? cache.get(sibling) : readEntry(sibling);
+		boolean current = siblingEntry != null && siblingEntry.getLastModified() >= entry.getLastModified();
+		if (cache != null) {
+			entry.setSibling(coding, current);
+		}
+		return current ? siblingEntry : null;
+	}
+
+	/**
+	 * Checks whether an If-None-Match header lists the given entity tag, using
+	 * the weak comparison of RFC 7232.
+	 *
+	 * @param ifNoneMatch
+	 *            Value of the header: "*" or a comma separated list of tags
+	 * @param etag
+	 *            Quoted entity tag
+	 * @return {@code true} if the header matches the tag
+	 */
+	static boolean etagMatches(String ifNoneMatch, String etag) {
+		int length = ifNoneMatch.length();
+		int i = 0;
+		while (i < length) {
+			char c = ifNoneMatch.charAt(i);
+			if (c == ' ' || c == '\t' || c == ',') {
+				i++;
+				continue;
+			}
+			if (c == '*') {
+				return true;
+			}
+			if (ifNoneMatch.startsWith("W/", i)) {
+				i += 2;
+			}
+			int end = ifNoneMatch.indexOf(',', i);
+			if (end == -1) {
+				end = length;
+			}
+			int tagEnd = end;
+			while (tagEnd > i && (ifNoneMatch.charAt(tagEnd - 1) == ' ' || ifNoneMatch.charAt(tagEnd - 1) == '\t')) {
+				tagEnd--;
+			}
+			if (tagEnd - i == etag.length() && ifNoneMatch.regionMatches(i, etag, 0, etag.length())) {
+				return true;
+			}
+			i = end;
+		}
+		return false;
+	}
+
+	/**
+	 * Compares modification times at the precision of HTTP dates, which have
+	 * no fractions of seconds.
+	 *
+	 * @param lastModified
+	 *            Modification time of the file in milliseconds
+	 * @param since
+	 *            Date of the If-Modified-Since header in milliseconds
+	 * @return {@code true} if the file is newer
+	 */
+	static boolean isModified(long lastModified, long since) {
+		return Math.floorDiv(lastModified, 1000) > Math.floorDiv(since, 1000);
+	}
+
+	/**
+	 * Checks if the given file has been modified since the given date.
+	 *
+	 * @param path
+	 *            The file to check modification date for.
+	 * @param since
+	 *            The time to compare against.
+	 * @return {@code true} if modified since, {@code false} otherwise.
+	 * @throws BadRequestException
+	 */
+	boolean fileIsModified(Path path, String since) throws BadRequestException {
+		if (Log.isEnabled(Log.Level.DEBUG)) {
+			Log.debug("If-Modified-Since " + since);
+		}
+		return isModified(path.toFile().lastModified(), parseDate(since));
+	}
+
+	/**
+	 * Parses a date in one of the three formats allowed by HTTP/1.1.
+	 *
+	 * @param since
+	 *            Value of a date header
+	 * @return The parsed date in milliseconds since the epoch
+	 * @throws BadRequestException
+	 *             If the date has none of the allowed formats
+	 */
+	long parseDate(String since) throws BadRequestException {
+		long date = HttpDate.parse(since);
+		if (date == HttpDate.INVALID) {
+			throw new BadRequestException();
+		}
+		return date;
+	}
+
+	/**
+	 * Generates the error page for a failed request.
+	 *
+	 * @param e
+	 *            Exception describing the failure
+	 * @param httpVersion
+	 *            HTTP version of the response
+	 * @return Response with the HTML error page of the exception
+	 */
+	Response errorResponse(ServerException e, String httpVersion) {
+		HashMap<String, String> headers = new HashMap<>();
+		headers.put("Content-Type", "text/html");
+		if (e instanceof RangeNotSatisfiableException) {
+			headers.put("Content-Range", "bytes */" + ((RangeNotSatisfiableException) e).getSize());
+		}
+		return new Response(e.getStatusCode(), headers, e.getHtmlBody().getBytes(), httpVersion);
+	}
+
+	/**
+	 * Checks if the connection has to be closed after sending the given
+	 * response, e.g. because the end of its body is marked by closing it.
+	 *
+	 * @param response
+	 * @return {@code true} if the response is the last of the connection
+	 */
+	boolean isLastResponse(Response response) {
+		return "close".equalsIgnoreCase(response.getHeaders().get("Connection"));
+	}
+
+	/**
+	 * Generates the streaming body of a response, chunked if the client
+	 * supports it.
+	 *
+	 * @param response
+	 *            Response with a streaming body
+	 * @param out
+	 *            Stream to the client
+	 * @param chunkSize
+	 *            Number of bytes buffered per chunk
+	 * @return Number of bytes written, including the chunk framing
+	 * @throws IOException
+	 */
+	static long writeStreamingBody(Response response, OutputStream out, int chunkSize) throws IOException {
+		if (response.isChunked()) {
+			ChunkedOutputStream chunked = new ChunkedOutputStream(out, chunkSize);
+			response.getStreamingBody().writeTo(chunked);
+			chunked.close();
+			return chunked.getCount();
+		}
+		// the end of the body is marked by closing the connection
+		long[] count = new long[1];
+		BufferedOutputStream buffered = new BufferedOutputStream(new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				count[0] += len;
+			}
+
+			@Override
+			public void close() throws IOException {
+				// the connection is closed by the engine
+				flush();
+			}
+		}, chunkSize);
+		response.getStreamingBody().writeTo(buffered);
+		buffered.flush();
+		return count[0];
+	}
+
+	/**
+	 * Checks if the connection has to be closed after responding to the
+	 * given request.
+	 *
+	 * @param request
+	 * @return {@code true} if this is the last request of the connection
+	 */
+	boolean isLastRequest(Request request) {
+		return (request.getHeaders().containsKey("Connection")
+				&& request.getHeaders().get("Connection").equalsIgnoreCase("close"))
+				|| request.getHttpVersion().equals("HTTP/1.0");
+	}
+}
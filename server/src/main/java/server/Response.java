@@ -1,7 +1,6 @@
 package server;
 
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 /**
@@ -16,6 +15,13 @@ class Response {
     private int statusCode;
     private HashMap<String, String> headers;
     private byte[] body;
+    private FileRegion fileBody;
+    private ByteBuffer bufferBody;
+    /**
+     * Size of the buffer body, which is consumed when it is sent
+     */
+    private int bufferLength;
+    private StreamingBody streamingBody;
     private String httpVersion;
 
     Response(int statusCode, HashMap<String, String> header, byte[] body, String httpVersion) {
@@ -26,6 +32,44 @@ class Response {
         addDefaultHeaders();
     }
 
+    /**
+     * Constructor for a response whose body is (a part of) a file, which is
+     * sent without loading it into memory.
+     */
+    Response(int statusCode, HashMap<String, String> header, FileRegion fileBody, String httpVersion) {
+        this.statusCode = statusCode;
+        this.headers = header;
+        this.fileBody = fileBody;
+        this.httpVersion = httpVersion;
+        addDefaultHeaders();
+    }
+
+    /**
+     * Constructor for a response whose body is held in a buffer, which may
+     * be off-heap.
+     */
+    Response(int statusCode, HashMap<String, String> header, ByteBuffer bufferBody, String httpVersion) {
+        this.statusCode = statusCode;
+        this.headers = header;
+        this.bufferBody = bufferBody;
+        this.bufferLength = bufferBody.remaining();
+        this.httpVersion = httpVersion;
+        addDefaultHeaders();
+    }
+
+    /**
+     * Constructor for a response whose body is generated while it is sent.
+     * The body is sent chunked to HTTP/1.1 clients; for HTTP/1.0 clients its
+     * end is marked by closing the connection.
+     */
+    Response(int statusCode, HashMap<String, String> header, StreamingBody streamingBody, String httpVersion) {
+        this.statusCode = statusCode;
+        this.headers = header;
+        this.streamingBody = streamingBody;
+        this.httpVersion = httpVersion;
+        addDefaultHeaders();
+    }
+
     Response(int statusCode, HashMap<String, String> header, String httpVersion) {
         this.statusCode = statusCode;
         this.headers = header;
@@ -42,22 +86,33 @@ class Response {
         this.httpVersion = "HTTP/1.1";
     }
 
-    private String getReasonPhrase() {
+    /**
+     * @param statusCode
+     * @return Reason phrase of the status code, or an empty string for codes
+     *         this server does not send
+     */
+    static String reasonPhrase(int statusCode) {
         switch (statusCode) {
             case 100:
                 return "Continue";
             case 200:
                 return "OK";
+            case 206:
+                return "Partial Content";
             case 304:
                 return "Not Modified";
             case 400:
-                return "Bad server.Request";
+                return "Bad Request";
             case 402:
                 return "Payment Required";
             case 404:
                 return "Not Found";
+            case 416:
+                return "Range Not Satisfiable";
             case 500:
                 return "Server Error";
+            case 503:
+                return "Service Unavailable";
             default:
                 return "";
         }
@@ -67,23 +122,83 @@ class Response {
         return this.headers;
     }
 
+    String getHttpVersion() {
+        return httpVersion;
+    }
+
     String getStatusLine() {
-        return httpVersion + " " + statusCode + " " + getReasonPhrase();
+        return httpVersion + " " + statusCode + " " + reasonPhrase(statusCode);
+    }
+
+    /**
+     * Encodes the status line and headers, followed by the empty line that
+     * separates them from the body.
+     */
+    byte[] getHead() {
+        ByteBuffer head = ResponseEncoder.get().encodeHead(this);
+        byte[] bytes = new byte[head.remaining()];
+        head.get(bytes);
+        return bytes;
     }
 
     byte[] getBody() {
         return body;
     }
 
+    FileRegion getFileBody() {
+        return fileBody;
+    }
+
+    ByteBuffer getBufferBody() {
+        return bufferBody;
+    }
+
+    StreamingBody getStreamingBody() {
+        return streamingBody;
+    }
+
+    /**
+     * @return Whether a streaming body is sent with the chunked
+     *         transfer-coding
+     */
+    boolean isChunked() {
+        return streamingBody != null && "HTTP/1.1".equals(httpVersion);
+    }
+
+    /**
+     * @return Number of bytes of the body that is sent, 0 for a streaming
+     *         body
+     */
+    long getBodyLength() {
+        if (body != null) {
+            return body.length;
+        } else if (fileBody != null) {
+            return fileBody.getCount();
+        } else if (bufferBody != null) {
+            return bufferLength;
+        }
+        return 0;
+    }
+
     /**
      * Automatically adds headers to the response: date, content-length, server
      */
     private void addDefaultHeaders() {
         headers.put("Server", "SCJG");
-        headers.putIfAbsent("Date", java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneId.of("GMT"))));
+        headers.putIfAbsent("Date", HttpDate.now());
 
         if (body != null) {
             headers.put("Content-Length", Integer.toString(body.length));
+        } else if (fileBody != null) {
+            headers.put("Content-Length", Long.toString(fileBody.getCount()));
+        } else if (bufferBody != null) {
+            headers.put("Content-Length", Integer.toString(bufferLength));
+        } else if (streamingBody != null) {
+            if (isChunked()) {
+                headers.put("Transfer-Encoding", "chunked");
+            } else {
+                headers.put("Connection", "close");
+            }
         }
     }
 }
@@ -0,0 +1,174 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializes responses into a buffer that is reused by all responses sent
+ * from the same thread, so a response with an in-memory body is written with
+ * a single socket write. Status lines and the names of common headers are
+ * encoded only once.
+ */
+final class ResponseEncoder {
+
+	private static final int INITIAL_CAPACITY = 8192;
+	/**
+	 * Larger buffers are used for one response only, and not kept.
+	 */
+	private static final int MAX_POOLED_CAPACITY = 65536;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] SEPARATOR = { ':', ' ' };
+
+	private static final String[] COMMON_HEADERS = { "Accept-Ranges", "Cache-Control", "Connection",
+			"Content-Encoding", "Content-Length", "Content-Range", "Content-Type", "Date", "ETag", "Last-Modified",
+			"Location", "Server", "Transfer-Encoding", "Vary" };
+	private static final HashMap<String, byte[]> HEADER_NAMES = new HashMap<>();
+
+	static {
+		for (String name : COMMON_HEADERS) {
+			HEADER_NAMES.put(name, (name + ": ").getBytes(StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	/**
+	 * Status lines by status code, for HTTP/1.1 and HTTP/1.0. Only the codes
+	 * with a known reason phrase are filled in; the tables are not written
+	 * after class initialization, so threads share them without locking.
+	 */
+	private static final byte[][] STATUS_LINES_11 = new byte[600][];
+	private static final byte[][] STATUS_LINES_10 = new byte[600][];
+
+	static {
+		for (int code = 100; code < STATUS_LINES_11.length; code++) {
+			String reason = Response.reasonPhrase(code);
+			if (!reason.isEmpty()) {
+				STATUS_LINES_11[code] = ("HTTP/1.1 " + code + " " + reason + "\r\n")
+						.getBytes(StandardCharsets.ISO_8859_1);
+				STATUS_LINES_10[code] = ("HTTP/1.0 " + code + " " + reason + "\r\n")
+						.getBytes(StandardCharsets.ISO_8859_1);
+			}
+		}
+	}
+
+	private static final ThreadLocal<ResponseEncoder> ENCODERS = ThreadLocal.withInitial(ResponseEncoder::new);
+
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+	private ResponseEncoder() {
+	}
+
+	/**
+	 * @return The encoder of the current thread
+	 */
+	static ResponseEncoder get() {
+		return ENCODERS.get();
+	}
+
+	/**
+	 * Encodes the status line, headers and, if the body is held in a byte
+	 * array, the body of the response. The returned buffer is only valid
+	 * until the next call on this encoder.
+	 *
+	 * @param response
+	 * @return Buffer in read mode
+	 */
+	ByteBuffer encode(Response response) {
+		byte[] body = response.getBody();
+		encodeHead(response, body == null ? 0 : body.length);
+		if (body != null) {
+			buffer.put(body);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes the status line and headers of the response, followed by the
+	 * empty line that separates them from the body. The returned buffer is
+	 * only valid until the next call on this encoder.
+	 *
+	 * @param response
+	 * @return Buffer in read mode
+	 */
+	ByteBuffer encodeHead(Response response) {
+		encodeHead(response, 0);
+		buffer.flip();
+		return buffer;
+	}
+
+	private void encodeHead(Response response, int reserve) {
+		if (buffer.capacity() > MAX_POOLED_CAPACITY) {
+			buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+		}
+		buffer.clear();
+		ensureRemaining(reserve + 256);
+		put(statusLine(response));
+		Map<String, String> headers = response.getHeaders();
+		if (headers != null) {
+			for (Map.Entry<String, String> entry : headers.entrySet()) {
+				String name = entry.getKey();
+				String value = entry.getValue();
+				byte[] encodedName = HEADER_NAMES.get(name);
+				if (encodedName != null) {
+					put(encodedName);
+				} else {
+					putString(name);
+					put(SEPARATOR);
+				}
+				byte[] date = name.equals("Date") ? HttpDate.currentBytes(value) : null;
+				if (date != null) {
+					put(date);
+				} else {
+					putString(value);
+				}
+				put(CRLF);
+			}
+		}
+		put(CRLF);
+		ensureRemaining(reserve);
+	}
+
+	private static byte[] statusLine(Response response) {
+		int code = response.getStatusCode();
+		String httpVersion = response.getHttpVersion();
+		byte[][] lines = "HTTP/1.1".equals(httpVersion) ? STATUS_LINES_11
+				: "HTTP/1.0".equals(httpVersion) ? STATUS_LINES_10 : null;
+		if (lines == null || code < 0 || code >= lines.length || lines[code] == null) {
+			return (response.getStatusLine() + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		}
+		return lines[code];
+	}
+
+	private void put(byte[] bytes) {
+		ensureRemaining(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private void putString(String value) {
+		int length = value.length();
+		ensureRemaining(length);
+		byte[] array = buffer.array();
+		int position = buffer.position();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			array[position++] = c > 0xff ? (byte) '?' : (byte) c;
+		}
+		buffer.position(position);
+	}
+
+	private void ensureRemaining(int count) {
+		if (buffer.remaining() < count) {
+			int capacity = buffer.capacity();
+			while (capacity - buffer.position() < count) {
+				capacity *= 2;
+			}
+			ByteBuffer larger = ByteBuffer.allocate(capacity);
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer. Every
+ * slot carries a sequence number telling whether it may be written or read
+ * in the current lap, so producers only contend on claiming a position and
+ * never wait for each other or for the consumer.
+ *
+ * @param <E>
+ *            Type of the elements
+ */
+class RingBuffer<E> {
+
+	private final Object[] elements;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	/**
+	 * Next position to read, only accessed by the consumer.
+	 */
+	private long head;
+
+	/**
+	 * @param capacity
+	 *            Minimum number of elements the buffer holds, rounded up to a
+	 *            power of two
+	 */
+	RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		elements = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an element, unless the buffer is full. Safe to call from any
+	 * thread.
+	 *
+	 * @param element
+	 * @return {@code false} if the buffer is full
+	 */
+	boolean offer(E element) {
+		long position = tail.get();
+		while (true) {
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					elements[index] = element;
+					// publish the element to the consumer
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				// the consumer has not freed this slot yet
+				return false;
+			} else {
+				// another producer claimed the position
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest element. Must only be called by the consumer.
+	 *
+	 * @return The element, or {@code null} if the buffer is empty
+	 */
+	@SuppressWarnings("unchecked")
+	E poll() {
+		int index = (int) head & mask;
+		if (sequences.get(index) != head + 1) {
+			return null;
+		}
+		E element = (E) elements[index];
+		elements[index] = null;
+		// free the slot for the next lap
+		sequences.lazySet(index, head + elements.length);
+		head++;
+		return element;
+	}
+}
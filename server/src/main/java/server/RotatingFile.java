@@ -0,0 +1,90 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only file that is rolled over once it exceeds a size limit. The
+ * current file is {@code name}, older ones are {@code name.1} (most recent)
+ * up to {@code name.<maxFiles>}; the oldest one is deleted.
+ */
+class RotatingFile {
+
+	private final Path path;
+	private final long maxBytes;
+	private final int maxFiles;
+	private FileChannel channel;
+	private long size;
+
+	/**
+	 * @param path
+	 *            Current file
+	 * @param maxBytes
+	 *            Size after which the file is rolled over
+	 * @param maxFiles
+	 *            Number of rolled over files kept
+	 * @throws IOException
+	 */
+	RotatingFile(Path path, long maxBytes, int maxFiles) throws IOException {
+		this.path = path;
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+		Path parent = path.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		open();
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		size = channel.size();
+	}
+
+	/**
+	 * Appends the bytes, rolling the file over first if they do not fit.
+	 *
+	 * @param bytes
+	 * @throws IOException
+	 */
+	void write(byte[] bytes) throws IOException {
+		if (size > 0 && size + bytes.length > maxBytes) {
+			rotate();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			size += channel.write(buffer);
+		}
+	}
+
+	private void rotate() throws IOException {
+		channel.close();
+		Files.deleteIfExists(sibling(maxFiles));
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			if (Files.exists(sibling(i))) {
+				Files.move(sibling(i), sibling(i + 1), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		if (maxFiles > 0) {
+			Files.move(path, sibling(1), StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			Files.delete(path);
+		}
+		open();
+	}
+
+	private Path sibling(int index) {
+		return Paths.get(path.toString() + "." + index);
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,325 @@
+package server;
+
+import java.util.Properties;
+
+/**
+ * Startup options of the server. Options are passed on the command line as
+ * {@code --name=value}. An option that is not given on the command line falls
+ * back to the system property {@code server.name}, and finally to its default.
+ */
+class ServerConfig {
+
+	private final Properties options = new Properties();
+
+	/**
+	 * Parses the command line arguments of the server.
+	 *
+	 * @param args
+	 *            Arguments of the form {@code --name=value}
+	 * @return ServerConfig holding the given options
+	 */
+	static ServerConfig fromArgs(String[] args) {
+		ServerConfig config = new ServerConfig();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || !arg.contains("=")) {
+				throw new IllegalArgumentException("Options must be given as --name=value: " + arg);
+			}
+			config.options.setProperty(arg.substring(2, arg.indexOf("=")), arg.substring(arg.indexOf("=") + 1));
+		}
+		return config;
+	}
+
+	String getString(String name, String defaultValue) {
+		String value = options.getProperty(name);
+		if (value == null) {
+			value = System.getProperty("server." + name);
+		}
+		return value == null ? defaultValue : value;
+	}
+
+	int getInt(String name, int defaultValue) {
+		return Integer.parseInt(getString(name, Integer.toString(defaultValue)));
+	}
+
+	long getLong(String name, long defaultValue) {
+		return Long.parseLong(getString(name, Long.toString(defaultValue)));
+	}
+
+	double getDouble(String name, double defaultValue) {
+		return Double.parseDouble(getString(name, Double.toString(defaultValue)));
+	}
+
+	boolean getBoolean(String name, boolean defaultValue) {
+		return Boolean.parseBoolean(getString(name, Boolean.toString(defaultValue)));
+	}
+
+	/**
+	 * @return Port the server listens on
+	 */
+	int getPort() {
+		return getInt("port", 8080);
+	}
+
+	/**
+	 * @return Connection engine: "blocking" (one thread per connection) or
+	 *         "nio" (selector-based event loops)
+	 */
+	String getEngine() {
+		return getString("engine", "blocking");
+	}
+
+	/**
+	 * @return How the blocking engine runs connections: "thread" (a new
+	 *         thread per connection), "pool" (bounded thread pool) or
+	 *         "virtual" (a virtual thread per connection, JDK 21+)
+	 */
+	String getDispatcher() {
+		return getString("dispatcher", "pool");
+	}
+
+	/**
+	 * @return Number of threads of the "pool" dispatcher
+	 */
+	int getWorkers() {
+		return getInt("workers", 200);
+	}
+
+	/**
+	 * @return Number of connections waiting for a thread of the "pool"
+	 *         dispatcher before new connections are rejected
+	 */
+	int getQueueSize() {
+		return getInt("queue", 1000);
+	}
+
+	/**
+	 * @return Maximum number of pending connections not yet accepted
+	 */
+	int getBacklog() {
+		return getInt("backlog", 50);
+	}
+
+	/**
+	 * @return Whether Nagle's algorithm is disabled on client connections
+	 *         (TCP_NODELAY), so small responses are sent without delay
+	 */
+	boolean getTcpNoDelay() {
+		return getBoolean("tcpNoDelay", true);
+	}
+
+	/**
+	 * @return Size in bytes of the socket send buffer (SO_SNDBUF) of client
+	 *         connections, 0 keeps the default of the operating system
+	 */
+	int getSendBuffer() {
+		return getInt("sendBuffer", 0);
+	}
+
+	/**
+	 * @return Size in bytes of the socket receive buffer (SO_RCVBUF) of client
+	 *         connections, 0 keeps the default of the operating system
+	 */
+	int getReceiveBuffer() {
+		return getInt("receiveBuffer", 0);
+	}
+
+	/**
+	 * @return Memory budget in bytes of the file cache, 0 disables the cache
+	 */
+	long getCacheBytes() {
+		return getLong("cacheBytes", 64L * 1024 * 1024);
+	}
+
+	/**
+	 * @return Size in bytes up to which the content of a file is cached
+	 */
+	long getCacheMaxFileBytes() {
+		return getLong("cacheMaxFileBytes", 1024 * 1024);
+	}
+
+	/**
+	 * @return Eviction policy of the file cache: "lru" or "tinylfu"
+	 */
+	String getCachePolicy() {
+		return getString("cachePolicy", "tinylfu");
+	}
+
+	/**
+	 * @return Whether files whose content is not cached are served from
+	 *         memory-mapped buffers, for directories whose files are never
+	 *         modified in place
+	 */
+	boolean getMmap() {
+		return getBoolean("mmap", false);
+	}
+
+	/**
+	 * @return Total size in bytes of the files mapped at the same time
+	 */
+	long getMmapBytes() {
+		return getLong("mmapBytes", 1024L * 1024 * 1024);
+	}
+
+	/**
+	 * @return Size in bytes up to which a file is mapped
+	 */
+	long getMmapMaxFileBytes() {
+		return getLong("mmapMaxFileBytes", 64L * 1024 * 1024);
+	}
+
+	/**
+	 * @return Whether responses are compressed for clients that accept it
+	 */
+	boolean getCompression() {
+		return getBoolean("compression", true);
+	}
+
+	/**
+	 * @return Total size in bytes of the compressed variants of files kept
+	 *         in memory
+	 */
+	long getCompressionCacheBytes() {
+		return getLong("compressionCacheBytes", 16L * 1024 * 1024);
+	}
+
+	/**
+	 * @return Size in bytes below which files are not compressed on the fly
+	 */
+	long getCompressionMinBytes() {
+		return getLong("compressionMinBytes", 256);
+	}
+
+	/**
+	 * @return Size in bytes above which files are not compressed in memory
+	 */
+	long getCompressionMaxBytes() {
+		return getLong("compressionMaxBytes", 1024 * 1024);
+	}
+
+	/**
+	 * @return Whether files above the maximum size are compressed while they
+	 *         are sent, giving up sendfile and ranges for them
+	 */
+	boolean getCompressionStream() {
+		return getBoolean("compressionStream", false);
+	}
+
+	/**
+	 * @return Level of on the fly compression, 1 (fast) to 9 (small)
+	 */
+	int getCompressionLevel() {
+		return getInt("compressionLevel", 6);
+	}
+
+	/**
+	 * @return Size in bytes of the chunks of streaming response bodies
+	 */
+	int getChunkSize() {
+		return getInt("chunkSize", 16384);
+	}
+
+	/**
+	 * @return Number of event loop threads used by the "nio" engine
+	 */
+	int getEventLoops() {
+		return getInt("eventLoops", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return Number of threads of the "nio" engine that handle requests and
+	 *         receive request bodies, off the event loops
+	 */
+	int getHandlers() {
+		return getInt("handlers", 64);
+	}
+
+	/**
+	 * @return Number of requests waiting for a handler thread before further
+	 *         ones are answered with "503 Service Unavailable"
+	 */
+	int getHandlerQueue() {
+		return getInt("handlerQueue", 1024);
+	}
+
+	/**
+	 * @return Number of threads of the "nio" engine that generate streaming
+	 *         response bodies
+	 */
+	int getProducers() {
+		return getInt("producers", 32);
+	}
+
+	/**
+	 * @return Number of streaming bodies waiting for a producer thread before
+	 *         further ones are answered with "503 Service Unavailable"
+	 */
+	int getProducerQueue() {
+		return getInt("producerQueue", 256);
+	}
+
+	/**
+	 * @return Time in milliseconds an idle keep-alive connection is kept open
+	 */
+	int getIdleTimeout() {
+		return getInt("idleTimeout", 10000);
+	}
+
+	/**
+	 * @return Directory of the access and server logs
+	 */
+	String getLogDirectory() {
+		return getString("logDir", "logs");
+	}
+
+	/**
+	 * @return Lowest level of messages written to the server log: "debug",
+	 *         "info", "warn", "error" or "off"
+	 */
+	String getLogLevel() {
+		return getString("logLevel", "info");
+	}
+
+	/**
+	 * @return Format of the access log: "common", "combined" or "json"
+	 */
+	String getLogFormat() {
+		return getString("logFormat", "common");
+	}
+
+	/**
+	 * @return Fraction of successful requests written to the access log,
+	 *         errors are always logged
+	 */
+	double getLogSampling() {
+		return getDouble("logSampling", 1.0);
+	}
+
+	/**
+	 * @return Number of log records buffered before new ones are dropped
+	 */
+	int getLogBuffer() {
+		return getInt("logBuffer", 8192);
+	}
+
+	/**
+	 * @return Size in bytes after which a log file is rolled over
+	 */
+	long getLogMaxBytes() {
+		return getLong("logMaxBytes", 10L * 1024 * 1024);
+	}
+
+	/**
+	 * @return Number of rolled over files kept per log
+	 */
+	int getLogFiles() {
+		return getInt("logFiles", 5);
+	}
+
+	/**
+	 * @return Interval in seconds at which the metrics are appended to
+	 *         metrics.log in the log directory, 0 disables the dump
+	 */
+	int getMetricsInterval() {
+		return getInt("metricsInterval", 60);
+	}
+}
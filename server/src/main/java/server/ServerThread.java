@@ -1,61 +1,94 @@
 package server;
 
 import server.exceptions.BadRequestException;
-import server.exceptions.FileNotFoundException;
 import server.exceptions.InternalServerException;
 import server.exceptions.ServerException;
+import util.BufferPool;
+import util.HttpInputStream;
+import util.HttpParser;
+import util.MalformedMessageException;
 import util.Method;
+import util.PooledOutputStream;
 
-import java.io.BufferedInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
 import static util.IO.*;
 
-public class ServerThread implements Runnable {
+/**
+ * Serves one client connection on a dedicated thread, using blocking socket
+ * I/O.
+ */
+public class ServerThread extends RequestHandler implements Runnable {
+
+	/**
+	 * Size of the buffers of the socket streams, borrowed from
+	 * {@link BufferPool#heap()} for the lifetime of the connection.
+	 */
+	private static final int STREAM_BUFFER_BYTES = 8192;
 
 	private Socket socket;
-	private DataOutputStream outToClient;
-	private BufferedInputStream inFromClient;
+	private PooledOutputStream outToClient;
+	/**
+	 * Channel writing to {@link #outToClient}, for sockets that were not
+	 * accepted through a channel.
+	 */
+	private WritableByteChannel streamChannel;
+	private final ByteBuffer[] gather = new ByteBuffer[2];
+	private HttpInputStream inFromClient;
+	private final HttpParser parser = new HttpParser();
 	private boolean closed;
+	private final long accepted = System.nanoTime();
 
 	ServerThread(Socket socket) throws IOException {
-		System.out.println("SERVERTHREAD - Connected");
+		Log.debug("Connection opened");
 		this.socket = socket;
 
-		outToClient = new DataOutputStream(socket.getOutputStream());
-		inFromClient = new BufferedInputStream(socket.getInputStream());
+		outToClient = new PooledOutputStream(socket.getOutputStream(), BufferPool.heap(), STREAM_BUFFER_BYTES);
+		inFromClient = new HttpInputStream(new MeteredInputStream(socket.getInputStream()), BufferPool.heap(),
+				STREAM_BUFFER_BYTES);
 	}
 
 	@Override
 	public void run() {
+		Metrics metrics = Metrics.get();
+		metrics.connectionOpened();
 		try {
-			socket.setSoTimeout(10000);
+			socket.setSoTimeout(Main.getConfig().getIdleTimeout());
 			Request request = null;
+			int served = 0;
 			while (!closed) {
 				try {
+					// Wait for the first byte of the next request
+					if (!awaitRequest()) {
+						closed = true;
+						break;
+					}
+					long received = System.nanoTime();
+					if (served == 0) {
+						metrics.firstByte(received - accepted);
+					}
 					// Read request
 					request = readRequest();
-				} catch (SocketTimeoutException | SocketException e) {
-					// Close connection when timed out
+					metrics.parsed(System.nanoTime() - received);
+				} catch (SocketTimeoutException | SocketException | EOFException e) {
+					// Close connection when timed out or closed by the client
 					closed = true;
 					break;
 				} catch (ServerException e) {
-					// catch ServerException and send error page
-					String body = e.getHtmlBody();
-					HashMap<String, String> headers = new HashMap<>();
-					headers.put("Content-Type", "text/html");
-					send(new Response(e.getStatusCode(), headers, body.getBytes(), request.getHttpVersion()));
+					// catch ServerException and send error page, the rest of
+					// the input cannot be interpreted anymore
+					send(errorResponse(e, request == null ? "HTTP/1.1" : request.getHttpVersion()));
+					closed = true;
+					break;
 				}
 
 				if (request == null) {
@@ -64,55 +97,116 @@ public class ServerThread implements Runnable {
 					break;
 				}
 
-				// Print request to standard output
-				System.out.println(request.toString());
+				if (Log.isEnabled(Log.Level.DEBUG)) {
+					Log.debug(request.toString());
+				}
 				// Handle request and send response back to client
+				long start = System.nanoTime();
+				Response response;
 				try {
-					Response response = handle(request);
-					send(response);
+					response = handle(request);
 				} catch (ServerException e) {
-					HashMap<String, String> headers = new HashMap<>();
-					headers.put("Content-Type", "text/html");
-					send(new Response(e.getStatusCode(), headers, e.getHtmlBody().getBytes(),
-							request.getHttpVersion()));
+					response = errorResponse(e, request.getHttpVersion());
 				}
+				long handled = System.nanoTime();
+				metrics.handled(handled - start);
+				long bytes = send(response);
+				metrics.sent(response, bytes, System.nanoTime() - handled, served++ > 0);
+				Log.access(socket.getInetAddress(), request, response, start);
 				// Check if this is the last request from the client
-				if ((request.getHeaders().containsKey("Connection")
-						&& request.getHeaders().get("Connection").equals("Close"))
-						|| request.getHttpVersion().equals("HTTP/1.0")) {
+				if (isLastRequest(request) || isLastResponse(response)) {
 					// set closed to true to break the while loop
 					closed = true;
 				}
 			}
 
 			// close connection
-			socket.close();
-			outToClient.close();
-			inFromClient.close();
-			System.out.println("SERVERTHREAD - Connection closed");
+			closeConnection();
+			Log.debug("Connection closed");
 		} catch (IOException | NullPointerException e) {
 			try {
-				socket.close();
-				outToClient.close();
-				inFromClient.close();
+				closeConnection();
 			} catch (Exception e1) {
 				e1.printStackTrace();
 			}
+		} finally {
+			metrics.connectionClosed();
 		}
 
 	}
 
-	private Request readRequest() throws ServerException, SocketTimeoutException, SocketException {
+	/**
+	 * Blocks until the client sends the next request.
+	 *
+	 * @return {@code false} if the client closed the connection instead
+	 * @throws IOException
+	 */
+	private boolean awaitRequest() throws IOException {
+		inFromClient.mark(1);
+		if (inFromClient.read() == -1) {
+			return false;
+		}
+		inFromClient.reset();
+		return true;
+	}
+
+	/**
+	 * Answers the connection with an error page and closes it, without
+	 * reading any request.
+	 *
+	 * @param e
+	 *            Reason for rejecting the connection
+	 */
+	void reject(ServerException e) {
+		Metrics.get().connectionRejected();
+		try {
+			Response response = errorResponse(e, "HTTP/1.1");
+			response.getHeaders().put("Connection", "close");
+			send(response);
+		} catch (IOException ignored) {
+		} finally {
+			try {
+				closeConnection();
+			} catch (IOException e1) {
+				e1.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Closes the socket and its streams, giving the buffers of the streams
+	 * back to the pool even if closing fails.
+	 *
+	 * @throws IOException
+	 */
+	private void closeConnection() throws IOException {
+		try {
+			socket.close();
+		} finally {
+			try {
+				outToClient.close();
+			} finally {
+				inFromClient.close();
+			}
+		}
+	}
+
+	private Request readRequest() throws ServerException, IOException {
 		Request request;
 
-		String firstLine = readLine(inFromClient);
-		if (Arrays.stream(Method.values()).noneMatch(e -> e.getName().equals(firstLine.split(" ")[0]))) {
+		parser.reset(HttpParser.Mode.REQUEST);
+		try {
+			readHead(inFromClient, parser);
+		} catch (MalformedMessageException e) {
+			throw new BadRequestException();
+		}
+		if (parser.getMethod() == null) {
 			// HTTP util.Method not supported
 			throw new BadRequestException();
 		}
-		Method method = Method.valueOf(firstLine.split(" ")[0]);
-		String file = firstLine.split(" ")[1];
-		String httpVersion = firstLine.split(" ")[2];
+		Method method = parser.getMethod();
+		String file = parser.getTarget();
+		String httpVersion = parser.getHttpVersion();
 
 		if (httpVersion.equals("HTTP/1.1")) {
 			try {
@@ -123,131 +217,118 @@ public class ServerThread implements Runnable {
 			}
 		}
 
-		HashMap<String, String> headers = readHeaders(inFromClient);
+		HashMap<String, String> headers = parser.getHeaders();
 
 		if (method == Method.POST || method == Method.PUT) {
-			// Read message
-			byte[] body = readMessage(inFromClient, headers);
-			// Read (optional) footers
-			if (headers.containsKey("Transfer-Encoding") && "chunked".equals(headers.get("Transfer-Encoding"))) {
-				HashMap<String, String> footers = readHeaders(inFromClient);
-				headers.putAll(footers);
-			}
-			request = new Request(method, file, httpVersion, headers, body);
-		} else {
-			request = new Request(method, file, httpVersion, headers);
-		}
-		return request;
-	}
-
-	Response handle(Request request) throws ServerException {
-		String httpVersion = request.getHttpVersion();
-		byte[] message;
-		Response response;
-		HashMap<String, String> headers = new HashMap<>();
-
-		if (request.getHeaders().containsKey("Connection") && request.getHeaders().get("Connection").equals("close")) {
-			headers.put("Connection", "close");
-		}
-
-		if (request.getMethod() == Method.GET || request.getMethod() == Method.HEAD) {
-			// read file
-			Path path;
-			if (request.getFile().endsWith("/")) {
-				path = Paths.get(Main.getPath() + request.getFile() + "index.html");
-			} else {
-				path = Paths.get(Main.getPath() + request.getFile());
+			// Stream message to the uploads directory
+			Upload upload;
+			try {
+				upload = Upload.create(method);
+			} catch (IOException e) {
+				throw new InternalServerException();
 			}
-
-			if (Files.exists(path) && Files.isRegularFile(path)) {
-				try {
-					headers.put("Content-Type", Files.probeContentType(path));
-					// Check if page is modified since time given in header
-					// (if given)
-					String since = request.getHeaders().get("If-Modified-Since");
-					if (since == null || fileIsModified(path, since)) {
-						// Page was modified since time given in header, or
-						// no If-Modified-Since in header
-						if (request.getMethod() == Method.HEAD) {
-							headers.put("Content-Length", Long.toString(Files.size(path)));
-							response = new Response(200, headers, httpVersion);
-						} else {
-							message = Files.readAllBytes(path);
-							response = new Response(200, headers, message, httpVersion);
-						}
-					} else {
-						// File wasn't modified
-						headers.put("Content-Length", Long.toString(Files.size(path)));
-						response = new Response(304, headers, httpVersion);
-					}
-				} catch (IOException e) {
-					throw new InternalServerException();
+			try {
+				transferMessage(inFromClient, headers, upload);
+				// Read (optional) footers
+				if (headers.containsKey("Transfer-Encoding") && "chunked".equals(headers.get("Transfer-Encoding"))) {
+					HashMap<String, String> footers = readHeaders(inFromClient);
+					headers.putAll(footers);
 				}
-			} else {
-				throw new FileNotFoundException();
+				upload.close();
+			} catch (MalformedMessageException e) {
+				upload.abort();
+				throw new BadRequestException();
+			} catch (IOException e) {
+				upload.abort();
+				throw e;
+			}
+			try {
+				request = new Request(method, file, httpVersion, headers, upload);
+			} catch (BadRequestException e) {
+				upload.abort();
+				throw e;
 			}
 		} else {
-			// Save message on PUT or POST
-			String json = request.saveMessage();
-			// Construct response
-			headers.put("Content-Type", "application/json");
-			response = new Response(200, headers, json.getBytes(), httpVersion);
+			request = new Request(method, file, httpVersion, headers);
 		}
-		// success
-		return response;
+		return request;
 	}
 
 	/**
-	 * Checks if the given file has been modified since the given date.
+	 * Writes the response to the client. The file of a file body is closed
+	 * afterwards, also if the client went away in the middle of it.
 	 *
-	 * @param path
-	 *            The file to check modification date for.
-	 * @param since
-	 *            The time to compare against.
-	 * @return {@code true} if modified since, {@code false} otherwise.
-	 * @throws BadRequestException
+	 * @param response
+	 * @return Number of bytes written
+	 * @throws IOException
 	 */
-	boolean fileIsModified(Path path, String since) throws BadRequestException {
-		System.out.println("Since " + since);
-		// 3 possible formats
-		// rfc1123
-		DateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
-		Date sinceDate;
+	long send(Response response) throws IOException {
 		try {
-			sinceDate = df.parse(since);
-		} catch (ParseException e) {
-			try {
-				// rfc850
-				df = new SimpleDateFormat("EEEEEEEEE, dd-MMM-yy HH:mm:ss zzz", Locale.ENGLISH);
-				sinceDate = df.parse(since);
-			} catch (ParseException e1) {
-				try {
-					// asctime with one day character
-					df = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy", Locale.ENGLISH);
-					sinceDate = df.parse(since);
-				} catch (ParseException e2) {
-					throw new BadRequestException();
-				}
+			return write(response);
+		} finally {
+			if (response.getFileBody() != null) {
+				response.getFileBody().close();
 			}
 		}
-		Date lastModified = new Date(path.toFile().lastModified());
-		return lastModified.after(sinceDate);
 	}
 
-	private void send(Response response) throws IOException {
-		// Write status line
-		outToClient.writeBytes(response.getStatusLine() + "\r\n");
-		// Write headers
-		if (response.getHeaders() != null) {
-			for (Map.Entry<String, String> entry : response.getHeaders().entrySet()) {
-				outToClient.writeBytes(entry.getKey() + ": " + entry.getValue() + "\r\n");
+	private long write(Response response) throws IOException {
+		// Status line, headers, newline and an in-memory body in one buffer
+		ByteBuffer head = ResponseEncoder.get().encode(response);
+		ByteBuffer body = response.getBufferBody();
+		long bytes = head.remaining();
+		if (response.getStreamingBody() != null) {
+			// Body generated while it is sent, in chunks through the buffered
+			// stream
+			outToClient.write(head.array(), head.arrayOffset() + head.position(), head.remaining());
+			bytes += writeStreamingBody(response, outToClient, Main.getConfig().getChunkSize());
+			outToClient.flush();
+			return bytes;
+		}
+		SocketChannel channel = socket.getChannel();
+		if (channel == null) {
+			// Socket without channel, write through the buffered stream
+			outToClient.write(head.array(), head.arrayOffset() + head.position(), head.remaining());
+			if (response.getFileBody() != null || body != null) {
+				if (streamChannel == null) {
+					streamChannel = Channels.newChannel(outToClient);
+				}
+				bytes += write(response.getFileBody(), body, streamChannel);
 			}
+			outToClient.flush();
+			return bytes;
+		}
+		if (body != null) {
+			// Head and body in one gathering write
+			bytes += body.remaining();
+			gather[0] = head;
+			gather[1] = body;
+			while (body.hasRemaining()) {
+				channel.write(gather);
+			}
+			gather[0] = null;
+			gather[1] = null;
+			return bytes;
+		}
+		while (head.hasRemaining()) {
+			channel.write(head);
 		}
-		// Write newline
-		outToClient.writeBytes("\r\n");
-		// Write body
-		if (response.getBody() != null) {
-			outToClient.write(response.getBody());
+		// Sockets accepted through a channel support sendfile
+		return bytes + write(response.getFileBody(), null, channel);
+	}
+
+	private static long write(FileRegion file, ByteBuffer body, WritableByteChannel channel) throws IOException {
+		if (file != null) {
+			file.transferTo(channel);
+			return file.getCount();
+		}
+		long count = 0;
+		if (body != null) {
+			count = body.remaining();
+			while (body.hasRemaining()) {
+				channel.write(body);
+			}
 		}
+		return count;
 	}
 }
@@ -0,0 +1,26 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Body of a response that is generated while it is sent, for bodies that are
+ * too large to be held in memory or whose size is not known in advance. The
+ * bytes reach the client as soon as a chunk is full, in the chunked
+ * transfer-coding.
+ */
+interface StreamingBody {
+
+	/**
+	 * Writes the body. The stream buffers at most one chunk; a write blocks
+	 * while the client does not accept more bytes.
+	 *
+	 * @param out
+	 *            Stream to write the body to, closing it is optional
+	 * @throws IOException
+	 *             If the body cannot be generated or the connection was
+	 *             closed, the connection is closed without completing the
+	 *             response
+	 */
+	void writeTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,131 @@
+package server;
+
+import util.Method;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+/**
+ * Body of a PUT or POST request, written to the uploads directory while it
+ * is received. Size and SHA-256 digest are computed on the fly, so the body
+ * never has to be held in memory.
+ */
+class Upload extends OutputStream {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Path directory;
+	private final Path path;
+	private final OutputStream out;
+	private final MessageDigest digest;
+	private long size;
+	private String hexDigest;
+
+	private Upload(Path directory, Method method) throws IOException {
+		this.directory = directory;
+		this.path = directory.resolve(method.getName() + ".body");
+		try {
+			this.digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		this.out = new BufferedOutputStream(Files.newOutputStream(path));
+	}
+
+	/**
+	 * Creates the file for the body of a new request in a directory of its
+	 * own under "uploads/".
+	 *
+	 * @param method
+	 *            Method of the request
+	 * @return Upload to write the body to
+	 * @throws IOException
+	 */
+	static Upload create(Method method) throws IOException {
+		Files.createDirectories(Paths.get("uploads"));
+		long time = new Date().getTime();
+		while (true) {
+			Path directory = Paths.get("uploads", Long.toString(time));
+			try {
+				Files.createDirectory(directory);
+				return new Upload(directory, method);
+			} catch (FileAlreadyExistsException e) {
+				// another request arrived in the same millisecond
+				time++;
+			}
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		digest.update((byte) b);
+		size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		digest.update(b, off, len);
+		size += len;
+	}
+
+	/**
+	 * Completes the file. The digest is available afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (hexDigest == null) {
+			out.close();
+			byte[] bytes = digest.digest();
+			char[] hex = new char[bytes.length * 2];
+			for (int i = 0; i < bytes.length; i++) {
+				hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+				hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+			}
+			hexDigest = new String(hex);
+		}
+	}
+
+	/**
+	 * Deletes the file of an upload that was not received completely, and
+	 * its directory.
+	 */
+	void abort() {
+		try {
+			out.close();
+			Files.deleteIfExists(path);
+			Files.deleteIfExists(directory);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	Path getDirectory() {
+		return directory;
+	}
+
+	Path getPath() {
+		return path;
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return Hexadecimal SHA-256 digest of the body, or {@code null} if the
+	 *         upload is not closed yet
+	 */
+	String getDigest() {
+		return hexDigest;
+	}
+}
@@ -0,0 +1,32 @@
+package server.exceptions;
+
+public class RangeNotSatisfiableException extends ServerException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 6187215473618040563L;
+
+	private final long size;
+
+	/**
+	 * @param size
+	 *            Size of the representation none of the requested ranges
+	 *            overlaps
+	 */
+	public RangeNotSatisfiableException(long size) {
+		this.size = size;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public String getHtmlBody() {
+		return "<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"utf-8\"><title>416 - Range Not Satisfiable</title></head><body><h1>416 - Range Not Satisfiable</h1><p>None of the requested ranges lies within the file.</p></body></html>";
+	}
+
+	public int getStatusCode() {
+		return 416;
+	}
+}
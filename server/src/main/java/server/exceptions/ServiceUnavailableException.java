@@ -0,0 +1,17 @@
+package server.exceptions;
+
+public class ServiceUnavailableException extends ServerException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2405398736021459186L;
+
+	public String getHtmlBody() {
+		return "<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"utf-8\"><title>503 - Service Unavailable</title></head><body><h1>503 - Service Unavailable</h1><p>The server is too busy to handle your request. Please try again later.</p></body></html>";
+	}
+
+	public int getStatusCode() {
+		return 503;
+	}
+}
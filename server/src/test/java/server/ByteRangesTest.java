@@ -0,0 +1,198 @@
+package server;
+
+import org.junit.Test;
+import server.exceptions.RangeNotSatisfiableException;
+import server.exceptions.ServerException;
+import util.Method;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class ByteRangesTest {
+
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    /**
+     * Directory served by {@link #get(String...)}.
+     */
+    private static Path directory;
+
+    @Test
+    public void testParse() {
+        ByteRanges ranges = ByteRanges.parse("bytes=0-4, 10-14", 100);
+        assertEquals(2, ranges.count());
+        assertEquals(0, ranges.getStart(0));
+        assertEquals(5, ranges.getLength(0));
+        assertEquals("bytes 10-14/100", ranges.getContentRange(1));
+
+        // the end is limited to the size
+        ranges = ByteRanges.parse("BYTES=90-200", 100);
+        assertEquals(1, ranges.count());
+        assertEquals("bytes 90-99/100", ranges.getContentRange(0));
+    }
+
+    @Test
+    public void testInvalidHeadersAreIgnored() {
+        assertNull(ByteRanges.parse("items=0-4", 100));
+        assertNull(ByteRanges.parse("bytes=4-0", 100));
+        assertNull(ByteRanges.parse("bytes=a-4", 100));
+        assertNull(ByteRanges.parse("bytes=-", 100));
+        assertNull(ByteRanges.parse("bytes=+1-4", 100));
+        assertNull(ByteRanges.parse("bytes=5", 100));
+        assertNull(ByteRanges.parse("bytes=", 100));
+        assertNull(ByteRanges.parse("bytes= , ", 100));
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRanges.MAX_RANGES; i++) {
+            many.append(',').append(2 * i).append('-').append(2 * i);
+        }
+        assertNull(ByteRanges.parse(many.toString(), 1000));
+    }
+
+    @Test
+    public void testCoalescing() {
+        // overlapping, touching and out of order ranges
+        ByteRanges ranges = ByteRanges.parse("bytes=50-59, 0-9, 5-14, 15-19, 60-60", 100);
+        assertEquals(2, ranges.count());
+        assertEquals("bytes 0-19/100", ranges.getContentRange(0));
+        assertEquals("bytes 50-60/100", ranges.getContentRange(1));
+
+        ranges = ByteRanges.parse("bytes=0-, 0-, 0-", 100);
+        assertEquals(1, ranges.count());
+        assertEquals(100, ranges.getLength(0));
+    }
+
+    @Test
+    public void testSuffixAndOpenRanges() {
+        ByteRanges ranges = ByteRanges.parse("bytes=-10", 100);
+        assertEquals("bytes 90-99/100", ranges.getContentRange(0));
+        ranges = ByteRanges.parse("bytes=-500", 100);
+        assertEquals("bytes 0-99/100", ranges.getContentRange(0));
+        ranges = ByteRanges.parse("bytes=95-", 100);
+        assertEquals("bytes 95-99/100", ranges.getContentRange(0));
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        assertEquals(0, ByteRanges.parse("bytes=100-", 100).count());
+        assertEquals(0, ByteRanges.parse("bytes=-0", 100).count());
+        assertEquals(0, ByteRanges.parse("bytes=-10", 0).count());
+        // the satisfiable ones of several ranges are kept
+        assertEquals(1, ByteRanges.parse("bytes=200-300, 0-0", 100).count());
+    }
+
+    @Test
+    public void testIfRange() {
+        String etag = "\"10-1a149e59714\"";
+        long lastModified = 784111777000L;
+        assertTrue(RequestHandler.ifRangeMatches(null, etag, lastModified));
+        assertTrue(RequestHandler.ifRangeMatches(etag, etag, lastModified));
+        assertFalse(RequestHandler.ifRangeMatches("\"other\"", etag, lastModified));
+        // weak tags never match
+        assertFalse(RequestHandler.ifRangeMatches("W/" + etag, etag, lastModified));
+        assertTrue(RequestHandler.ifRangeMatches("Sun, 06 Nov 1994 08:49:37 GMT", etag, lastModified + 500));
+        assertFalse(RequestHandler.ifRangeMatches("Sun, 06 Nov 1994 08:49:36 GMT", etag, lastModified));
+        assertFalse(RequestHandler.ifRangeMatches("yesterday", etag, lastModified));
+    }
+
+    @Test
+    public void testMultipartBody() throws IOException {
+        ByteRanges ranges = ByteRanges.parse("bytes=0-2, -3", CONTENT.length());
+        ByteBuffer content = ByteBuffer.wrap(CONTENT.getBytes(StandardCharsets.ISO_8859_1));
+        String expected = "\r\n--b\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-2/36\r\n\r\n012"
+                + "\r\n--b\r\nContent-Type: text/plain\r\nContent-Range: bytes 33-35/36\r\n\r\nxyz"
+                + "\r\n--b--\r\n";
+        assertEquals(expected.length(), ranges.getMultipartLength("b", "text/plain"));
+        assertEquals(expected, string(ranges.toMultipart("b", "text/plain", content, null)));
+
+        // the same parts read from the file
+        Path file = Files.createTempFile("ranges", ".txt");
+        try {
+            Files.write(file, CONTENT.getBytes(StandardCharsets.ISO_8859_1));
+            assertEquals(expected, string(ranges.toMultipart("b", "text/plain", null, file)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String body(Response response) throws IOException {
+        if (response.getBufferBody() != null) {
+            return string(response.getBufferBody());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getFileBody().transferTo(Channels.newChannel(out));
+        response.getFileBody().close();
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Requests a file of {@link #CONTENT} with the given headers.
+     */
+    private static Response get(String... headerLines) throws ServerException, IOException {
+        if (directory == null) {
+            // file bodies are opened when they are sent, so the file is kept
+            directory = Files.createTempDirectory("ranges");
+            directory.toFile().deleteOnExit();
+            Path file = directory.resolve("file.txt");
+            Files.write(file, CONTENT.getBytes(StandardCharsets.ISO_8859_1));
+            file.toFile().deleteOnExit();
+        }
+        String path = Main.path;
+        Main.path = directory.toString();
+        try {
+            HashMap<String, String> headers = new HashMap<>();
+            headers.put("Host", "localhost");
+            for (int i = 0; i < headerLines.length; i += 2) {
+                headers.put(headerLines[i], headerLines[i + 1]);
+            }
+            return new RequestHandler().handle(new Request(Method.GET, "/file.txt", "HTTP/1.1", headers));
+        } finally {
+            Main.path = path;
+        }
+    }
+
+    @Test
+    public void testPartialResponses() throws ServerException, IOException {
+        Response response = get("Range", "bytes=10-12");
+        assertEquals(206, response.getStatusCode());
+        assertEquals("bytes 10-12/36", response.getHeaders().get("Content-Range"));
+        assertEquals("abc", body(response));
+
+        response = get("Range", "bytes=0-0,-1");
+        assertEquals(206, response.getStatusCode());
+        assertTrue(response.getHeaders().get("Content-Type").startsWith("multipart/byteranges; boundary="));
+        assertTrue(body(response).contains("Content-Range: bytes 35-35/36\r\n\r\nz\r\n"));
+
+        // invalid, empty or outdated ranges are ignored
+        for (String[] headers : new String[][] { { "Range", "bytes=" }, { "Range", "bytes=1-0" },
+                { "Range", "bytes=0-0", "If-Range", "\"outdated\"" } }) {
+            response = get(headers);
+            assertEquals(200, response.getStatusCode());
+            assertEquals(CONTENT, body(response));
+        }
+    }
+
+    @Test
+    public void testRangeNotSatisfiable() throws ServerException, IOException {
+        try {
+            get("Range", "bytes=36-");
+            fail("range beyond the file accepted");
+        } catch (RangeNotSatisfiableException e) {
+            assertEquals(416, e.getStatusCode());
+            assertEquals(36, e.getSize());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class EventLoopTest {
+
+    private static final int IDLE_TIMEOUT = 500;
+
+    /**
+     * Starts a loop with the idle timeout and connects a client to it.
+     */
+    private static Socket connect(int receiveBuffer) throws IOException {
+        EventLoop loop = new EventLoop(IDLE_TIMEOUT, EventLoopServer.boundedPool("test-handler-", 1, 4),
+                EventLoopServer.boundedPool("test-producer-", 1, 4));
+        Thread thread = new Thread(loop, "test-event-loop");
+        thread.setDaemon(true);
+        thread.start();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Socket client = new Socket();
+            if (receiveBuffer > 0) {
+                client.setReceiveBufferSize(receiveBuffer);
+            }
+            client.connect(server.getLocalAddress());
+            loop.register(server.accept());
+            client.setSoTimeout(5000);
+            return client;
+        }
+    }
+
+    /**
+     * Reads until the server closes the connection.
+     *
+     * @return Number of bytes read
+     */
+    private static long readAll(InputStream in) {
+        byte[] buffer = new byte[65536];
+        long total = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        } catch (IOException e) {
+            // reset by the server
+        }
+        return total;
+    }
+
+    @Test
+    public void testIdleConnectionIsClosed() throws IOException {
+        try (Socket client = connect(0)) {
+            long start = System.currentTimeMillis();
+            assertEquals(-1, client.getInputStream().read());
+            assertTrue(System.currentTimeMillis() - start >= IDLE_TIMEOUT);
+        }
+    }
+
+    @Test
+    public void testActiveConnectionIsKeptOpen() throws IOException, InterruptedException {
+        try (Socket client = connect(0)) {
+            OutputStream out = client.getOutputStream();
+            InputStream in = client.getInputStream();
+            byte[] buffer = new byte[65536];
+            for (int i = 0; i < 10; i++) {
+                out.write(("GET " + Metrics.PATH + " HTTP/1.1\r\nHost: x\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                assertTrue(in.read(buffer) > 0);
+                Thread.sleep(IDLE_TIMEOUT / 2);
+            }
+        }
+    }
+
+    @Test
+    public void testClientThatStopsReadingIsClosed() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("event-loop");
+        Path file = directory.resolve("large.bin");
+        // more than the socket buffers hold
+        long size = 64 << 20;
+        Files.write(file, new byte[(int) size]);
+        String path = Main.path;
+        Main.path = directory.toString();
+        try (Socket client = connect(16384)) {
+            client.getOutputStream().write("GET /large.bin HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            Thread.sleep(IDLE_TIMEOUT + 2500);
+            assertTrue(readAll(client.getInputStream()) < size);
+        } finally {
+            Main.path = path;
+            Files.delete(file);
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class FileCacheTest {
+
+    /**
+     * Creates a directory with the files a, b and c of 100 bytes and d of
+     * 300 bytes.
+     */
+    private static Path createFiles() throws IOException {
+        Path directory = Files.createTempDirectory("file-cache");
+        for (String name : new String[] { "a", "b", "c" }) {
+            Files.write(directory.resolve(name), new byte[100]);
+        }
+        Files.write(directory.resolve("d"), new byte[300]);
+        return directory;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        for (String name : new String[] { "a", "b", "c", "d" }) {
+            Files.deleteIfExists(directory.resolve(name));
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * @return Memory used by the entry of a file of 100 bytes
+     */
+    private static long weight(Path directory) throws IOException {
+        FileCache cache = new FileCache(1 << 20, 1 << 20, "lru");
+        cache.get(directory.resolve("a"));
+        return cache.getUsedBytes();
+    }
+
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() throws IOException {
+        Path directory = createFiles();
+        try {
+            long weight = weight(directory);
+            FileCache cache = new FileCache(3 * weight, 1 << 20, "lru");
+            cache.get(directory.resolve("a"));
+            cache.get(directory.resolve("b"));
+            cache.get(directory.resolve("c"));
+            cache.get(directory.resolve("a"));
+            assertNotNull(cache.get(directory.resolve("d")));
+            // d takes the place of two small files, b and c were used least recently
+            assertTrue(cache.contains(directory.resolve("a")));
+            assertFalse(cache.contains(directory.resolve("b")));
+            assertFalse(cache.contains(directory.resolve("c")));
+            assertTrue(cache.contains(directory.resolve("d")));
+            assertTrue(cache.getUsedBytes() <= 3 * weight);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testTinyLfuRejectsWithoutEvicting() throws IOException {
+        Path directory = createFiles();
+        try {
+            long weight = weight(directory);
+            FileCache cache = new FileCache(3 * weight, 1 << 20, "tinylfu");
+            cache.get(directory.resolve("a"));
+            for (int i = 0; i < 5; i++) {
+                cache.get(directory.resolve("b"));
+                cache.get(directory.resolve("c"));
+            }
+            // d would evict a and b: more popular than a, but not than b
+            cache.get(directory.resolve("d"));
+            cache.get(directory.resolve("d"));
+            assertFalse(cache.contains(directory.resolve("d")));
+            assertTrue(cache.contains(directory.resolve("a")));
+            assertTrue(cache.contains(directory.resolve("b")));
+            assertTrue(cache.contains(directory.resolve("c")));
+            assertEquals(3 * weight, cache.getUsedBytes());
+
+            for (int i = 0; i < 6; i++) {
+                cache.get(directory.resolve("d"));
+            }
+            assertTrue(cache.contains(directory.resolve("d")));
+            assertFalse(cache.contains(directory.resolve("a")));
+            assertFalse(cache.contains(directory.resolve("b")));
+            assertTrue(cache.contains(directory.resolve("c")));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testBudget() throws IOException {
+        Path directory = createFiles();
+        try {
+            long weight = weight(directory);
+            // d is larger than the whole budget
+            FileCache cache = new FileCache(weight, 1 << 20, "lru");
+            assertNotNull(cache.get(directory.resolve("d")));
+            assertFalse(cache.contains(directory.resolve("d")));
+            assertEquals(0, cache.getUsedBytes());
+
+            // content above the file limit is not kept, so d does fit
+            cache = new FileCache(weight, 200, "lru");
+            FileCache.Entry entry = cache.get(directory.resolve("d"));
+            assertNull(entry.getContent());
+            assertEquals(300, entry.getSize());
+            assertTrue(cache.contains(directory.resolve("d")));
+            assertEquals(weight - 100, cache.getUsedBytes());
+
+            cache.invalidate(directory);
+            assertFalse(cache.contains(directory.resolve("d")));
+            assertEquals(0, cache.getUsedBytes());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testLoadOverlappingInvalidationIsNotCached() throws IOException {
+        Path directory = createFiles();
+        try {
+            FileCache cache = new FileCache(1 << 20, 1 << 20, "lru");
+            Path a = directory.resolve("a");
+            long loadedAt = cache.getGeneration();
+            FileCache.Entry stale = new FileCache.Entry(null, 100, 0, "text/plain");
+            // the file changes while a thread is loading it
+            cache.invalidate(a);
+            cache.put(a, stale, loadedAt);
+            assertFalse(cache.contains(a));
+            assertNotSame(stale, cache.get(a));
+            assertTrue(cache.contains(a));
+        } finally {
+            delete(directory);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HttpDateTest {
+
+    private static final long NOV_6_1994 = 784111777000L;
+
+    @Test
+    public void testThreeFormats() {
+        assertEquals(NOV_6_1994, HttpDate.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(NOV_6_1994, HttpDate.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+        assertEquals(NOV_6_1994, HttpDate.parse("Sun Nov  6 08:49:37 1994"));
+    }
+
+    @Test
+    public void testFormatRoundTrip() {
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDate.format(NOV_6_1994));
+        assertEquals(951825600000L, HttpDate.parse(HttpDate.format(951825600000L)));
+    }
+
+    @Test
+    public void testInvalidDates() {
+        assertEquals(HttpDate.INVALID, HttpDate.parse("yesterday"));
+        assertEquals(HttpDate.INVALID, HttpDate.parse("Sun, 06 Foo 1994 08:49:37 GMT"));
+        assertEquals(HttpDate.INVALID, HttpDate.parse("Sun, 06 Nov 1994 25:49:37 GMT"));
+        assertEquals(HttpDate.INVALID, HttpDate.parse("Sun, 06 Nov 1994 08:49:37 GMT trailing"));
+    }
+}
@@ -0,0 +1,199 @@
+package server;
+
+import org.junit.Test;
+import server.exceptions.BadRequestException;
+import server.exceptions.ServerException;
+import util.Method;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class RequestDecoderTest {
+
+    private RequestDecoder decoder = new RequestDecoder();
+    private final ByteBuffer in = ByteBuffer.allocate(8192);
+
+    /**
+     * Feeds the bytes to the decoder the way a connection does: decoding
+     * continues as long as a request completes or a body is received.
+     *
+     * @return The requests completed by these bytes
+     */
+    private List<Request> feed(String bytes) throws ServerException {
+        in.put(bytes.getBytes(StandardCharsets.ISO_8859_1));
+        in.flip();
+        List<Request> requests = new ArrayList<>();
+        while (true) {
+            boolean writesBody = decoder.writesBody(in);
+            Request request = decoder.decode(in);
+            if (request != null) {
+                requests.add(request);
+            } else if (!writesBody && !decoder.writesBody(in)) {
+                break;
+            }
+        }
+        in.compact();
+        return requests;
+    }
+
+    private static String body(Request request) throws IOException {
+        return new String(Files.readAllBytes(request.getUpload().getPath()), StandardCharsets.ISO_8859_1);
+    }
+
+    private static void delete(Request request) throws IOException {
+        Files.delete(request.getUpload().getPath());
+        Files.delete(request.getUpload().getDirectory());
+    }
+
+    @Test
+    public void testHeadSplitAtEveryByte() throws ServerException {
+        String head = "GET /a.txt HTTP/1.1\r\nHost: example.com\r\nAccept: */*\r\n\r\n";
+        for (int i = 0; i < head.length() - 1; i++) {
+            assertTrue(feed(head.substring(i, i + 1)).isEmpty());
+        }
+        List<Request> requests = feed(head.substring(head.length() - 1));
+        assertEquals(1, requests.size());
+        assertEquals(Method.GET, requests.get(0).getMethod());
+        assertEquals("/a.txt", requests.get(0).getFile());
+        assertEquals("*/*", requests.get(0).getHeaders().get("Accept"));
+    }
+
+    @Test
+    public void testPipelinedRequests() throws ServerException {
+        List<Request> requests = feed("GET /a HTTP/1.1\r\nHost: x\r\n\r\nHEAD /b HTTP/1.1\r\nHost: x\r\n\r\nGET /c HTTP/1.0\r\n");
+        assertEquals(2, requests.size());
+        assertEquals("/a", requests.get(0).getFile());
+        assertEquals(Method.HEAD, requests.get(1).getMethod());
+        assertEquals("/b", requests.get(1).getFile());
+
+        // the third request is completed by the next bytes
+        requests = feed("\r\n");
+        assertEquals(1, requests.size());
+        assertEquals("/c", requests.get(0).getFile());
+        assertEquals("HTTP/1.0", requests.get(0).getHttpVersion());
+    }
+
+    @Test
+    public void testBodySplitAcrossBuffers() throws ServerException, IOException {
+        assertTrue(feed("POST /form HTTP/1.1\r\nHost: x\r\nContent-Length: 11\r\n\r\nhello").isEmpty());
+        List<Request> requests = feed(" world");
+        assertEquals(1, requests.size());
+        Request request = requests.get(0);
+        try {
+            assertEquals("hello world", body(request));
+            assertEquals(11, request.getUpload().getSize());
+            assertNotNull(request.getUpload().getDigest());
+        } finally {
+            delete(request);
+        }
+    }
+
+    @Test
+    public void testEmptyBodyAndPipelinedRequest() throws ServerException, IOException {
+        List<Request> requests = feed("POST /form HTTP/1.1\r\nHost: x\r\nContent-Length: 0\r\n\r\n"
+                + "GET /next HTTP/1.1\r\nHost: x\r\n\r\n");
+        assertEquals(2, requests.size());
+        try {
+            assertEquals("", body(requests.get(0)));
+            assertEquals("/next", requests.get(1).getFile());
+        } finally {
+            delete(requests.get(0));
+        }
+    }
+
+    @Test
+    public void testChunkedBody() throws ServerException, IOException {
+        assertTrue(feed("PUT /file HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n5;ext=1\r\nhel").isEmpty());
+        assertTrue(feed("lo\r\n6\r\n world\r\n0\r\nChecksum: 1").isEmpty());
+        List<Request> requests = feed("234\r\n\r\n");
+        assertEquals(1, requests.size());
+        Request request = requests.get(0);
+        try {
+            assertEquals(Method.PUT, request.getMethod());
+            assertEquals("hello world", body(request));
+            assertEquals("1234", request.getHeaders().get("Checksum"));
+        } finally {
+            delete(request);
+        }
+    }
+
+    /**
+     * @return Number of upload directories
+     */
+    private static long uploads() throws IOException {
+        Files.createDirectories(Paths.get("uploads"));
+        try (Stream<Path> directories = Files.list(Paths.get("uploads"))) {
+            return directories.count();
+        }
+    }
+
+    private void assertBadChunkSize(String size) throws ServerException, IOException {
+        long uploads = uploads();
+        try {
+            feed("POST /form HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n" + size + "\r\n");
+            fail("chunk size accepted: " + size);
+        } catch (BadRequestException e) {
+            // the connection is closed after an error
+            decoder.abort();
+            decoder = new RequestDecoder();
+            in.clear();
+        }
+        // the partial body and its directory are deleted
+        assertEquals(uploads, uploads());
+    }
+
+    @Test
+    public void testSignedChunkSizes() throws ServerException, IOException {
+        assertBadChunkSize("+5");
+        assertBadChunkSize("-5");
+    }
+
+    @Test
+    public void testOverflowingChunkSize() throws ServerException, IOException {
+        assertBadChunkSize("ffffffffffffffff");
+        assertBadChunkSize("10000000000000000");
+    }
+
+    @Test
+    public void testBodyWithoutLength() throws ServerException {
+        try {
+            feed("POST /form HTTP/1.1\r\nHost: x\r\n\r\n");
+            fail("request without length accepted");
+        } catch (BadRequestException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExpectContinue() throws ServerException, IOException {
+        assertTrue(feed("PUT /file HTTP/1.1\r\nHost: x\r\nExpect: 100-continue\r\nContent-Length: 2\r\n\r\n").isEmpty());
+        assertTrue(decoder.takeContinue());
+        assertFalse(decoder.takeContinue());
+        List<Request> requests = feed("ok");
+        assertEquals(1, requests.size());
+        delete(requests.get(0));
+    }
+
+    @Test
+    public void testWritesBody() throws ServerException {
+        in.put("POST /form HTTP/1.1\r\nHost: x\r\nContent-Length: 3\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        in.flip();
+        assertFalse(decoder.writesBody(in));
+        assertNull(decoder.decode(in));
+        // the next call creates the file of the body, even without input
+        assertFalse(in.hasRemaining());
+        assertTrue(decoder.writesBody(in));
+        assertNull(decoder.decode(in));
+        assertFalse(decoder.writesBody(in));
+        decoder.abort();
+    }
+}
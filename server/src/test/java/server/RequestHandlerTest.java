@@ -0,0 +1,98 @@
+package server;
+
+import org.junit.Test;
+import server.exceptions.ServerException;
+import util.Method;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class RequestHandlerTest {
+
+    private static final long NOV_6_1994 = 784111777000L;
+
+    /**
+     * Directory served by {@link #get(FileCache, String...)}, holding a file
+     * last modified on {@link #NOV_6_1994}.
+     */
+    private static Path directory;
+
+    private static Response get(FileCache cache, String... headerLines) throws ServerException, IOException {
+        if (directory == null) {
+            directory = Files.createTempDirectory("handler");
+            directory.toFile().deleteOnExit();
+            Path file = directory.resolve("file.txt");
+            Files.write(file, "content".getBytes(StandardCharsets.ISO_8859_1));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(NOV_6_1994));
+            file.toFile().deleteOnExit();
+        }
+        String path = Main.path;
+        FileCache fileCache = Main.fileCache;
+        Main.path = directory.toString();
+        Main.fileCache = cache;
+        try {
+            HashMap<String, String> headers = new HashMap<>();
+            headers.put("Host", "localhost");
+            for (int i = 0; i < headerLines.length; i += 2) {
+                headers.put(headerLines[i], headerLines[i + 1]);
+            }
+            Response response = new RequestHandler().handle(new Request(Method.GET, "/file.txt", "HTTP/1.1", headers));
+            if (response.getFileBody() != null) {
+                response.getFileBody().close();
+            }
+            return response;
+        } finally {
+            Main.path = path;
+            Main.fileCache = fileCache;
+        }
+    }
+
+    @Test
+    public void testEtagMatches() {
+        String etag = "\"10-1a149e59714\"";
+        assertTrue(RequestHandler.etagMatches(etag, etag));
+        assertTrue(RequestHandler.etagMatches("\"other\", W/\"10-1a149e59714\"", etag));
+        assertTrue(RequestHandler.etagMatches("*", etag));
+        assertFalse(RequestHandler.etagMatches("\"10-1a149e5971\"", etag));
+    }
+
+    private static void assertConditionalResponses(FileCache cache) throws ServerException, IOException {
+        String etag = get(cache).getHeaders().get("ETag");
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", get(cache).getHeaders().get("Last-Modified"));
+
+        assertEquals(304, get(cache, "If-None-Match", etag).getStatusCode());
+        assertEquals(304, get(cache, "If-None-Match", "\"other\", " + etag).getStatusCode());
+        assertEquals(200, get(cache, "If-None-Match", "\"other\"").getStatusCode());
+
+        assertEquals(304, get(cache, "If-Modified-Since", "Sun, 06 Nov 1994 08:49:37 GMT").getStatusCode());
+        assertEquals(304, get(cache, "If-Modified-Since", "Mon, 07 Nov 1994 08:49:37 GMT").getStatusCode());
+        assertEquals(200, get(cache, "If-Modified-Since", "Sat, 05 Nov 1994 08:49:37 GMT").getStatusCode());
+    }
+
+    @Test
+    public void testNotModified() throws ServerException, IOException {
+        assertConditionalResponses(null);
+        assertConditionalResponses(new FileCache(1 << 20, 1 << 20, "lru"));
+    }
+
+    @Test
+    public void testIfNoneMatchTakesPrecedence() throws ServerException, IOException {
+        for (FileCache cache : new FileCache[] { null, new FileCache(1 << 20, 1 << 20, "lru") }) {
+            String etag = get(cache).getHeaders().get("ETag");
+            // the date alone would give a 304
+            assertEquals(200, get(cache, "If-None-Match", "\"other\"", "If-Modified-Since",
+                    "Mon, 07 Nov 1994 08:49:37 GMT").getStatusCode());
+            // the date alone would give a 200
+            Response response = get(cache, "If-None-Match", etag, "If-Modified-Since",
+                    "Sat, 05 Nov 1994 08:49:37 GMT");
+            assertEquals(304, response.getStatusCode());
+            assertEquals(etag, response.getHeaders().get("ETag"));
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of byte buffers in power-of-two size classes, to avoid allocating a
+ * new buffer for every message. Every thread keeps a few released buffers
+ * of each class for itself, so most acquisitions take no lock; buffers that
+ * do not fit in the cache of the releasing thread go to a bounded queue
+ * shared by all threads, and are dropped when that is full too.
+ *
+ * Leak detection records where every outstanding buffer was acquired, and
+ * reports buffers released twice. It is too slow for production and meant
+ * for tests: it is switched on with the system property
+ * {@value #LEAK_DETECTION_PROPERTY} or {@link #setLeakDetection(boolean)}.
+ */
+public final class BufferPool {
+
+	public static final String LEAK_DETECTION_PROPERTY = "util.BufferPool.leakDetection";
+
+	private static final int MIN_CAPACITY = 1024;
+	private static final int MAX_CAPACITY = 1024 * 1024;
+	private static final int THREAD_CACHE_SIZE = 8;
+	private static final int SHARED_SIZE = 64;
+
+	private static final BufferPool HEAP = new BufferPool(false, MIN_CAPACITY, MAX_CAPACITY, THREAD_CACHE_SIZE,
+			SHARED_SIZE);
+	private static final BufferPool DIRECT = new BufferPool(true, MIN_CAPACITY, MAX_CAPACITY, THREAD_CACHE_SIZE,
+			SHARED_SIZE);
+
+	private final boolean direct;
+	private final int minShift;
+	private final int classCount;
+	private final int threadCacheSize;
+	private final List<ArrayBlockingQueue<ByteBuffer>> shared;
+	private final ThreadLocal<List<ArrayDeque<ByteBuffer>>> cache;
+	private final LongAdder allocated = new LongAdder();
+
+	private volatile boolean leakDetection = Boolean.getBoolean(LEAK_DETECTION_PROPERTY);
+	private final Map<ByteBuffer, Throwable> outstanding = Collections.synchronizedMap(new IdentityHashMap<>());
+
+	/**
+	 * @return Shared pool of heap buffers, which have an accessible array
+	 */
+	public static BufferPool heap() {
+		return HEAP;
+	}
+
+	/**
+	 * @return Shared pool of direct buffers, which channels read and write
+	 *         without an intermediate copy
+	 */
+	public static BufferPool direct() {
+		return DIRECT;
+	}
+
+	/**
+	 * @param direct
+	 *            Whether the buffers are direct
+	 * @param minCapacity
+	 *            Capacity of the smallest size class, rounded up to a power
+	 *            of two
+	 * @param maxCapacity
+	 *            Capacity of the largest size class, larger buffers are not
+	 *            pooled
+	 * @param threadCacheSize
+	 *            Buffers of each size class kept per thread
+	 * @param sharedSize
+	 *            Buffers of each size class kept for all threads
+	 */
+	public BufferPool(boolean direct, int minCapacity, int maxCapacity, int threadCacheSize, int sharedSize) {
+		this.direct = direct;
+		this.minShift = 32 - Integer.numberOfLeadingZeros(Math.max(1, minCapacity) - 1);
+		int maxShift = 32 - Integer.numberOfLeadingZeros(Math.max(minCapacity, maxCapacity) - 1);
+		this.classCount = maxShift - minShift + 1;
+		this.threadCacheSize = threadCacheSize;
+		this.shared = new ArrayList<>(classCount);
+		for (int i = 0; i < classCount; i++) {
+			shared.add(new ArrayBlockingQueue<>(Math.max(1, sharedSize)));
+		}
+		this.cache = ThreadLocal.withInitial(() -> {
+			List<ArrayDeque<ByteBuffer>> deques = new ArrayList<>(classCount);
+			for (int i = 0; i < classCount; i++) {
+				deques.add(new ArrayDeque<>(threadCacheSize));
+			}
+			return deques;
+		});
+	}
+
+	/**
+	 * @return Index of the smallest size class holding the capacity, or
+	 *         {@code classCount} if it is too large to be pooled
+	 */
+	private int sizeClass(int capacity) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1);
+		return Math.max(0, shift - minShift);
+	}
+
+	/**
+	 * Borrows a buffer, which has to be given back with
+	 * {@link #release(ByteBuffer)} once it is no longer used.
+	 *
+	 * @param capacity
+	 *            Minimum number of bytes the buffer has to hold
+	 * @return Cleared buffer with at least the given capacity and its limit
+	 *         at the given capacity
+	 */
+	public ByteBuffer acquire(int capacity) {
+		int sizeClass = sizeClass(capacity);
+		ByteBuffer buffer = null;
+		if (sizeClass < classCount) {
+			buffer = cache.get().get(sizeClass).pollFirst();
+			if (buffer == null) {
+				buffer = shared.get(sizeClass).poll();
+			}
+			if (buffer == null) {
+				buffer = allocate(1 << (sizeClass + minShift));
+			}
+		} else {
+			buffer = allocate(capacity);
+		}
+		buffer.clear().limit(capacity);
+		if (leakDetection) {
+			outstanding.put(buffer, new Throwable("Buffer of " + capacity + " bytes acquired here"));
+		}
+		return buffer;
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		allocated.increment();
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The buffer must not be used anymore
+	 * afterwards, also not through views on it.
+	 *
+	 * @param buffer
+	 *            Buffer returned by {@link #acquire(int)} of this pool, or
+	 *            {@code null}
+	 * @throws IllegalStateException
+	 *             If leak detection is on and the buffer is not outstanding
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (leakDetection && outstanding.remove(buffer) == null) {
+			throw new IllegalStateException("Buffer released twice or not acquired from this pool");
+		}
+		int capacity = buffer.capacity();
+		if (buffer.isDirect() != direct || Integer.bitCount(capacity) != 1) {
+			return;
+		}
+		int sizeClass = sizeClass(capacity);
+		if (sizeClass >= classCount || 1 << (sizeClass + minShift) != capacity) {
+			return;
+		}
+		ArrayDeque<ByteBuffer> local = cache.get().get(sizeClass);
+		if (local.size() < threadCacheSize) {
+			local.addFirst(buffer);
+		} else {
+			shared.get(sizeClass).offer(buffer);
+		}
+	}
+
+	/**
+	 * @return Number of buffers allocated because the pool had none of the
+	 *         requested size
+	 */
+	public long getAllocated() {
+		return allocated.sum();
+	}
+
+	/**
+	 * Switches leak detection on or off. Buffers acquired while it is off are
+	 * not tracked.
+	 *
+	 * @param enabled
+	 */
+	public void setLeakDetection(boolean enabled) {
+		leakDetection = enabled;
+		if (!enabled) {
+			outstanding.clear();
+		}
+	}
+
+	/**
+	 * @return Number of tracked buffers that were acquired but not released
+	 */
+	public int getOutstanding() {
+		return outstanding.size();
+	}
+
+	/**
+	 * Fails if any tracked buffer was not released.
+	 *
+	 * @throws IllegalStateException
+	 *             With the place where a leaked buffer was acquired as cause
+	 */
+	public void checkLeaks() {
+		synchronized (outstanding) {
+			if (!outstanding.isEmpty()) {
+				throw new IllegalStateException(outstanding.size() + " buffers were not released",
+						outstanding.values().iterator().next());
+			}
+		}
+	}
+}
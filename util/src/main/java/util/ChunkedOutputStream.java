@@ -0,0 +1,131 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a message body with the chunked transfer-coding, as read by
+ * {@link IO#transferMessage}. Bytes are collected in a buffer of the chunk
+ * size; every full buffer is written to the underlying stream as one chunk,
+ * size line and trailing CRLF included, with a single write.
+ *
+ * Closing the stream writes the last chunk, but leaves the underlying stream
+ * open, so the connection can be reused.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+	/**
+	 * Room for the chunk size in hexadecimal and CRLF in front of the data.
+	 */
+	private static final int HEADER_BYTES = Integer.toHexString(Integer.MAX_VALUE).length() + 2;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int count;
+	private long written;
+	private boolean closed;
+
+	/**
+	 * @param out
+	 *            Stream the chunks are written to
+	 * @param chunkSize
+	 *            Number of data bytes per chunk
+	 */
+	public ChunkedOutputStream(OutputStream out, int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		}
+		this.out = out;
+		this.buffer = new byte[HEADER_BYTES + chunkSize + 2];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		buffer[HEADER_BYTES + count++] = (byte) b;
+		if (HEADER_BYTES + count + 2 == buffer.length) {
+			writeChunk();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		int chunkSize = buffer.length - HEADER_BYTES - 2;
+		while (len > 0) {
+			int n = Math.min(len, chunkSize - count);
+			System.arraycopy(b, off, buffer, HEADER_BYTES + count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == chunkSize) {
+				writeChunk();
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffered bytes as a chunk and flushes the underlying stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * Writes the buffered bytes and the last chunk, and flushes the
+	 * underlying stream without closing it.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		writeChunk();
+		out.write(LAST_CHUNK);
+		written += LAST_CHUNK.length;
+		out.flush();
+		closed = true;
+	}
+
+	/**
+	 * @return Number of bytes written to the underlying stream, including the
+	 *         chunk framing
+	 */
+	public long getCount() {
+		return written;
+	}
+
+	private void writeChunk() throws IOException {
+		if (count == 0) {
+			// an empty chunk would end the body
+			return;
+		}
+		// size line right in front of the data
+		int start = HEADER_BYTES;
+		buffer[--start] = '\n';
+		buffer[--start] = '\r';
+		int size = count;
+		do {
+			buffer[--start] = HEX[size & 0xf];
+			size >>>= 4;
+		} while (size != 0);
+		int end = HEADER_BYTES + count;
+		buffer[end++] = '\r';
+		buffer[end++] = '\n';
+		out.write(buffer, start, end - start);
+		written += end - start;
+		count = 0;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values with buckets of bounded relative width,
+ * in the style of HdrHistogram. Values below 128 are counted exactly; above
+ * that, every power of two is split in 64 equal buckets, so a reported
+ * percentile is within 1/64 of the recorded value. Values above 2^40 are
+ * counted in the highest bucket.
+ *
+ * Recording is lock-free and may happen from any number of threads.
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+	private static final int MAX_VALUE_BITS = 40;
+	private static final long MAX_TRACKABLE = (1L << MAX_VALUE_BITS) - 1;
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT
+			+ (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Counts one occurrence of the value.
+	 *
+	 * @param value
+	 *            Non-negative value, negative values are counted as 0
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(Math.min(value, MAX_TRACKABLE)));
+		count.increment();
+		sum.add(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		// keep the highest SUB_BUCKET_BITS bits of the value
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift);
+		return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + subBucket - SUB_BUCKET_HALF;
+	}
+
+	/**
+	 * @return Highest value counted in the bucket with the given index
+	 */
+	private static long highestValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+		long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * @return Number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return Sum of the recorded values
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return Highest recorded value, or 0 if there is none
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return Mean of the recorded values, or 0 if there is none
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the value below or at which the given percentage of the
+	 * recorded values lie, e.g. 99.9 for the 99.9th percentile.
+	 *
+	 * @param percentile
+	 *            Between 0 and 100
+	 * @return The value at the percentile, or 0 if no values were recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Adds all values recorded by another histogram to this one.
+	 *
+	 * @param other
+	 */
+	public void add(Histogram other) {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long n = other.counts.get(i);
+			if (n != 0) {
+				counts.addAndGet(i, n);
+			}
+		}
+		count.add(other.count.sum());
+		sum.add(other.sum.sum());
+		long otherMax = other.max.get();
+		long current;
+		while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+		}
+	}
+
+	/**
+	 * Forgets all recorded values. Values recorded concurrently may be lost
+	 * or partially counted.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+}
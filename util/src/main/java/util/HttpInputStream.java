@@ -0,0 +1,150 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * BufferedInputStream that lets an {@link HttpParser} and line reads scan
+ * its buffer directly, instead of reading byte by byte. Bytes that follow
+ * the head of a message stay in the buffer for the regular read methods.
+ *
+ * The buffer can be borrowed from a {@link BufferPool}, it is then given
+ * back when the stream is closed.
+ */
+public class HttpInputStream extends BufferedInputStream {
+
+	private BufferPool pool;
+	private ByteBuffer pooled;
+
+	public HttpInputStream(InputStream in) {
+		super(in);
+	}
+
+	public HttpInputStream(InputStream in, int size) {
+		super(in, size);
+	}
+
+	/**
+	 * Creates a stream with a buffer borrowed from a pool of heap buffers.
+	 *
+	 * @param in
+	 *            Underlying stream
+	 * @param pool
+	 *            Pool of heap buffers
+	 * @param size
+	 *            Minimum size of the buffer
+	 */
+	public HttpInputStream(InputStream in, BufferPool pool, int size) {
+		super(in, 1);
+		this.pool = pool;
+		this.pooled = pool.acquire(size);
+		buf = pooled.array();
+	}
+
+	/**
+	 * Closes the underlying stream and gives a pooled buffer back.
+	 */
+	@Override
+	public void close() throws IOException {
+		ByteBuffer buffer;
+		synchronized (this) {
+			buffer = pooled;
+			pooled = null;
+		}
+		try {
+			super.close();
+		} finally {
+			if (buffer != null) {
+				pool.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Feeds the parser until it has parsed a complete message head.
+	 *
+	 * @param parser
+	 *            Parser that was reset for the expected head
+	 * @throws EOFException
+	 *             If the stream ends before the head is complete
+	 * @throws IOException
+	 */
+	public void parse(HttpParser parser) throws IOException {
+		while (!parser.isComplete()) {
+			if (pos >= count && fill() == -1) {
+				throw new EOFException();
+			}
+			pos += parser.parse(buf, pos, count - pos);
+		}
+	}
+
+	/**
+	 * Reads one line, without line-end characters.
+	 *
+	 * @param maxLength
+	 *            Maximum length of the line
+	 * @return The line read
+	 * @throws EOFException
+	 *             If the stream ends before the end of the line
+	 * @throws MalformedMessageException
+	 *             If the line is longer than allowed
+	 * @throws IOException
+	 */
+	public String readLine(int maxLength) throws IOException {
+		StringBuilder sb = null;
+		while (true) {
+			if (pos >= count && fill() == -1) {
+				throw new EOFException();
+			}
+			int end = pos;
+			while (end < count && buf[end] != '\n') {
+				end++;
+			}
+			int length = end - pos + (sb == null ? 0 : sb.length());
+			if (length > maxLength) {
+				throw new MalformedMessageException("Line exceeds " + maxLength + " bytes");
+			}
+			if (end < count) {
+				String line;
+				if (sb == null) {
+					line = new String(buf, pos, end - pos, StandardCharsets.ISO_8859_1);
+				} else {
+					line = sb.append(new String(buf, pos, end - pos, StandardCharsets.ISO_8859_1)).toString();
+				}
+				pos = end + 1;
+				// remove carriage return at the end
+				return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+			}
+			if (sb == null) {
+				sb = new StringBuilder();
+			}
+			sb.append(new String(buf, pos, end - pos, StandardCharsets.ISO_8859_1));
+			pos = end;
+		}
+	}
+
+	/**
+	 * Refills the empty buffer from the underlying stream.
+	 *
+	 * @return Number of bytes read, or -1 at the end of the stream
+	 * @throws IOException
+	 */
+	private int fill() throws IOException {
+		if (buf == null || in == null) {
+			throw new IOException("Stream closed");
+		}
+		// the buffer is fully consumed and marks are not used
+		markpos = -1;
+		pos = 0;
+		count = 0;
+		int read = in.read(buf, 0, buf.length);
+		if (read > 0) {
+			count = read;
+		}
+		return read;
+	}
+}
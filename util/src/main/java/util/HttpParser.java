@@ -0,0 +1,343 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Incremental parser for the head of an HTTP-message: the request line or
+ * status line, followed by the headers. Bytes are scanned directly in the
+ * buffer they were read into, and may be fed in pieces of any size. A parser
+ * is meant to be reused for every message of a connection by calling
+ * {@link #reset(Mode)}.
+ */
+public final class HttpParser {
+
+	public static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+	public static final int DEFAULT_MAX_HEADERS = 100;
+
+	/**
+	 * Kind of message head to parse.
+	 */
+	public enum Mode {
+		/** Request line followed by headers */
+		REQUEST,
+		/** Status line followed by headers */
+		RESPONSE,
+		/** Only headers, e.g. the footers of a chunked message */
+		HEADERS
+	}
+
+	private static final Method[] METHODS = Method.values();
+	private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+	private static final String[] COMMON_HEADERS = { "Host", "Connection", "Content-Length", "Content-Type",
+			"Transfer-Encoding", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language", "If-Modified-Since",
+			"If-None-Match", "Expect", "Date", "Server", "Last-Modified", "ETag", "Location", "Cache-Control" };
+	private static final byte[][] COMMON_HEADER_NAMES = new byte[COMMON_HEADERS.length][];
+	private static final String HTTP_1_1 = "HTTP/1.1";
+	private static final String HTTP_1_0 = "HTTP/1.0";
+
+	static {
+		for (int i = 0; i < METHODS.length; i++) {
+			METHOD_NAMES[i] = METHODS[i].getName().getBytes(StandardCharsets.ISO_8859_1);
+		}
+		for (int i = 0; i < COMMON_HEADERS.length; i++) {
+			COMMON_HEADER_NAMES[i] = COMMON_HEADERS[i].getBytes(StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	private final byte[] line;
+	private final int maxHeaders;
+	private int lineLength;
+
+	private Mode mode;
+	private boolean firstLineDone;
+	private boolean complete;
+	private Method method;
+	private String methodName;
+	private String target;
+	private String httpVersion;
+	private int statusCode;
+	private HashMap<String, String> headers;
+	private String lastHeader;
+
+	public HttpParser() {
+		this(DEFAULT_MAX_LINE_LENGTH, DEFAULT_MAX_HEADERS);
+	}
+
+	/**
+	 * @param maxLineLength
+	 *            Maximum length in bytes of a single line of the head
+	 * @param maxHeaders
+	 *            Maximum number of header lines
+	 */
+	public HttpParser(int maxLineLength, int maxHeaders) {
+		this.line = new byte[maxLineLength];
+		this.maxHeaders = maxHeaders;
+		reset(Mode.REQUEST);
+	}
+
+	/**
+	 * Prepares the parser for a new message head.
+	 *
+	 * @param mode
+	 */
+	public void reset(Mode mode) {
+		this.mode = mode;
+		firstLineDone = mode == Mode.HEADERS;
+		complete = false;
+		lineLength = 0;
+		method = null;
+		methodName = null;
+		target = null;
+		httpVersion = null;
+		statusCode = 0;
+		headers = new HashMap<>();
+		lastHeader = null;
+	}
+
+	/**
+	 * Parses bytes of the given array, up to the end of the head.
+	 *
+	 * @param buffer
+	 * @param offset
+	 *            Position of the first byte to parse
+	 * @param length
+	 *            Number of bytes available
+	 * @return Number of bytes consumed, which is less than {@code length}
+	 *         only if the head was completed
+	 * @throws MalformedMessageException
+	 *             If the bytes do not form a valid head, or exceed the limits
+	 */
+	public int parse(byte[] buffer, int offset, int length) throws MalformedMessageException {
+		int position = offset;
+		int end = offset + length;
+		while (!complete && position < end) {
+			int lineEnd = position;
+			while (lineEnd < end && buffer[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			int count = lineEnd - position;
+			if (lineLength + count > line.length) {
+				throw new MalformedMessageException("Line exceeds " + line.length + " bytes");
+			}
+			System.arraycopy(buffer, position, line, lineLength, count);
+			lineLength += count;
+			if (lineEnd == end) {
+				// line continues in the next bytes
+				return end - offset;
+			}
+			position = lineEnd + 1;
+			int contentLength = lineLength;
+			if (contentLength > 0 && line[contentLength - 1] == '\r') {
+				contentLength--;
+			}
+			lineLength = 0;
+			parseLine(contentLength);
+		}
+		return position - offset;
+	}
+
+	/**
+	 * Parses the remaining bytes of the given buffer, up to the end of the
+	 * head, and advances its position accordingly.
+	 *
+	 * @param buffer
+	 *            Buffer in read mode
+	 * @throws MalformedMessageException
+	 */
+	public void parse(ByteBuffer buffer) throws MalformedMessageException {
+		if (buffer.hasArray()) {
+			int consumed = parse(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.position() + consumed);
+		} else {
+			byte[] single = new byte[1];
+			while (!complete && buffer.hasRemaining()) {
+				single[0] = buffer.get();
+				parse(single, 0, 1);
+			}
+		}
+	}
+
+	private void parseLine(int length) throws MalformedMessageException {
+		if (!firstLineDone) {
+			if (length == 0 && mode == Mode.REQUEST) {
+				// ignore empty lines preceding a request
+				return;
+			}
+			if (mode == Mode.REQUEST) {
+				parseRequestLine(length);
+			} else {
+				parseStatusLine(length);
+			}
+			firstLineDone = true;
+		} else if (length == 0) {
+			complete = true;
+		} else if (line[0] == ' ' || line[0] == '\t') {
+			// lines beginning with spaces or tabs belong to the previous
+			// header line
+			if (lastHeader == null) {
+				throw new MalformedMessageException("Continuation line without header");
+			}
+			int start = skipWhitespace(0, length);
+			headers.put(lastHeader, headers.get(lastHeader) + " " + string(start, trimEnd(start, length)));
+		} else {
+			if (headers.size() >= maxHeaders) {
+				throw new MalformedMessageException("More than " + maxHeaders + " headers");
+			}
+			int colon = indexOf((byte) ':', 0, length);
+			if (colon <= 0) {
+				throw new MalformedMessageException("Header line without name");
+			}
+			lastHeader = headerName(colon);
+			int start = skipWhitespace(colon + 1, length);
+			headers.put(lastHeader, string(start, trimEnd(start, length)));
+		}
+	}
+
+	private void parseRequestLine(int length) throws MalformedMessageException {
+		int firstSpace = indexOf((byte) ' ', 0, length);
+		int secondSpace = firstSpace < 0 ? -1 : indexOf((byte) ' ', firstSpace + 1, length);
+		if (secondSpace < 0 || indexOf((byte) ' ', secondSpace + 1, length) >= 0) {
+			throw new MalformedMessageException("Request line must have three parts");
+		}
+		for (int i = 0; i < METHODS.length; i++) {
+			if (regionEquals(METHOD_NAMES[i], 0, firstSpace)) {
+				method = METHODS[i];
+				methodName = method.getName();
+			}
+		}
+		if (method == null) {
+			methodName = string(0, firstSpace);
+		}
+		target = string(firstSpace + 1, secondSpace);
+		httpVersion = version(secondSpace + 1, length);
+	}
+
+	private void parseStatusLine(int length) throws MalformedMessageException {
+		int firstSpace = indexOf((byte) ' ', 0, length);
+		if (firstSpace < 0 || length < firstSpace + 4) {
+			throw new MalformedMessageException("Invalid status line");
+		}
+		httpVersion = version(0, firstSpace);
+		int code = 0;
+		for (int i = firstSpace + 1; i < firstSpace + 4; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new MalformedMessageException("Invalid status code");
+			}
+			code = code * 10 + digit;
+		}
+		statusCode = code;
+	}
+
+	private String version(int start, int end) {
+		if (regionEquals(HTTP_1_1, start, end)) {
+			return HTTP_1_1;
+		} else if (regionEquals(HTTP_1_0, start, end)) {
+			return HTTP_1_0;
+		}
+		return string(start, end);
+	}
+
+	/**
+	 * Returns the name of a header, reusing the constant for common names.
+	 */
+	private String headerName(int end) {
+		for (int i = 0; i < COMMON_HEADER_NAMES.length; i++) {
+			if (regionEquals(COMMON_HEADER_NAMES[i], 0, end)) {
+				return COMMON_HEADERS[i];
+			}
+		}
+		return string(0, end);
+	}
+
+	private boolean regionEquals(String value, int start, int end) {
+		if (value.length() != end - start) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (line[start + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean regionEquals(byte[] value, int start, int end) {
+		if (value.length != end - start) {
+			return false;
+		}
+		for (int i = 0; i < value.length; i++) {
+			if (line[start + i] != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(byte b, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (line[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int skipWhitespace(int start, int end) {
+		while (start < end && (line[start] == ' ' || line[start] == '\t')) {
+			start++;
+		}
+		return start;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+			end--;
+		}
+		return end;
+	}
+
+	private String string(int start, int end) {
+		return new String(line, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return {@code true} if the empty line ending the head was parsed
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return Method of the request line, or {@code null} if the method is
+	 *         not supported
+	 */
+	public Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return Method of the request line as sent by the client
+	 */
+	public String getMethodName() {
+		return methodName;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public String getHttpVersion() {
+		return httpVersion;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public HashMap<String, String> getHeaders() {
+		return headers;
+	}
+}
@@ -2,39 +2,57 @@ package util;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 
 public final class IO {
 
+	private static final int TRANSFER_BUFFER_SIZE = 8192;
+	/**
+	 * Bodies up to this size are read into an array allocated from their
+	 * Content-Length; larger ones only take memory as their bytes arrive.
+	 */
+	private static final int MAX_PRESIZED_BODY = 16 * 1024 * 1024;
+
 	/**
 	 * Reads one line of the BufferedInputStream and returns it as a String
 	 * 
 	 * @param in
 	 * @return String with the content of the line read
-	 * @throws SocketException
-	 * @throws SocketTimeoutException
+	 * @throws EOFException
+	 *             If the stream ends before the end of the line
+	 * @throws MalformedMessageException
+	 *             If the line is longer than allowed
+	 * @throws IOException
 	 */
-	public static String readLine(BufferedInputStream in) throws SocketException, SocketTimeoutException {
+	public static String readLine(BufferedInputStream in) throws IOException {
+		if (in instanceof HttpInputStream) {
+			return ((HttpInputStream) in).readLine(HttpParser.DEFAULT_MAX_LINE_LENGTH);
+		}
 		StringBuilder sb = new StringBuilder();
-		while (sb.lastIndexOf("\r\n") == -1) {
-			try {
-				int ch = in.read();
-				sb.append((char) ch);
-			} catch (SocketTimeoutException | SocketException e) {
-				throw e;
-			} catch (IOException e) {
-				e.printStackTrace();
+		int previous = -1;
+		while (true) {
+			int ch = in.read();
+			if (ch == -1) {
+				throw new EOFException();
+			}
+			if (ch == '\n' && previous == '\r') {
+				// remove line-end characters at the end
+				sb.setLength(sb.length() - 1);
+				return sb.toString();
 			}
+			if (sb.length() == HttpParser.DEFAULT_MAX_LINE_LENGTH) {
+				throw new MalformedMessageException("Line exceeds " + sb.length() + " bytes");
+			}
+			sb.append((char) ch);
+			previous = ch;
 		}
-		String line = sb.toString();
-		// remove line-end characters at the end
-		line = line.substring(0, line.length() - 2);
-
-		return line;
 	}
 
 	/**
@@ -77,40 +95,46 @@ public final class IO {
 	 * 
 	 * @param in
 	 * @return
-	 * @throws SocketTimeoutException
-	 * @throws SocketException
+	 * @throws EOFException
+	 *             If the stream ends before the end of the headers
+	 * @throws MalformedMessageException
+	 *             If the headers are invalid or exceed the limits of the parser
+	 * @throws IOException
 	 */
-	public static HashMap<String, String> readHeaders(BufferedInputStream in)
-			throws SocketTimeoutException, SocketException {
-		HashMap<String, String> headers = new HashMap<>();
-
-		String header = null;
-		String value = null;
-		String line;
-		boolean stop = false;
-		while (!stop) {
-			line = readLine(in);
-			if (line.startsWith(" ") || line.startsWith("\t")) {
-				// lines beginning with spaces or tabs belong to the previous
-				// header line
-				line = line.trim();
-				value.concat(line);
-			} else {
-				// put last header + value in map
-				if (header != null) {
-					headers.put(header, value);
-				}
+	public static HashMap<String, String> readHeaders(BufferedInputStream in) throws IOException {
+		HttpParser parser = new HttpParser();
+		parser.reset(HttpParser.Mode.HEADERS);
+		readHead(in, parser);
+		return parser.getHeaders();
+	}
 
-				if (line.isEmpty()) {
-					stop = true;
-				} else {
-					// read new header
-					header = line.substring(0, line.indexOf(":"));
-					value = line.substring(line.indexOf(":") + 1).trim();
-				}
+	/**
+	 * Reads the head of an HTTP-message from a BufferedInputStream, using the
+	 * given parser. The result is available from the parser.
+	 * 
+	 * @param in
+	 * @param parser
+	 *            Parser that was reset for the expected head
+	 * @throws EOFException
+	 *             If the stream ends before the end of the head
+	 * @throws MalformedMessageException
+	 *             If the head is invalid or exceeds the limits of the parser
+	 * @throws IOException
+	 */
+	public static void readHead(BufferedInputStream in, HttpParser parser) throws IOException {
+		if (in instanceof HttpInputStream) {
+			((HttpInputStream) in).parse(parser);
+			return;
+		}
+		byte[] single = new byte[1];
+		while (!parser.isComplete()) {
+			int ch = in.read();
+			if (ch == -1) {
+				throw new EOFException();
 			}
+			single[0] = (byte) ch;
+			parser.parse(single, 0, 1);
 		}
-		return headers;
 	}
 
 	/**
@@ -125,46 +149,22 @@ public final class IO {
 	 */
 	public static byte[] readMessage(BufferedInputStream in, HashMap<String, String> headers)
 			throws SocketTimeoutException {
-		boolean chunkedTE = headers.containsKey("Transfer-Encoding")
-				&& "chunked".equals(headers.get("Transfer-Encoding"));
-		int size;
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		try {
-			if (chunkedTE) {
-				// Read chunked message
-				boolean stop = false;
-				while (!stop) {
-					// read line with chunk size
-					String line = readLine(in);
-					if (line.isEmpty()) {
-						line = readLine(in);
-					}
-					if (line.contains(";")) {
-						size = Integer.parseInt(line.substring(0, line.indexOf(";")), 16);
-					} else {
-						size = Integer.parseInt(line, 16);
-					}
-
-					if (size == 0) {
-						stop = true;
-					}
-					// read chunk
-					stream.write(readBytes(in, size));
-				}
-			} else {
-				if (headers.containsKey("Content-Length")) {
-					size = Integer.parseInt(headers.get("Content-Length"));
-					// read number of bytes specified by Content-Length
-					stream.write(readBytes(in, size));
-				} else {
-					// read to the end (until the connection is closed)
-					// read all bytes one by one
-					byte[] bt;
-					while ((bt = readBytes(in, 1)) != null) {
-						stream.write(bt);
-					}
+		if (!"chunked".equals(headers.get("Transfer-Encoding")) && headers.containsKey("Content-Length")) {
+			// read straight into an array of the right size, instead of
+			// growing a stream and copying it
+			try {
+				long size = Long.parseLong(headers.get("Content-Length").trim());
+				if (size >= 0 && size <= MAX_PRESIZED_BODY) {
+					byte[] body = readBytes(in, (int) size);
+					return body == null ? new byte[0] : body;
 				}
+			} catch (NumberFormatException e) {
+				// reported by transferMessage
 			}
+		}
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try {
+			transferMessage(in, headers, stream);
 		} catch (SocketTimeoutException e) {
 			throw e;
 		} catch (IOException e) {
@@ -173,4 +173,100 @@ public final class IO {
 
 		return stream.toByteArray();
 	}
+
+	/**
+	 * Copies the body of a HTTP-message from a BufferedInputStream to an
+	 * OutputStream, through a buffer of bounded size. The HashMap with headers
+	 * is used to determine the size of the body. Footers of a chunked message
+	 * are not read.
+	 * 
+	 * @param in
+	 * @param headers
+	 * @param out
+	 *            Stream the body is written to
+	 * @return Number of bytes of the body
+	 * @throws EOFException
+	 *             If the stream ends before the end of the body
+	 * @throws IOException
+	 */
+	public static long transferMessage(BufferedInputStream in, HashMap<String, String> headers, OutputStream out)
+			throws IOException {
+		ByteBuffer pooled = BufferPool.heap().acquire(TRANSFER_BUFFER_SIZE);
+		try {
+			return transferMessage(in, headers, out, pooled.array());
+		} finally {
+			BufferPool.heap().release(pooled);
+		}
+	}
+
+	private static long transferMessage(BufferedInputStream in, HashMap<String, String> headers, OutputStream out,
+			byte[] buffer) throws IOException {
+		boolean chunkedTE = headers.containsKey("Transfer-Encoding")
+				&& "chunked".equals(headers.get("Transfer-Encoding"));
+		long total = 0;
+		if (chunkedTE) {
+			// Read chunked message
+			while (true) {
+				// read line with chunk size
+				String line = readLine(in);
+				if (line.isEmpty()) {
+					line = readLine(in);
+				}
+				if (line.contains(";")) {
+					line = line.substring(0, line.indexOf(";"));
+				}
+				long size;
+				try {
+					size = Long.parseLong(line.trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new MalformedMessageException("Invalid chunk size: " + line);
+				}
+				if (size < 0) {
+					throw new MalformedMessageException("Invalid chunk size: " + line);
+				}
+				if (size == 0) {
+					return total;
+				}
+				// read chunk
+				copy(in, out, size, buffer);
+				total += size;
+			}
+		} else if (headers.containsKey("Content-Length")) {
+			long size;
+			try {
+				size = Long.parseLong(headers.get("Content-Length").trim());
+			} catch (NumberFormatException e) {
+				throw new MalformedMessageException("Invalid Content-Length: " + headers.get("Content-Length"));
+			}
+			if (size < 0) {
+				throw new MalformedMessageException("Invalid Content-Length: " + headers.get("Content-Length"));
+			}
+			// read number of bytes specified by Content-Length
+			copy(in, out, size, buffer);
+			return size;
+		} else {
+			// read to the end (until the connection is closed)
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				total += read;
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Copies exactly the given number of bytes.
+	 */
+	private static void copy(BufferedInputStream in, OutputStream out, long size, byte[] buffer) throws IOException {
+		long remaining = size;
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read == -1) {
+				throw new EOFException();
+			}
+			out.write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
 }
@@ -0,0 +1,19 @@
+package util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the bytes received do not form a valid HTTP-message, or
+ * exceed the limits of the parser.
+ */
+public class MalformedMessageException extends IOException {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 6409723174861392208L;
+
+	public MalformedMessageException(String message) {
+		super(message);
+	}
+}
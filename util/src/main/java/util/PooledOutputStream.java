@@ -0,0 +1,73 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * BufferedOutputStream with a buffer borrowed from a {@link BufferPool}. The
+ * buffer is given back when the stream is closed; writing afterwards fails
+ * instead of touching a buffer that may belong to another stream by then.
+ */
+public class PooledOutputStream extends BufferedOutputStream {
+
+	private final BufferPool pool;
+	private ByteBuffer pooled;
+
+	/**
+	 * @param out
+	 *            Underlying stream
+	 * @param pool
+	 *            Pool of heap buffers
+	 * @param size
+	 *            Minimum size of the buffer
+	 */
+	public PooledOutputStream(OutputStream out, BufferPool pool, int size) {
+		super(out, 1);
+		this.pool = pool;
+		this.pooled = pool.acquire(size);
+		buf = pooled.array();
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		ensureOpen();
+		super.write(b);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		super.write(b, off, len);
+	}
+
+	/**
+	 * Flushes and closes the underlying stream and gives the buffer back.
+	 */
+	@Override
+	public void close() throws IOException {
+		ByteBuffer buffer;
+		synchronized (this) {
+			if (pooled == null) {
+				return;
+			}
+			buffer = pooled;
+		}
+		try {
+			super.close();
+		} finally {
+			synchronized (this) {
+				pooled = null;
+				count = 0;
+			}
+			pool.release(buffer);
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (pooled == null) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(true, 1024, 65536, 4, 4);
+        ByteBuffer small = pool.acquire(10);
+        assertTrue(small.isDirect());
+        assertEquals(1024, small.capacity());
+        assertEquals(10, small.limit());
+        ByteBuffer medium = pool.acquire(1025);
+        assertEquals(2048, medium.capacity());
+        // too large to be pooled, allocated with the exact size
+        ByteBuffer large = pool.acquire(65537);
+        assertEquals(65537, large.capacity());
+        pool.release(small);
+        pool.release(medium);
+        pool.release(large);
+        assertEquals(3, pool.getAllocated());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(false, 1024, 65536, 4, 4);
+        ByteBuffer first = pool.acquire(4000);
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer second = pool.acquire(3000);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(3000, second.limit());
+        pool.release(second);
+        assertEquals(1, pool.getAllocated());
+    }
+
+    @Test
+    public void testReleaseOnOtherThread() throws Exception {
+        BufferPool pool = new BufferPool(false, 1024, 65536, 0, 4);
+        ByteBuffer buffer = pool.acquire(1024);
+        Thread releaser = new Thread(() -> pool.release(buffer));
+        releaser.start();
+        releaser.join();
+        // not cached by the releasing thread, but shared
+        assertSame(buffer, pool.acquire(1024));
+    }
+
+    @Test
+    public void testLeakDetection() {
+        BufferPool pool = new BufferPool(false, 1024, 65536, 4, 4);
+        pool.setLeakDetection(true);
+        ByteBuffer released = pool.acquire(100);
+        ByteBuffer leaked = pool.acquire(100);
+        pool.release(released);
+        assertEquals(1, pool.getOutstanding());
+        try {
+            pool.checkLeaks();
+            fail("Leak not detected");
+        } catch (IllegalStateException e) {
+            // the cause tells where the buffer was acquired
+            assertEquals(getClass().getName(), e.getCause().getStackTrace()[1].getClassName());
+        }
+        pool.release(leaked);
+        pool.checkLeaks();
+    }
+
+    @Test
+    public void testDoubleRelease() {
+        BufferPool pool = new BufferPool(false, 1024, 65536, 4, 4);
+        pool.setLeakDetection(true);
+        ByteBuffer buffer = pool.acquire(100);
+        pool.release(buffer);
+        try {
+            pool.release(buffer);
+            fail("Double release not detected");
+        } catch (IllegalStateException expected) {
+        }
+        // the buffer was not cached twice
+        assertNotSame(pool.acquire(100), pool.acquire(100));
+    }
+
+    @Test
+    public void testStreamsGiveBuffersBack() throws Exception {
+        BufferPool pool = new BufferPool(false, 1024, 65536, 4, 4);
+        pool.setLeakDetection(true);
+        HttpInputStream in = new HttpInputStream(
+                new ByteArrayInputStream("line\r\n".getBytes(StandardCharsets.ISO_8859_1)), pool, 2048);
+        PooledOutputStream out = new PooledOutputStream(new ByteArrayOutputStream(), pool, 2048);
+        assertEquals("line", in.readLine(100));
+        out.write(1);
+        assertEquals(2, pool.getOutstanding());
+        in.close();
+        out.close();
+        out.close();
+        pool.checkLeaks();
+        try {
+            out.write(1);
+            fail("Write after close");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package util;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChunkedOutputStreamTest {
+
+    @Test
+    public void testRoundTripThroughTransferMessage() throws Exception {
+        byte[] body = new byte[100000];
+        new Random(42).nextBytes(body);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ChunkedOutputStream chunked = new ChunkedOutputStream(encoded, 4096);
+        // writes of mixed sizes, across chunk boundaries
+        int offset = 0;
+        for (int size = 1; offset < body.length; size = size * 3 + 1) {
+            int n = Math.min(size, body.length - offset);
+            chunked.write(body, offset, n);
+            offset += n;
+        }
+        chunked.write('!');
+        chunked.close();
+        assertEquals(encoded.size(), chunked.getCount());
+
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("Transfer-Encoding", "chunked");
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(encoded.toByteArray()));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        assertEquals(body.length + 1, IO.transferMessage(in, headers, decoded));
+        byte[] expected = new byte[body.length + 1];
+        System.arraycopy(body, 0, expected, 0, body.length);
+        expected[body.length] = '!';
+        assertArrayEquals(expected, decoded.toByteArray());
+        // only the empty line after the last chunk is left
+        assertTrue(IO.readHeaders(in).isEmpty());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testFraming() throws Exception {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ChunkedOutputStream chunked = new ChunkedOutputStream(encoded, 16);
+        chunked.write("0123456789abcdefXYZ".getBytes(StandardCharsets.ISO_8859_1));
+        chunked.flush();
+        // flushing without new data writes no empty chunk
+        chunked.flush();
+        chunked.close();
+        chunked.close();
+        assertEquals("10\r\n0123456789abcdef\r\n3\r\nXYZ\r\n0\r\n\r\n",
+                new String(encoded.toByteArray(), StandardCharsets.ISO_8859_1));
+    }
+}
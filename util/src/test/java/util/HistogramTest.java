@@ -0,0 +1,52 @@
+package util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(50.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void testRelativeError() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value < 1000000000L; value = value * 3 + 7) {
+            histogram.reset();
+            histogram.record(value);
+            long reported = histogram.getValueAtPercentile(50);
+            assertTrue(reported >= value || reported == histogram.getMax());
+            assertTrue(Math.abs(reported - value) <= value / 64);
+        }
+    }
+
+    @Test
+    public void testPercentilesOfMergedHistograms() {
+        Histogram fast = new Histogram();
+        Histogram slow = new Histogram();
+        for (int i = 0; i < 990; i++) {
+            fast.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            slow.record(1000000);
+        }
+        fast.add(slow);
+        assertEquals(1000, fast.getCount());
+        assertEquals(1000000, fast.getMax());
+        long p50 = fast.getValueAtPercentile(50);
+        long p999 = fast.getValueAtPercentile(99.9);
+        assertTrue(p50 >= 1000 && p50 <= 1000 + 1000 / 64);
+        assertTrue(p999 >= 1000000 - 1000000 / 64 && p999 <= 1000000);
+    }
+}
@@ -0,0 +1,66 @@
+package util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class HttpParserTest {
+
+    private HttpParser parser;
+
+    @Before
+    public void setUp() {
+        parser = new HttpParser(64, 4);
+    }
+
+    @Test
+    public void testRequestSplitOverSeveralReads() throws Exception {
+        byte[] bytes = "GET /index.html HTTP/1.1\r\nHost: localhost\r\nX-Folded: a\r\n b\r\n\r\nBODY"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        int consumed = 0;
+        // feed the bytes three at a time
+        for (int i = 0; i < bytes.length && !parser.isComplete(); i += 3) {
+            consumed += parser.parse(bytes, i, Math.min(3, bytes.length - i));
+        }
+        assertTrue(parser.isComplete());
+        assertEquals("BODY", new String(bytes, consumed, bytes.length - consumed, StandardCharsets.ISO_8859_1));
+        assertEquals(Method.GET, parser.getMethod());
+        assertEquals("/index.html", parser.getTarget());
+        assertEquals("HTTP/1.1", parser.getHttpVersion());
+        assertEquals("localhost", parser.getHeaders().get("Host"));
+        assertEquals("a b", parser.getHeaders().get("X-Folded"));
+    }
+
+    @Test
+    public void testStatusLine() throws Exception {
+        parser.reset(HttpParser.Mode.RESPONSE);
+        byte[] bytes = "HTTP/1.1 304 Not Modified\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        parser.parse(bytes, 0, bytes.length);
+        assertTrue(parser.isComplete());
+        assertEquals(304, parser.getStatusCode());
+        assertEquals("0", parser.getHeaders().get("Content-Length"));
+    }
+
+    @Test
+    public void testUnsupportedMethod() throws Exception {
+        byte[] bytes = "BREW /pot HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        parser.parse(bytes, 0, bytes.length);
+        assertNull(parser.getMethod());
+        assertEquals("BREW", parser.getMethodName());
+    }
+
+    @Test(expected = MalformedMessageException.class)
+    public void testLineTooLong() throws Exception {
+        byte[] bytes = new byte[65];
+        parser.parse(bytes, 0, bytes.length);
+    }
+
+    @Test(expected = MalformedMessageException.class)
+    public void testTooManyHeaders() throws Exception {
+        byte[] bytes = "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\nD: 4\r\nE: 5\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        parser.parse(bytes, 0, bytes.length);
+    }
+}